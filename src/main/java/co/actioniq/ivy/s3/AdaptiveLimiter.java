@@ -0,0 +1,114 @@
+/*
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package co.actioniq.ivy.s3;
+
+import com.amazonaws.AmazonServiceException;
+import org.apache.ivy.util.Message;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AIMD limit on the number of requests in flight to one bucket.  Every successful request raises the limit
+ * by 1/limit (so about one more request per round trip), a throttled one (503 SlowDown) halves it, at most
+ * once per DecreaseIntervalNanos so a burst of throttles from the same round trip counts once.
+ *
+ * Tasks over the limit wait in a queue rather than blocking a thread, and are started as others finish.
+ */
+class AdaptiveLimiter {
+  private static final long DecreaseIntervalNanos = TimeUnit.SECONDS.toNanos(1);
+
+  private final String name;
+  private final Executor executor;
+  private final int minLimit;
+  private final int maxLimit;
+
+  private final Deque<Runnable> waiting = new ArrayDeque<>();
+  private double limit;
+  private int inFlight = 0;
+  private long throttles = 0;
+  private long lastDecreaseNanos;
+
+  AdaptiveLimiter(String name, Executor executor, int initialLimit, int maxLimit) {
+    this.name = name;
+    this.executor = executor;
+    this.minLimit = 1;
+    this.maxLimit = maxLimit;
+    this.limit = Math.min(initialLimit, maxLimit);
+    this.lastDecreaseNanos = System.nanoTime() - DecreaseIntervalNanos;
+  }
+
+  /**
+   * Runs the task on the executor once it's under the limit.  The task must call release when it's done.
+   */
+  void execute(Runnable task) {
+    synchronized (this) {
+      if (inFlight >= (int)limit) {
+        waiting.add(task);
+        return;
+      }
+      inFlight++;
+    }
+    executor.execute(task);
+  }
+
+  void release() {
+    List<Runnable> next = new ArrayList<>();
+    synchronized (this) {
+      inFlight--;
+      while (inFlight < (int)limit && !waiting.isEmpty()) {
+        next.add(waiting.poll());
+        inFlight++;
+      }
+    }
+    next.forEach(executor::execute);
+  }
+
+  synchronized void onSuccess() {
+    limit = Math.min(maxLimit, limit + 1 / limit);
+  }
+
+  void onThrottle() {
+    int newLimit;
+    synchronized (this) {
+      throttles++;
+      long now = System.nanoTime();
+      if (now - lastDecreaseNanos < DecreaseIntervalNanos) {
+        return;
+      }
+      lastDecreaseNanos = now;
+      limit = Math.max(minLimit, limit / 2);
+      newLimit = (int)limit;
+    }
+    Message.verbose("AsyncS3Client - Throttled by S3, lowered the concurrency limit for " + name + " to " + newLimit);
+  }
+
+  synchronized int limit() { return (int)limit; }
+  synchronized int inFlight() { return inFlight; }
+  synchronized int waiting() { return waiting.size(); }
+  synchronized long throttles() { return throttles; }
+
+  static boolean isThrottle(Throwable t) {
+    if (!(t instanceof AmazonServiceException)) {
+      return false;
+    }
+    AmazonServiceException e = (AmazonServiceException)t;
+    return e.getStatusCode() == 503 || e.getStatusCode() == 429
+        || "SlowDown".equals(e.getErrorCode()) || "Throttling".equals(e.getErrorCode());
+  }
+}
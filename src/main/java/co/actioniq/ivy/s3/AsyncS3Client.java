@@ -0,0 +1,503 @@
+/*
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package co.actioniq.ivy.s3;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsResult;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ListMultipartUploadsRequest;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ListPartsRequest;
+import com.amazonaws.services.s3.model.MultipartUploadListing;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.transfer.Copy;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.Upload;
+
+import org.apache.ivy.util.Message;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Asynchronous access to S3 for the URLHandler.  Every operation runs on a bounded pool of worker
+ * threads and returns a CompletableFuture.  The number of queued operations is bounded as well:
+ * once maxPending operations are waiting, callers block in submit until some complete.
+ *
+ * Requests to each bucket also go through an AdaptiveLimiter that backs off when S3 throttles us,
+ * see AsyncS3ClientMXBean for the current limits.  A throttled operation is retried with the same
+ * client after a randomized exponential backoff, which it waits out without holding a worker or its
+ * slot in the limiter.
+ *
+ * Operations refused because of the client's credentials are retried once with a fresh client and
+ * renewed credentials (e.g. when a temporary session expired).
+ */
+class AsyncS3Client implements AsyncS3ClientMXBean {
+  private static final int InitialBucketConcurrency = 8;
+  private static final int MaxThrottleRetries = 5;
+  private static final long ThrottleBackoffMillis = 100;
+  // The error codes of 400s and 403s that new credentials might get past
+  private static final Set<String> AuthErrorCodes = new HashSet<>(Arrays.asList(
+      "ExpiredToken", "TokenRefreshRequired", "InvalidToken", "InvalidAccessKeyId", "SignatureDoesNotMatch", "AccessDenied"));
+  // The most keys S3 accepts in one DeleteObjects request
+  static final int MaxDeleteBatch = 1000;
+
+  private final S3URLUtil s3URLUtil;
+  private final ExecutorService executor;
+  private final Semaphore pending;
+  private final int maxConcurrency;
+  private final Map<String,AdaptiveLimiter> limiters = new ConcurrentHashMap<>();
+  private final Hedging hedging = new Hedging();
+
+  AsyncS3Client(S3URLUtil s3URLUtil, int maxConcurrency, int maxPending) {
+    this.s3URLUtil = s3URLUtil;
+    this.executor = Executors.newFixedThreadPool(maxConcurrency, new WorkerFactory());
+    this.pending = new Semaphore(maxPending);
+    this.maxConcurrency = maxConcurrency;
+  }
+
+  /**
+   * Makes the metrics available over JMX, ignoring failures (e.g. when another class loader got there first)
+   */
+  void registerMBean() {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("co.actioniq.ivy.s3:type=AsyncS3Client"));
+    } catch (JMException | RuntimeException e) {
+      Message.debug("AsyncS3Client - Unable to register the MBean: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Hedged when hedging is enabled, HEADs are small and idempotent
+   */
+  CompletableFuture<ObjectMetadata> getObjectMetadata(URL url) {
+    return submitHedged(url, cbk -> cbk.getObjectMetadata(cbk.bucket(), cbk.key()), meta -> {});
+  }
+
+  CompletableFuture<S3Object> getObject(URL url) {
+    return submit(url, cbk -> cbk.getObject(cbk.bucket(), cbk.key()));
+  }
+
+  /**
+   * A GET for an object known to be small (e.g. an ivy.xml or pom), hedged when hedging is enabled.  The
+   * losing response's stream is aborted.
+   */
+  CompletableFuture<S3Object> getSmallObject(URL url) {
+    return submitHedged(url, cbk -> cbk.getObject(cbk.bucket(), cbk.key()), object -> object.getObjectContent().abort());
+  }
+
+  /**
+   * A GET with extra constraints (e.g. a byte range).  Completes with null if the constraints weren't met.
+   */
+  CompletableFuture<S3Object> getObject(URL url, Function<ClientBucketKey,GetObjectRequest> request) {
+    return submit(url, cbk -> cbk.getObject(request.apply(cbk)));
+  }
+
+  CompletableFuture<ObjectListing> listObjects(URL url, Function<ClientBucketKey,ListObjectsRequest> request) {
+    return submit(url, cbk -> cbk.listObjects(request.apply(cbk)));
+  }
+
+  CompletableFuture<PutObjectResult> putObject(URL url, Function<ClientBucketKey,PutObjectRequest> request) {
+    return submit(url, cbk -> cbk.putObject(request.apply(cbk)));
+  }
+
+  /**
+   * Deletes the keys (at most MaxDeleteBatch) from the bucket of this URL in a single request.  Fails with a
+   * MultiObjectDeleteException if any of them couldn't be deleted.
+   */
+  CompletableFuture<DeleteObjectsResult> deleteObjects(URL url, List<String> keys) {
+    if (keys.size() > MaxDeleteBatch) {
+      throw new IllegalArgumentException("At most " + MaxDeleteBatch + " keys can be deleted at once, got " + keys.size());
+    }
+    return submit(url, cbk -> cbk.deleteObjects(new DeleteObjectsRequest(cbk.bucket())
+        .withKeys(keys.toArray(new String[keys.size()])).withQuiet(true)));
+  }
+
+  /**
+   * Uploads the files concurrently with a single TransferManager.  They must all be in the same bucket.
+   */
+  CompletableFuture<Void> upload(List<FileUpload> uploads) {
+    return submit(uploads.get(0).url, cbk -> {
+      TransferManager tm = cbk.getTransferManager(cbk.bucket(), cbk.key());
+      try {
+        List<Upload> transfers = new ArrayList<>();
+        for (FileUpload upload : uploads) {
+          BucketAndKey bk = s3URLUtil.getBucketAndKey(upload.url);
+          transfers.add(tm.upload(new PutObjectRequest(bk.bucket, bk.key, upload.file).withMetadata(upload.metadata)));
+        }
+        for (Upload transfer : transfers) {
+          transfer.waitForUploadResult();
+        }
+        return null;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      } finally {
+        tm.shutdownNow(false);
+      }
+    });
+  }
+
+  /**
+   * Starts a multipart upload of the object at this URL and completes with its upload ID
+   */
+  CompletableFuture<String> initiateMultipartUpload(URL url, ObjectMetadata metadata) {
+    return submit(url, cbk -> cbk.initiateMultipartUpload(
+        new InitiateMultipartUploadRequest(cbk.bucket(), cbk.key(), metadata)).getUploadId());
+  }
+
+  /**
+   * Uploads size bytes of file from offset as part partNumber (starting from 1) of the upload
+   */
+  CompletableFuture<PartETag> uploadPart(URL url, String uploadId, int partNumber, File file, long offset, long size) {
+    return submit(url, cbk -> cbk.uploadPart(new UploadPartRequest()
+        .withBucketName(cbk.bucket()).withKey(cbk.key()).withUploadId(uploadId).withPartNumber(partNumber)
+        .withFile(file).withFileOffset(offset).withPartSize(size)).getPartETag());
+  }
+
+  /**
+   * One page of the parts uploaded so far, starting after partNumberMarker (null for the first page).  Fails
+   * with a 404 (NoSuchUpload) once the upload was completed or aborted.
+   */
+  CompletableFuture<PartListing> listParts(URL url, String uploadId, Integer partNumberMarker) {
+    return submit(url, cbk -> cbk.listParts(new ListPartsRequest(cbk.bucket(), cbk.key(), uploadId)
+        .withPartNumberMarker(partNumberMarker)));
+  }
+
+  CompletableFuture<CompleteMultipartUploadResult> completeMultipartUpload(URL url, String uploadId, List<PartETag> parts) {
+    return submit(url, cbk -> cbk.completeMultipartUpload(
+        new CompleteMultipartUploadRequest(cbk.bucket(), cbk.key(), uploadId, parts)));
+  }
+
+  CompletableFuture<Void> abortMultipartUpload(URL url, String uploadId) {
+    return submit(url, cbk -> {
+      cbk.abortMultipartUpload(new AbortMultipartUploadRequest(cbk.bucket(), cbk.key(), uploadId));
+      return null;
+    });
+  }
+
+  CompletableFuture<MultipartUploadListing> listMultipartUploads(URL url, Function<ClientBucketKey,ListMultipartUploadsRequest> request) {
+    return submit(url, cbk -> cbk.listMultipartUploads(request.apply(cbk)));
+  }
+
+  /**
+   * Copies the objects server side, concurrently with a single TransferManager (using multipart copies for
+   * large objects).  The targets must all be in the same bucket, the sources only need to be readable by
+   * that bucket's credentials.
+   */
+  CompletableFuture<Void> copy(List<ObjectCopy> copies) {
+    return submit(copies.get(0).target, cbk -> {
+      TransferManager tm = cbk.getTransferManager(cbk.bucket(), cbk.key());
+      try {
+        List<Copy> transfers = new ArrayList<>();
+        for (ObjectCopy copy : copies) {
+          BucketAndKey source = s3URLUtil.getBucketAndKey(copy.source);
+          BucketAndKey target = s3URLUtil.getBucketAndKey(copy.target);
+          transfers.add(tm.copy(new CopyObjectRequest(source.bucket, source.key, target.bucket, target.key)));
+        }
+        for (Copy transfer : transfers) {
+          transfer.waitForCopyResult();
+        }
+        return null;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      } finally {
+        tm.shutdownNow(false);
+      }
+    });
+  }
+
+  /**
+   * Prepares the client for this URL's bucket on the worker pool, see S3URLUtil.warmUp
+   */
+  CompletableFuture<Void> warmUp(URL url) {
+    return s3URLUtil.warmUp(url, executor);
+  }
+
+  BucketAndKey bucketAndKey(URL url) {
+    return s3URLUtil.getBucketAndKey(url);
+  }
+
+  Hedging hedging() {
+    return hedging;
+  }
+
+  private <T> CompletableFuture<T> submitHedged(URL url, Function<ClientBucketKey,T> operation, Consumer<T> discard) {
+    return hedging.run(decided -> submit(url, cbk -> {
+      if (decided.getAsBoolean()) {
+        throw new CancellationException("Skipped, the hedged request already completed");
+      }
+      return operation.apply(cbk);
+    }), discard);
+  }
+
+  /**
+   * Runs an operation against the client/bucket/key for this URL on the worker pool
+   */
+  <T> CompletableFuture<T> submit(URL url, Function<ClientBucketKey,T> operation) {
+    // Work submitted from our own workers (e.g. a follow up HEAD after a listing) skips the
+    // pending limit, otherwise every worker could end up blocked waiting on queued work.
+    boolean fromWorker = Thread.currentThread() instanceof Worker;
+    if (!fromWorker) {
+      pending.acquireUninterruptibly();
+    }
+
+    AdaptiveLimiter limiter = limiters.computeIfAbsent(s3URLUtil.getBucketAndKey(url).bucket, bucket ->
+        new AdaptiveLimiter(bucket, executor, InitialBucketConcurrency, maxConcurrency));
+
+    CompletableFuture<T> future = new CompletableFuture<>();
+    try {
+      limiter.execute(new Attempt<>(url, operation, limiter, future, fromWorker));
+    } catch (RuntimeException e) {
+      if (!fromWorker) {
+        pending.release();
+      }
+      throw e;
+    }
+    return future;
+  }
+
+  /**
+   * Runs the operation on a worker while holding a slot in the limiter.  A throttled attempt gives both back
+   * and is queued on the limiter again after its backoff, so other requests can use them meanwhile.
+   */
+  private class Attempt<T> implements Runnable {
+    private final URL url;
+    private final Function<ClientBucketKey,T> operation;
+    private final AdaptiveLimiter limiter;
+    private final CompletableFuture<T> future;
+    private final boolean fromWorker;
+    private ClientBucketKey cbk = null;
+    private boolean renewed = false;
+    private int throttles = 0;
+
+    Attempt(URL url, Function<ClientBucketKey,T> operation, AdaptiveLimiter limiter, CompletableFuture<T> future,
+            boolean fromWorker) {
+      this.url = url;
+      this.operation = operation;
+      this.limiter = limiter;
+      this.future = future;
+      this.fromWorker = fromWorker;
+    }
+
+    public void run() {
+      T result;
+      try {
+        result = withRenewal();
+        limiter.onSuccess();
+      } catch (Throwable t) {
+        limiter.release();
+        if (AdaptiveLimiter.isThrottle(t)) {
+          limiter.onThrottle();
+          if (throttles < MaxThrottleRetries) {
+            retryAfter(backOffMillis(++throttles));
+            return;
+          }
+        }
+        fail(t);
+        return;
+      }
+      limiter.release();
+      if (!fromWorker) {
+        pending.release();
+      }
+      future.complete(result);
+    }
+
+    private T withRenewal() {
+      if (cbk == null) {
+        cbk = s3URLUtil.getClientBucketAndKey(url);
+      }
+      while (true) {
+        try {
+          return operation.apply(cbk);
+        } catch (AmazonServiceException e) {
+          if (isAuthError(e) && !renewed) {
+            cbk = s3URLUtil.getNewClientBucketAndKey(url, cbk);
+            renewed = true;
+          } else {
+            throw e;
+          }
+        }
+      }
+    }
+
+    private void retryAfter(long millis) {
+      try {
+        Scheduler.Instance.schedule(() -> {
+          try {
+            limiter.execute(this);
+          } catch (RuntimeException e) {
+            fail(e);
+          }
+        }, millis, TimeUnit.MILLISECONDS);
+      } catch (RuntimeException e) {
+        fail(e);
+      }
+    }
+
+    private void fail(Throwable t) {
+      if (!fromWorker) {
+        pending.release();
+      }
+      future.completeExceptionally(t);
+    }
+  }
+
+  // A random time up to 100ms, 200ms, 400ms... so throttled callers don't all come back at once
+  private static long backOffMillis(int attempt) {
+    long maxMillis = ThrottleBackoffMillis << (attempt - 1);
+    return ThreadLocalRandom.current().nextLong(maxMillis / 2, maxMillis + 1);
+  }
+
+  private static boolean isAuthError(AmazonServiceException e) {
+    return (e.getStatusCode() == 403 || e.getStatusCode() == 400) && AuthErrorCodes.contains(e.getErrorCode());
+  }
+
+  int credentialRenewals() {
+    return s3URLUtil.credentialRenewals();
+  }
+
+  public Map<String,Integer> getConcurrencyLimits() {
+    return limiterMetric(AdaptiveLimiter::limit);
+  }
+
+  public Map<String,Integer> getInFlightRequests() {
+    return limiterMetric(AdaptiveLimiter::inFlight);
+  }
+
+  public Map<String,Integer> getWaitingRequests() {
+    return limiterMetric(AdaptiveLimiter::waiting);
+  }
+
+  public Map<String,Long> getThrottledRequests() {
+    return limiterMetric(AdaptiveLimiter::throttles);
+  }
+
+  public int getOpenStreams() {
+    return ObjectStream.openStreams();
+  }
+
+  public long getLeakedStreams() {
+    return ObjectStream.leakedStreams();
+  }
+
+  private <T> Map<String,T> limiterMetric(Function<AdaptiveLimiter,T> metric) {
+    Map<String,T> res = new TreeMap<>();
+    limiters.forEach((bucket, limiter) -> res.put(bucket, metric.apply(limiter)));
+    return res;
+  }
+
+  /**
+   * Blocks for the result, rethrowing the original unchecked exception (e.g. an AmazonS3Exception with its status code)
+   */
+  static <T> T join(CompletableFuture<T> future) {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException)cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error)cause;
+      }
+      throw e;
+    }
+  }
+
+  static class FileUpload {
+    final URL url;
+    final File file;
+    final ObjectMetadata metadata;
+
+    FileUpload(URL url, File file, ObjectMetadata metadata) {
+      this.url = url;
+      this.file = file;
+      this.metadata = metadata;
+    }
+  }
+
+  static class ObjectCopy {
+    final URL source;
+    final URL target;
+
+    ObjectCopy(URL source, URL target) {
+      this.source = source;
+      this.target = target;
+    }
+  }
+
+  // Delays the retries of throttled attempts
+  private static class Scheduler {
+    static final ScheduledExecutorService Instance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "AsyncS3Client-Scheduler");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  private static class Worker extends Thread {
+    Worker(Runnable runnable, String name) {
+      super(runnable, name);
+      setDaemon(true);
+    }
+  }
+
+  private static class WorkerFactory implements ThreadFactory {
+    private final AtomicInteger count = new AtomicInteger();
+
+    public Thread newThread(Runnable runnable) {
+      return new Worker(runnable, "AsyncS3Client-" + count.incrementAndGet());
+    }
+  }
+}
@@ -0,0 +1,40 @@
+/*
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package co.actioniq.ivy.s3;
+
+import java.util.Map;
+
+/**
+ * Per bucket request metrics of the S3 client shared by the resolvers, registered as
+ * co.actioniq.ivy.s3:type=AsyncS3Client.  JMX requires this interface to be public.
+ */
+public interface AsyncS3ClientMXBean {
+  /** The current adaptive concurrency limit of each bucket */
+  Map<String,Integer> getConcurrencyLimits();
+
+  /** The number of requests in flight to each bucket */
+  Map<String,Integer> getInFlightRequests();
+
+  /** The number of requests waiting for each bucket's limit */
+  Map<String,Integer> getWaitingRequests();
+
+  /** The number of throttled (503 SlowDown) responses from each bucket */
+  Map<String,Long> getThrottledRequests();
+
+  /** The number of object streams handed out and not closed yet */
+  int getOpenStreams();
+
+  /** The number of object streams garbage collected without being closed (their connections were aborted) */
+  long getLeakedStreams();
+}
@@ -0,0 +1,112 @@
+/*
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package co.actioniq.ivy.s3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A bounded pool of copy buffers and raw (nowrap) Deflaters/Inflaters shared by every compress,
+ * decompress and copy path.  At most maxBuffers buffers and maxCodecs of each codec ever exist:
+ * callers block once they are all leased, which puts a fixed upper bound on the memory used.
+ */
+class BufferPool {
+  static final int BufferSize = 64 * 1024;
+
+  // 32 x 64KB = 2MB of buffers plus 16 deflaters and 16 inflaters
+  static final BufferPool Shared = new BufferPool(32, 16);
+
+  private final Semaphore bufferPermits;
+  private final BlockingQueue<byte[]> buffers;
+  private final Semaphore deflaterPermits;
+  private final BlockingQueue<Deflater> deflaters;
+  private final Semaphore inflaterPermits;
+  private final BlockingQueue<Inflater> inflaters;
+
+  BufferPool(int maxBuffers, int maxCodecs) {
+    this.bufferPermits = new Semaphore(maxBuffers, true);
+    this.buffers = new ArrayBlockingQueue<>(maxBuffers);
+    this.deflaterPermits = new Semaphore(maxCodecs, true);
+    this.deflaters = new ArrayBlockingQueue<>(maxCodecs);
+    this.inflaterPermits = new Semaphore(maxCodecs, true);
+    this.inflaters = new ArrayBlockingQueue<>(maxCodecs);
+  }
+
+  /**
+   * Leases count buffers at once (taking them one at a time could deadlock two callers
+   * that each hold one buffer and wait for a second)
+   */
+  byte[][] acquireBuffers(int count) {
+    bufferPermits.acquireUninterruptibly(count);
+    byte[][] res = new byte[count][];
+    for (int i = 0; i < count; i++) {
+      byte[] buffer = buffers.poll();
+      res[i] = buffer != null ? buffer : new byte[BufferSize];
+    }
+    return res;
+  }
+
+  void releaseBuffers(byte[]... leased) {
+    for (byte[] buffer : leased) {
+      buffers.offer(buffer);
+    }
+    bufferPermits.release(leased.length);
+  }
+
+  Deflater acquireDeflater() {
+    deflaterPermits.acquireUninterruptibly();
+    Deflater deflater = deflaters.poll();
+    return deflater != null ? deflater : new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+  }
+
+  void release(Deflater deflater) {
+    deflater.reset();
+    deflaters.offer(deflater);
+    deflaterPermits.release();
+  }
+
+  Inflater acquireInflater() {
+    inflaterPermits.acquireUninterruptibly();
+    Inflater inflater = inflaters.poll();
+    return inflater != null ? inflater : new Inflater(true);
+  }
+
+  void release(Inflater inflater) {
+    inflater.reset();
+    inflaters.offer(inflater);
+    inflaterPermits.release();
+  }
+
+  long copy(InputStream in, OutputStream out) throws IOException {
+    byte[][] leased = acquireBuffers(1);
+    try {
+      byte[] buffer = leased[0];
+      long total = 0;
+      int n;
+      while ((n = in.read(buffer)) != -1) {
+        out.write(buffer, 0, n);
+        total += n;
+      }
+      return total;
+    } finally {
+      releaseBuffers(leased);
+    }
+  }
+}
@@ -0,0 +1,124 @@
+/*
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package co.actioniq.ivy.s3;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.SSEAlgorithm;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Where we keep checksums on S3 objects.  Checksums of the artifact itself (before it gets zipped)
+ * are stored as user metadata named after the Ivy algorithm (x-amz-meta-sha1, ...).  The ETag of
+ * objects uploaded in a single part is the MD5 of the stored bytes.
+ */
+class Checksums {
+  private Checksums() {}
+
+  static final List<String> SupportedAlgorithms = Collections.unmodifiableList(Arrays.asList("md5", "sha1", "sha256"));
+
+  // Always stored on uploads, they are Ivy's default checksums
+  static final List<String> DefaultAlgorithms = Collections.unmodifiableList(Arrays.asList("md5", "sha1"));
+
+  /**
+   * Digests for every checksum stored in the object's user metadata
+   */
+  static Digests forContent(ObjectMetadata meta) {
+    List<String> algorithms = new ArrayList<>();
+    for (String algorithm : SupportedAlgorithms) {
+      if (meta.getUserMetaDataOf(algorithm) != null) {
+        algorithms.add(algorithm);
+      }
+    }
+    return Digests.of(algorithms);
+  }
+
+  /**
+   * An MD5 digest of the stored bytes if the ETag can be checked against one
+   */
+  static Digests forETag(ObjectMetadata meta) {
+    return isMD5ETag(meta) ? Digests.of(Collections.singletonList("md5")) : Digests.none();
+  }
+
+  // Multipart ETags look like <md5 of part md5s>-<parts> and SSE-KMS ETags aren't an MD5 at all
+  private static boolean isMD5ETag(ObjectMetadata meta) {
+    String etag = meta.getETag();
+    return etag != null && !etag.contains("-") && !SSEAlgorithm.KMS.getAlgorithm().equals(meta.getSSEAlgorithm());
+  }
+
+  static void verifyContent(String what, Digests digests, ObjectMetadata meta) throws IOException {
+    for (String algorithm : SupportedAlgorithms) {
+      String expected = meta.getUserMetaDataOf(algorithm);
+      if (expected != null && digests.has(algorithm)) {
+        verify(what, algorithm, expected, digests.hex(algorithm));
+      }
+    }
+  }
+
+  static void verifyETag(String what, Digests digests, ObjectMetadata meta) throws IOException {
+    if (isMD5ETag(meta) && digests.has("md5")) {
+      verify(what, "ETag", meta.getETag(), digests.hex("md5"));
+    }
+  }
+
+  /**
+   * Whether an existing object holds the same content as what we're about to upload: storedFile (the bytes
+   * that would be stored) with contentDigests computed over the artifact itself.  The checksums in the user
+   * metadata are compared when there are any, otherwise the ETag is compared with the stored bytes' MD5.
+   */
+  static boolean isIdentical(ObjectMetadata existing, Digests contentDigests, File storedFile) throws IOException {
+    boolean compared = false;
+    for (String algorithm : SupportedAlgorithms) {
+      String expected = existing.getUserMetaDataOf(algorithm);
+      if (expected != null && contentDigests.has(algorithm)) {
+        if (!expected.trim().equalsIgnoreCase(contentDigests.hex(algorithm))) {
+          return false;
+        }
+        compared = true;
+      }
+    }
+    if (compared) {
+      return true;
+    }
+
+    if (!isMD5ETag(existing) || existing.getContentLength() != storedFile.length()) {
+      return false;
+    }
+    Digests stored = Digests.of(Collections.singletonList("md5"));
+    stored.update(storedFile);
+    return existing.getETag().equalsIgnoreCase(stored.hex("md5"));
+  }
+
+  /**
+   * User metadata holding the content checksums computed by these digests
+   */
+  static ObjectMetadata toMetadata(Digests contentDigests) {
+    ObjectMetadata meta = new ObjectMetadata();
+    for (String algorithm : contentDigests.algorithms()) {
+      meta.addUserMetadata(algorithm, contentDigests.hex(algorithm));
+    }
+    return meta;
+  }
+
+  private static void verify(String what, String algorithm, String expected, String computed) throws IOException {
+    if (!expected.trim().equalsIgnoreCase(computed)) {
+      throw new IOException("invalid " + algorithm + " for " + what + ": expected=" + expected + " computed=" + computed);
+    }
+  }
+}
@@ -13,29 +13,45 @@
  */
 package co.actioniq.ivy.s3;
 
-import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsResult;
 import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ListMultipartUploadsRequest;
 import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ListPartsRequest;
+import com.amazonaws.services.s3.model.MultipartUploadListing;
 import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.PutObjectResult;
 import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
 import com.amazonaws.services.s3.transfer.TransferManager;
 import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
 import org.apache.ivy.util.Message;
 
 import java.io.File;
+import java.io.IOException;
 
 class ClientBucketKey {
-  private final AmazonS3Client client;
+  private final AmazonS3 client;
   private final BucketAndKey bucketAndKey;
 
-  ClientBucketKey(AmazonS3Client client, BucketAndKey bucketAndKey) {
+  ClientBucketKey(AmazonS3 client, BucketAndKey bucketAndKey) {
     this.client = client;
     this.bucketAndKey = bucketAndKey;
   }
 
   String bucket() { return bucketAndKey.bucket; }
+  boolean usesClient(AmazonS3 other) { return client == other; }
   String key() { return bucketAndKey.key; }
 
   S3Object getObject(String bucketName, String key) {
@@ -43,9 +59,9 @@ class ClientBucketKey {
     return client.getObject(bucketName, key);
   }
 
-  ObjectMetadata getObject(final GetObjectRequest getObjectRequest, File destinationFile) {
-    log("AIQ S3 getObject request: " + getObjectRequest + ", destinationFile: " + destinationFile);
-    return client.getObject(getObjectRequest, destinationFile);
+  S3Object getObject(GetObjectRequest getObjectRequest) {
+    log("AIQ S3 getObject request bucketName: " + getObjectRequest.getBucketName() + ", key: " + getObjectRequest.getKey());
+    return client.getObject(getObjectRequest);
   }
 
   ObjectMetadata getObjectMetadata(String bucketName, String key) {
@@ -63,6 +79,46 @@ class ClientBucketKey {
     return client.putObject(bucketName, key, file);
   }
 
+  PutObjectResult putObject(PutObjectRequest putObjectRequest) {
+    log("AIQ S3 putObject request bucketName: " + putObjectRequest.getBucketName() + ", key: " + putObjectRequest.getKey());
+    return client.putObject(putObjectRequest);
+  }
+
+  DeleteObjectsResult deleteObjects(DeleteObjectsRequest deleteObjectsRequest) {
+    log("AIQ S3 deleteObjects bucketName: " + deleteObjectsRequest.getBucketName() + ", keys: " + deleteObjectsRequest.getKeys().size());
+    return client.deleteObjects(deleteObjectsRequest);
+  }
+
+  InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
+    log("AIQ S3 initiateMultipartUpload bucketName: " + request.getBucketName() + ", key: " + request.getKey());
+    return client.initiateMultipartUpload(request);
+  }
+
+  UploadPartResult uploadPart(UploadPartRequest request) {
+    log("AIQ S3 uploadPart bucketName: " + request.getBucketName() + ", key: " + request.getKey() + ", partNumber: " + request.getPartNumber());
+    return client.uploadPart(request);
+  }
+
+  PartListing listParts(ListPartsRequest request) {
+    log("AIQ S3 listParts bucketName: " + request.getBucketName() + ", key: " + request.getKey() + ", uploadId: " + request.getUploadId());
+    return client.listParts(request);
+  }
+
+  CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) {
+    log("AIQ S3 completeMultipartUpload bucketName: " + request.getBucketName() + ", key: " + request.getKey() + ", parts: " + request.getPartETags().size());
+    return client.completeMultipartUpload(request);
+  }
+
+  void abortMultipartUpload(AbortMultipartUploadRequest request) {
+    log("AIQ S3 abortMultipartUpload bucketName: " + request.getBucketName() + ", key: " + request.getKey() + ", uploadId: " + request.getUploadId());
+    client.abortMultipartUpload(request);
+  }
+
+  MultipartUploadListing listMultipartUploads(ListMultipartUploadsRequest request) {
+    log("AIQ S3 listMultipartUploads bucketName: " + request.getBucketName() + ", prefix: " + request.getPrefix());
+    return client.listMultipartUploads(request);
+  }
+
   TransferManager getTransferManager(String bucketName, String key) {
     log("AIQ S3 getTransferManager bucketName: " + bucketName + ", key: " + key);
     return TransferManagerBuilder.standard().withS3Client(client).build();
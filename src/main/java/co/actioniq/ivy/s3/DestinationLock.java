@@ -0,0 +1,245 @@
+/*
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package co.actioniq.ivy.s3;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+/**
+ * An exclusive lock on a destination file shared by every process using the same Ivy cache, held with a
+ * FileChannel lock on a lock file named after a hash of dest's path in a .s3-locks directory (see lockFile),
+ * rather than on a file next to every artifact.  The lock file itself is left in place: deleting it while another
+ * process is waiting on it would let a third process lock a new file with the same name.
+ *
+ * Locks die with the process holding them, so a crash never leaves a stale lock behind, only stale temp
+ * files which the next holder removes.
+ *
+ * FileChannel locks are held by the whole JVM (a second one on the same file throws
+ * OverlappingFileLockException), so threads of the same JVM first take turns on an in-memory lock keyed
+ * by the lock file's canonical path and only then go for the file lock.  A thread that already holds the lock
+ * of a file (or of a file whose lock covers it, e.g. Ivy's dest.part) gets it again without locking anything.
+ */
+class DestinationLock implements AutoCloseable {
+  static final String LockDirName = ".s3-locks";
+  private static final String TempSuffix = ".s3tmp";
+
+  // The in-JVM locks of the lock files somebody holds or waits on
+  private static final Map<String,LocalLock> localLocks = new ConcurrentHashMap<>();
+  // The canonical paths of the files each thread holds a lock for, or that a lock it holds covers
+  private static final ThreadLocal<Set<String>> heldByThread = ThreadLocal.withInitial(HashSet::new);
+
+  private final File dest;
+  private final LocalLock local;
+  private final FileChannel channel;
+  private final FileLock lock;
+  private final boolean changedWhileWaiting;
+  // What this lock added to heldByThread, empty for a lock the thread already held
+  private final List<String> held = new ArrayList<>();
+
+  private DestinationLock(File dest, LocalLock local, FileChannel channel, FileLock lock, boolean changedWhileWaiting) {
+    this.dest = dest;
+    this.local = local;
+    this.channel = channel;
+    this.lock = lock;
+    this.changedWhileWaiting = changedWhileWaiting;
+  }
+
+  /**
+   * Blocks until no other thread or process holds the lock for dest
+   */
+  static DestinationLock acquire(File dest) throws IOException {
+    File dir = dest.getAbsoluteFile().getParentFile();
+    if (dir != null) {
+      Files.createDirectories(dir.toPath());
+    }
+
+    String destPath = dest.getCanonicalPath();
+    if (heldByThread.get().contains(destPath)) {
+      return new DestinationLock(dest, null, null, null, false);
+    }
+
+    File lockFile = lockFile(dest);
+    // Remember what dest looked like so that if somebody else was writing it we can tell they finished
+    long lengthBefore = dest.length();
+    long lastModifiedBefore = dest.lastModified();
+
+    LocalLock local = LocalLock.acquire(lockFile.getCanonicalPath());
+    boolean waited = local.waited;
+    FileChannel channel = null;
+    try {
+      channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+      FileLock lock = channel.tryLock();
+      if (lock == null) {
+        lock = channel.lock();
+        waited = true;
+      }
+      boolean changed = waited && (dest.length() != lengthBefore || dest.lastModified() != lastModifiedBefore);
+      DestinationLock destinationLock = new DestinationLock(dest, local, channel, lock, changed);
+      destinationLock.hold(destPath);
+      destinationLock.deleteStaleTempFiles();
+      return destinationLock;
+    } catch (IOException | RuntimeException e) {
+      try {
+        if (channel != null) {
+          channel.close();
+        }
+      } finally {
+        local.release();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * The file dest's lock is held on: <sha1 of dest's canonical path>.lck in the .s3-locks directory of the closest
+   * directory above dest that has one (S3URLResolver makes one at the root of its cache), or else of dest's own
+   * directory.  Whoever locks dest finds the same file as long as nobody creates a .s3-locks directory in between.
+   */
+  static File lockFile(File dest) throws IOException {
+    File canonical = dest.getCanonicalFile();
+    File lockDir = new File(canonical.getParentFile(), LockDirName);
+    for (File dir = canonical.getParentFile(); dir != null; dir = dir.getParentFile()) {
+      File candidate = new File(dir, LockDirName);
+      if (candidate.isDirectory()) {
+        lockDir = candidate;
+        break;
+      }
+    }
+    Files.createDirectories(lockDir.toPath());
+
+    Digests digests = Digests.of(Collections.singletonList("sha1"));
+    byte[] path = canonical.getPath().getBytes(StandardCharsets.UTF_8);
+    digests.update(path, 0, path.length);
+    return new File(lockDir, digests.hex("sha1") + ".lck");
+  }
+
+  /**
+   * Lets this thread acquire file without locking it again while it holds this lock, for files only ever written
+   * on the way to dest
+   */
+  void cover(File file) throws IOException {
+    if (channel != null) {
+      hold(file.getCanonicalPath());
+    }
+  }
+
+  private void hold(String path) {
+    if (heldByThread.get().add(path)) {
+      held.add(path);
+    }
+  }
+
+  /**
+   * Whether another process replaced dest while we were waiting for the lock
+   */
+  boolean changedWhileWaiting() {
+    return changedWhileWaiting && dest.exists();
+  }
+
+  /**
+   * A temp file next to dest to write to (dest-<random digits>.s3tmp), see commit
+   */
+  File tempFile() throws IOException {
+    return File.createTempFile(dest.getName() + "-", TempSuffix, dest.getAbsoluteFile().getParentFile());
+  }
+
+  /**
+   * Moves the completely written temp file to dest, atomically where the file system allows it
+   */
+  void commit(File temp) throws IOException {
+    try {
+      Files.move(temp.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(temp.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  // Left behind by a process that died while holding the lock, nobody else can be writing them now
+  @SuppressWarnings("RV_RETURN_VALUE_IGNORED_BAD_PRACTICE")
+  private void deleteStaleTempFiles() {
+    // Exactly the names tempFile makes: foo.jar-sources.jar-123.s3tmp is one of foo.jar-sources.jar's, not foo.jar's
+    Pattern tempName = Pattern.compile(Pattern.quote(dest.getName()) + "-\\d+" + Pattern.quote(TempSuffix));
+    File[] stale = dest.getAbsoluteFile().getParentFile().listFiles((dir, name) -> tempName.matcher(name).matches());
+    if (stale != null) {
+      for (File file : stale) {
+        file.delete();
+      }
+    }
+  }
+
+  public void close() throws IOException {
+    if (channel == null) {
+      return; // Held further up this thread's stack
+    }
+    heldByThread.get().removeAll(held);
+    try {
+      lock.release();
+    } finally {
+      try {
+        channel.close();
+      } finally {
+        local.release();
+      }
+    }
+  }
+
+  // A ReentrantLock shared by the threads using the same lock file, dropped from localLocks once the
+  // last of them releases it
+  private static class LocalLock {
+    private final String key;
+    private final ReentrantLock lock = new ReentrantLock();
+    private int users = 0;
+    // Whether the current holder had to wait for another thread
+    private boolean waited = false;
+
+    private LocalLock(String key) {
+      this.key = key;
+    }
+
+    static LocalLock acquire(String key) {
+      LocalLock local = localLocks.compute(key, (k, existing) -> {
+        LocalLock res = existing == null ? new LocalLock(k) : existing;
+        res.users++;
+        return res;
+      });
+      boolean waited = !local.lock.tryLock();
+      if (waited) {
+        local.lock.lock();
+      }
+      local.waited = waited;
+      return local;
+    }
+
+    void release() {
+      lock.unlock();
+      localLocks.computeIfPresent(key, (k, existing) -> --existing.users == 0 ? null : existing);
+    }
+  }
+}
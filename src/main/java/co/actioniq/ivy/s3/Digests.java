@@ -0,0 +1,158 @@
+/*
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package co.actioniq.ivy.s3;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A set of MessageDigests, keyed by their Ivy checksum name (md5, sha1, sha256), that are
+ * all updated in the same pass over the data.
+ */
+class Digests {
+  private final Map<String,MessageDigest> digests = new LinkedHashMap<>();
+  private final Map<String,String> results = new HashMap<>();
+
+  static Digests of(Collection<String> algorithms) {
+    Digests res = new Digests();
+    for (String algorithm : algorithms) {
+      res.digests.put(algorithm, newMessageDigest(algorithm));
+    }
+    return res;
+  }
+
+  static Digests none() {
+    return new Digests();
+  }
+
+  /**
+   * Digests computed earlier (e.g. by a previous process), from their hex results.  They can't be updated.
+   */
+  static Digests completed(Map<String,String> hexByAlgorithm) {
+    Digests res = new Digests();
+    hexByAlgorithm.forEach((algorithm, hex) -> {
+      res.digests.put(algorithm, newMessageDigest(algorithm));
+      res.results.put(algorithm, hex);
+    });
+    return res;
+  }
+
+  /**
+   * A Digests updating the algorithms of both of these at once
+   */
+  Digests plus(Digests other) {
+    Digests res = new Digests();
+    res.digests.putAll(digests);
+    other.digests.forEach(res.digests::putIfAbsent);
+    return res;
+  }
+
+  boolean isEmpty() { return digests.isEmpty(); }
+
+  Set<String> algorithms() { return digests.keySet(); }
+
+  void update(byte[] b, int off, int len) {
+    for (MessageDigest digest : digests.values()) {
+      digest.update(b, off, len);
+    }
+  }
+
+  boolean has(String algorithm) { return digests.containsKey(algorithm); }
+
+  void update(File file) throws IOException {
+    BufferPool pool = BufferPool.Shared;
+    byte[][] buffers = pool.acquireBuffers(1);
+    try (InputStream in = new FileInputStream(file)) {
+      int n;
+      while ((n = in.read(buffers[0])) != -1) {
+        update(buffers[0], 0, n);
+      }
+    } finally {
+      pool.releaseBuffers(buffers);
+    }
+  }
+
+  /**
+   * The lowercase hex digest.  This completes the digest so no more data can be added afterwards.
+   */
+  String hex(String algorithm) {
+    return results.computeIfAbsent(algorithm, a -> {
+      byte[] bytes = digests.get(a).digest();
+      StringBuilder sb = new StringBuilder(bytes.length * 2);
+      for (byte b : bytes) {
+        sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      }
+      return sb.toString();
+    });
+  }
+
+  InputStream wrap(InputStream in) {
+    if (isEmpty()) {
+      return in;
+    }
+    return new FilterInputStream(in) {
+      @Override
+      public int read() throws IOException {
+        int b = super.read();
+        if (b != -1) {
+          update(new byte[] {(byte)b}, 0, 1);
+        }
+        return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n > 0) {
+          update(b, off, n);
+        }
+        return n;
+      }
+
+      @Override
+      public long skip(long n) throws IOException {
+        // Skipped bytes would be missing from the digests
+        throw new IOException("skip is not supported while computing digests");
+      }
+
+      @Override
+      public boolean markSupported() {
+        return false;
+      }
+    };
+  }
+
+  private static MessageDigest newMessageDigest(String algorithm) {
+    try {
+      switch (algorithm) {
+        case "md5": return MessageDigest.getInstance("MD5");
+        case "sha1": return MessageDigest.getInstance("SHA-1");
+        case "sha256": return MessageDigest.getInstance("SHA-256");
+        default: return MessageDigest.getInstance(algorithm);
+      }
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalArgumentException("Unknown checksum algorithm: " + algorithm, e);
+    }
+  }
+}
@@ -0,0 +1,166 @@
+/*
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package co.actioniq.ivy.s3;
+
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Hedged requests for small idempotent operations: when the first attempt is still pending after the delay
+ * (a fixed one, or the p95 of recent attempts) a second one is started and whichever succeeds first wins.
+ * The other one is skipped if it hasn't started yet, or its result is discarded (e.g. a GET aborted).
+ *
+ * Hedges are capped by a budget: each request earns BudgetRatio of a hedge, so at most about 5% extra
+ * requests, with a little slack (MaxTokens) for bursts.
+ */
+class Hedging {
+  private static final double BudgetRatio = 0.05;
+  private static final double MaxTokens = 10;
+  private static final int LatencySamples = 256;
+  private static final int MinSamplesForPercentile = 20;
+  private static final long DefaultDelayMillis = 200;
+  private static final long MinDelayMillis = 10;
+
+  private volatile boolean enabled = false;
+  private volatile long fixedDelayMillis = -1;
+
+  private final long[] latencies = new long[LatencySamples];
+  private int latencyCount = 0;
+  private long p95Millis = DefaultDelayMillis;
+  private double tokens = MaxTokens;
+  private long hedges = 0;
+
+  /**
+   * Turns hedging on, delaying hedges by delayMillis or by the observed p95 when it's negative
+   */
+  void enable(long delayMillis) {
+    this.fixedDelayMillis = delayMillis;
+    this.enabled = true;
+  }
+
+  boolean isEnabled() { return enabled; }
+
+  synchronized long hedges() { return hedges; }
+
+  /**
+   * Runs the attempt, hedging it if it's too slow.  Attempts are given a check of whether the request has
+   * already been decided so one that hasn't started by then can skip its work.
+   */
+  <T> CompletableFuture<T> run(Function<BooleanSupplier,CompletableFuture<T>> attempt, Consumer<T> discard) {
+    if (!enabled) {
+      return attempt.apply(() -> false);
+    }
+
+    earnToken();
+    long start = System.nanoTime();
+    Race<T> race = new Race<>(discard);
+    race.add(attempt.apply(race.result::isDone).whenComplete((r, t) -> recordLatency(start)));
+
+    long delay = fixedDelayMillis >= 0 ? fixedDelayMillis : delayMillis();
+    Scheduler.Instance.schedule(() -> {
+      if (!race.result.isDone() && spendToken()) {
+        race.add(attempt.apply(race.result::isDone));
+      }
+    }, delay, TimeUnit.MILLISECONDS);
+
+    return race.result;
+  }
+
+  private synchronized void earnToken() {
+    tokens = Math.min(MaxTokens, tokens + BudgetRatio);
+  }
+
+  private synchronized boolean spendToken() {
+    if (tokens < 1) {
+      return false;
+    }
+    tokens -= 1;
+    hedges++;
+    return true;
+  }
+
+  private synchronized void recordLatency(long startNanos) {
+    latencies[latencyCount++ % LatencySamples] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    int samples = Math.min(latencyCount, LatencySamples);
+    // Re-sorting on every sample would be wasteful, the percentile doesn't need to be that fresh
+    if (samples >= MinSamplesForPercentile && latencyCount % 16 == 0) {
+      long[] sorted = Arrays.copyOf(latencies, samples);
+      Arrays.sort(sorted);
+      p95Millis = sorted[(int)(samples * 0.95) - 1];
+    }
+  }
+
+  private synchronized long delayMillis() {
+    return Math.max(MinDelayMillis, p95Millis);
+  }
+
+  /**
+   * The attempts of one hedged request, the first success completes the result.  It only fails when every
+   * attempt started has failed.
+   */
+  private static class Race<T> {
+    final CompletableFuture<T> result = new CompletableFuture<>();
+    private final Consumer<T> discard;
+    private int pending = 0;
+    private Throwable failure = null;
+
+    Race(Consumer<T> discard) {
+      this.discard = discard;
+    }
+
+    void add(CompletableFuture<T> attempt) {
+      synchronized (this) {
+        pending++;
+      }
+      attempt.whenComplete(this::onComplete);
+    }
+
+    private void onComplete(T value, Throwable t) {
+      if (t == null) {
+        if (!result.complete(value) && value != null) {
+          discard.accept(value);
+        }
+        return;
+      }
+
+      boolean last;
+      synchronized (this) {
+        pending--;
+        last = pending == 0;
+        // A skipped hedge isn't a real failure
+        if (failure == null || failure instanceof CancellationException) {
+          failure = t;
+        }
+      }
+      if (last) {
+        result.completeExceptionally(failure);
+      }
+    }
+  }
+
+  private static class Scheduler {
+    static final ScheduledExecutorService Instance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "Hedging-Scheduler");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+}
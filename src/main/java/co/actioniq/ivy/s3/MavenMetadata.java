@@ -0,0 +1,122 @@
+/*
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package co.actioniq.ivy.s3;
+
+import org.apache.ivy.util.XMLHelper;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * The per-module maven-metadata.xml index listing every published revision of a module.
+ * Only the fields we need (and that Maven/Ivy read) are kept.
+ */
+class MavenMetadata {
+  static final String FileName = "maven-metadata.xml";
+
+  private final String groupId;
+  private final String artifactId;
+  private final List<String> versions;
+
+  MavenMetadata(String groupId, String artifactId, List<String> versions) {
+    this.groupId = groupId;
+    this.artifactId = artifactId;
+    this.versions = Collections.unmodifiableList(new ArrayList<>(versions));
+  }
+
+  List<String> versions() { return versions; }
+
+  // Versions are kept in publish order so the last one is the latest
+  MavenMetadata withVersion(String version) {
+    List<String> updated = new ArrayList<>(versions);
+    updated.remove(version);
+    updated.add(version);
+    return new MavenMetadata(groupId, artifactId, updated);
+  }
+
+  MavenMetadata withoutVersions(Collection<String> removed) {
+    List<String> updated = new ArrayList<>(versions);
+    updated.removeAll(removed);
+    return new MavenMetadata(groupId, artifactId, updated);
+  }
+
+  static MavenMetadata parse(byte[] content) throws IOException {
+    try {
+      DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+      factory.setExpandEntityReferences(false);
+      Document doc = factory.newDocumentBuilder().parse(new ByteArrayInputStream(content));
+      Element root = doc.getDocumentElement();
+
+      List<String> versions = new ArrayList<>();
+      NodeList nodes = root.getElementsByTagName("version");
+      for (int i = 0; i < nodes.getLength(); i++) {
+        Node node = nodes.item(i);
+        // <version> also appears directly under <metadata> for single version metadata
+        if ("versions".equals(node.getParentNode().getNodeName())) {
+          versions.add(node.getTextContent().trim());
+        }
+      }
+
+      return new MavenMetadata(childText(root, "groupId"), childText(root, "artifactId"), versions);
+    } catch (ParserConfigurationException | SAXException e) {
+      throw new IOException("Invalid " + FileName, e);
+    }
+  }
+
+  byte[] toBytes() {
+    SimpleDateFormat timestamp = new SimpleDateFormat("yyyyMMddHHmmss");
+    timestamp.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+    StringBuilder sb = new StringBuilder();
+    sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+    sb.append("<metadata>\n");
+    sb.append("  <groupId>").append(XMLHelper.escape(groupId)).append("</groupId>\n");
+    sb.append("  <artifactId>").append(XMLHelper.escape(artifactId)).append("</artifactId>\n");
+    sb.append("  <versioning>\n");
+    if (!versions.isEmpty()) {
+      String latest = XMLHelper.escape(versions.get(versions.size() - 1));
+      sb.append("    <latest>").append(latest).append("</latest>\n");
+      sb.append("    <release>").append(latest).append("</release>\n");
+    }
+    sb.append("    <versions>\n");
+    for (String version : versions) {
+      sb.append("      <version>").append(XMLHelper.escape(version)).append("</version>\n");
+    }
+    sb.append("    </versions>\n");
+    sb.append("    <lastUpdated>").append(timestamp.format(new Date())).append("</lastUpdated>\n");
+    sb.append("  </versioning>\n");
+    sb.append("</metadata>\n");
+    return sb.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static String childText(Element parent, String name) {
+    NodeList nodes = parent.getElementsByTagName(name);
+    return nodes.getLength() == 0 ? null : nodes.item(0).getTextContent().trim();
+  }
+}
@@ -0,0 +1,257 @@
+/*
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package co.actioniq.ivy.s3;
+
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Every object of a module revision directory in a single object, so resolving the revision costs one GET
+ * instead of a HEAD and a GET per artifact.  The objects are kept as stored (artifacts still zipped) along
+ * with an index of their S3 metadata, which lets them go through the same checks as a regular download.
+ *
+ * Bundles are only written for revisions up to MaxBytes since resolves keep the ones they fetched in memory.
+ */
+class ModuleBundle {
+  static final String Name = ".bundle.zip";
+  static final long MaxBytes = 8 * 1024 * 1024;
+  private static final String IndexName = "index.properties";
+
+  static class Entry {
+    final String name;
+    final String etag;
+    final long lastModified;
+    final Map<String,String> userMetadata;
+    final byte[] bytes;
+
+    Entry(String name, String etag, long lastModified, Map<String,String> userMetadata, byte[] bytes) {
+      this.name = name;
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.userMetadata = userMetadata;
+      this.bytes = bytes;
+    }
+
+    S3URLInfo info() {
+      return new S3URLInfo(true, bytes.length, lastModified, etag);
+    }
+
+    /**
+     * A fresh object (content and metadata) as if it had just been fetched from S3
+     */
+    S3Object toObject() {
+      ObjectMetadata meta = new ObjectMetadata();
+      meta.setContentLength(bytes.length);
+      meta.setHeader(Headers.ETAG, etag);
+      meta.setLastModified(new Date(lastModified));
+      meta.setUserMetadata(userMetadata);
+
+      S3Object object = new S3Object();
+      object.setKey(name);
+      object.setObjectMetadata(meta);
+      object.setObjectContent(new ByteArrayInputStream(bytes));
+      return object;
+    }
+  }
+
+  // Keyed by name relative to the revision directory
+  private final Map<String,Entry> entries;
+  private final long size;
+
+  private ModuleBundle(Map<String,Entry> entries) {
+    this.entries = entries;
+    this.size = entries.values().stream().mapToLong(e -> e.bytes.length).sum();
+  }
+
+  Optional<Entry> entry(String name) {
+    return Optional.ofNullable(entries.get(name));
+  }
+
+  Collection<Entry> entries() {
+    return Collections.unmodifiableCollection(entries.values());
+  }
+
+  static byte[] write(List<Entry> entries) throws IOException {
+    Properties index = new Properties();
+    for (int i = 0; i < entries.size(); i++) {
+      Entry entry = entries.get(i);
+      index.setProperty("entry." + i + ".name", entry.name);
+      index.setProperty("entry." + i + ".etag", entry.etag);
+      index.setProperty("entry." + i + ".lastModified", String.valueOf(entry.lastModified));
+      for (Map.Entry<String,String> meta : entry.userMetadata.entrySet()) {
+        index.setProperty("entry." + i + ".meta." + meta.getKey(), meta.getValue());
+      }
+    }
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (ZipOutputStream zip = new ZipOutputStream(out, StandardCharsets.UTF_8)) {
+      // Artifacts are already compressed, deflating them again is wasted time on both ends
+      zip.setLevel(Deflater.NO_COMPRESSION);
+      zip.putNextEntry(new ZipEntry(IndexName));
+      index.store(zip, null);
+      zip.closeEntry();
+      for (int i = 0; i < entries.size(); i++) {
+        zip.putNextEntry(new ZipEntry(String.valueOf(i)));
+        zip.write(entries.get(i).bytes);
+        zip.closeEntry();
+      }
+    }
+    return out.toByteArray();
+  }
+
+  static ModuleBundle read(InputStream in) throws IOException {
+    Properties index = null;
+    Map<String,byte[]> contents = new TreeMap<>();
+    try (ZipInputStream zip = new ZipInputStream(in, StandardCharsets.UTF_8)) {
+      ZipEntry zipEntry;
+      while ((zipEntry = zip.getNextEntry()) != null) {
+        if (zipEntry.getName().equals(IndexName)) {
+          index = new Properties();
+          index.load(zip);
+        } else {
+          ByteArrayOutputStream content = new ByteArrayOutputStream();
+          BufferPool.Shared.copy(zip, content);
+          contents.put(zipEntry.getName(), content.toByteArray());
+        }
+      }
+    }
+    if (index == null) {
+      throw new IOException("Not a module bundle: no " + IndexName);
+    }
+
+    Map<String,Entry> entries = new LinkedHashMap<>();
+    for (int i = 0; index.getProperty("entry." + i + ".name") != null; i++) {
+      String prefix = "entry." + i + ".";
+      byte[] bytes = contents.get(String.valueOf(i));
+      if (bytes == null) {
+        throw new IOException("Corrupt module bundle: no content for " + index.getProperty(prefix + "name"));
+      }
+      Map<String,String> userMetadata = new TreeMap<>();
+      for (String key : index.stringPropertyNames()) {
+        if (key.startsWith(prefix + "meta.")) {
+          userMetadata.put(key.substring((prefix + "meta.").length()), index.getProperty(key));
+        }
+      }
+      Entry entry = new Entry(index.getProperty(prefix + "name"), index.getProperty(prefix + "etag"),
+          Long.parseLong(index.getProperty(prefix + "lastModified")), userMetadata, bytes);
+      entries.put(entry.name, entry);
+    }
+    return new ModuleBundle(entries);
+  }
+
+  /**
+   * The bundles fetched so far (and the revision directories without one) keyed by revision directory URL,
+   * least recently used first out once they add up to more than MaxCachedBytes.  Like the S3MetadataCache
+   * entries they expire after a minute, so a revision republished by another process (or a bundle written
+   * since) is picked up.
+   */
+  static class Cache {
+    private static final long MaxCachedBytes = 64 * 1024 * 1024;
+    private static final int MaxDirectories = 4096;
+    private static final long DefaultTTLMillis = TimeUnit.MINUTES.toMillis(1);
+
+    private final LinkedHashMap<String,Cached> bundles = new LinkedHashMap<>(16, 0.75f, true);
+    private final long ttlMillis;
+    private long cachedBytes = 0;
+
+    Cache() {
+      this(DefaultTTLMillis);
+    }
+
+    Cache(long ttlMillis) {
+      this.ttlMillis = ttlMillis;
+    }
+
+    synchronized boolean contains(String dir) {
+      return get(dir) != null;
+    }
+
+    synchronized void put(String dir, Optional<ModuleBundle> bundle) {
+      Cached previous = bundles.put(dir, new Cached(bundle, System.currentTimeMillis() + ttlMillis));
+      cachedBytes += size(bundle) - (previous == null ? 0 : size(previous.bundle));
+
+      Iterator<Cached> eldest = bundles.values().iterator();
+      while ((cachedBytes > MaxCachedBytes || bundles.size() > MaxDirectories) && eldest.hasNext()) {
+        cachedBytes -= size(eldest.next().bundle);
+        eldest.remove();
+      }
+    }
+
+    synchronized void invalidate(String dir) {
+      Cached previous = bundles.remove(dir);
+      if (previous != null) {
+        cachedBytes -= size(previous.bundle);
+      }
+    }
+
+    /**
+     * The entry for url in the bundle of one of its parent directories, if one of them was fetched
+     */
+    synchronized Optional<Entry> entry(String url) {
+      for (int idx = url.lastIndexOf('/'); idx > 0; idx = url.lastIndexOf('/', idx - 1)) {
+        Cached cached = get(url.substring(0, idx + 1));
+        if (cached != null && cached.bundle.isPresent()) {
+          return cached.bundle.get().entry(url.substring(idx + 1));
+        }
+      }
+      return Optional.empty();
+    }
+
+    // The unexpired bundle (or absence of one) of dir, or null if there is none
+    private Cached get(String dir) {
+      Cached cached = bundles.get(dir);
+      if (cached != null && cached.expiresAt < System.currentTimeMillis()) {
+        invalidate(dir);
+        return null;
+      }
+      return cached;
+    }
+
+    private static long size(Optional<ModuleBundle> bundle) {
+      return bundle.map(b -> b.size).orElse(0L);
+    }
+
+    private static class Cached {
+      final Optional<ModuleBundle> bundle;
+      final long expiresAt;
+
+      Cached(Optional<ModuleBundle> bundle, long expiresAt) {
+        this.bundle = bundle;
+        this.expiresAt = expiresAt;
+      }
+    }
+  }
+}
@@ -0,0 +1,96 @@
+/*
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package co.actioniq.ivy.s3;
+
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes object content straight from the response stream into a FileChannel.  This skips the
+ * SDK's buffered/digest/progress stream layers and lets the file be preallocated from the known
+ * content length.
+ */
+class ObjectFiles {
+  private ObjectFiles() {}
+
+  /**
+   * Writes the object content to dest, updating the digests with every byte written
+   */
+  static void write(S3Object object, File dest, Digests digests) throws IOException {
+    long length = object.getObjectMetadata().getContentLength();
+    S3ObjectInputStream in = object.getObjectContent();
+    try (RandomAccessFile raf = new RandomAccessFile(dest, "rw"); FileChannel out = raf.getChannel()) {
+      // Preallocating (which also truncates any previous content) lets the filesystem lay out the file in one go
+      raf.setLength(length);
+
+      ReadableByteChannel src = Channels.newChannel(digests.wrap(in));
+      long position = 0;
+      while (position < length) {
+        long transferred = out.transferFrom(src, position, length - position);
+        if (transferred <= 0) {
+          break;
+        }
+        position += transferred;
+      }
+
+      if (position != length) {
+        throw new IOException("Premature end of content for " + object.getKey() + ": got " + position + " of " + length + " bytes");
+      }
+    } catch (IOException | RuntimeException e) {
+      // Don't drain whatever is left of a failed response, just drop the connection
+      in.abort();
+      throw e;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Appends the object content (e.g. the rest of a ranged GET) to dest.  What was written before a failure
+   * stays in dest, so the next attempt can carry on from its length.
+   */
+  static void append(S3Object object, File dest, Digests digests) throws IOException {
+    long length = object.getObjectMetadata().getContentLength();
+    S3ObjectInputStream in = object.getObjectContent();
+    try (FileChannel out = FileChannel.open(dest.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+      long start = out.size();
+      ReadableByteChannel src = Channels.newChannel(digests.wrap(in));
+      long position = start;
+      while (position < start + length) {
+        long transferred = out.transferFrom(src, position, start + length - position);
+        if (transferred <= 0) {
+          break;
+        }
+        position += transferred;
+      }
+
+      if (position != start + length) {
+        throw new IOException("Premature end of content for " + object.getKey() + ": got " + (position - start) + " of " + length + " bytes");
+      }
+    } catch (IOException | RuntimeException e) {
+      in.abort();
+      throw e;
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,172 @@
+/*
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package co.actioniq.ivy.s3;
+
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import org.apache.ivy.util.Message;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.net.URL;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The content of a GET that keeps its pooled HTTP connection healthy however much of it was read.  On
+ * close a small remainder is drained so the connection goes back to the pool, a large one is aborted
+ * since a new connection is cheaper than downloading bytes nobody wants.  (The SDK's own close aborts
+ * whenever anything is left, even a few bytes.)
+ *
+ * Streams that are garbage collected without being closed are aborted the next time a stream is opened
+ * and reported with the stack trace of whoever opened them.
+ */
+class ObjectStream extends FilterInputStream {
+  // Remainders up to this size are read to the end, larger ones are aborted
+  static final long DrainLimit = 64 * 1024;
+
+  private static final ReferenceQueue<ObjectStream> collected = new ReferenceQueue<>();
+  private static final Set<Tracker> open = ConcurrentHashMap.newKeySet();
+  private static final AtomicLong leaked = new AtomicLong();
+
+  // Holds what's needed to clean up after a leaked stream, but not the stream itself
+  private static class Tracker extends PhantomReference<ObjectStream> {
+    final S3ObjectInputStream in;
+    final URL url;
+    final Throwable openedAt;
+
+    Tracker(ObjectStream stream, S3ObjectInputStream in, URL url) {
+      super(stream, collected);
+      this.in = in;
+      this.url = url;
+      this.openedAt = new Throwable("Opened here");
+    }
+  }
+
+  private final S3ObjectInputStream content;
+  private final Tracker tracker;
+  private long remaining;
+  private boolean closed = false;
+
+  private ObjectStream(S3ObjectInputStream in, URL url, long length) {
+    super(in);
+    this.content = in;
+    this.remaining = length;
+    this.tracker = new Tracker(this, in, url);
+  }
+
+  /**
+   * Wraps the content of object (fetched from url, which is only used for diagnostics)
+   */
+  static ObjectStream open(URL url, S3Object object) {
+    reclaimLeaked();
+    ObjectStream stream = new ObjectStream(object.getObjectContent(), url, object.getObjectMetadata().getContentLength());
+    open.add(stream.tracker);
+    return stream;
+  }
+
+  /**
+   * The number of streams currently open
+   */
+  static int openStreams() {
+    reclaimLeaked();
+    return open.size();
+  }
+
+  /**
+   * The number of streams that were garbage collected without being closed
+   */
+  static long leakedStreams() {
+    reclaimLeaked();
+    return leaked.get();
+  }
+
+  private static void reclaimLeaked() {
+    Tracker tracker;
+    while ((tracker = (Tracker)collected.poll()) != null) {
+      if (open.remove(tracker)) {
+        leaked.incrementAndGet();
+        Message.warn("ObjectStream - A stream of " + tracker.url + " was never closed, aborting its connection");
+        Message.debug(tracker.openedAt);
+        tracker.in.abort();
+      }
+    }
+  }
+
+  @Override
+  public int read() throws IOException {
+    int b = super.read();
+    if (b >= 0) {
+      remaining--;
+    }
+    return b;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    int n = super.read(b, off, len);
+    if (n > 0) {
+      remaining -= n;
+    }
+    return n;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    long skipped = super.skip(n);
+    remaining -= skipped;
+    return skipped;
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    open.remove(tracker);
+    tracker.clear();
+
+    if (remaining > DrainLimit || !drain()) {
+      content.abort();
+    }
+    content.close();
+  }
+
+  // Reads up to DrainLimit bytes looking for the end, true if it got there
+  private boolean drain() {
+    byte[] buffer = new byte[8192];
+    long drained = 0;
+    try {
+      int n;
+      while ((n = content.read(buffer)) >= 0) {
+        drained += n;
+        if (drained > DrainLimit) {
+          return false;
+        }
+      }
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+}
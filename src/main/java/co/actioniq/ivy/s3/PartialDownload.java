@@ -0,0 +1,158 @@
+/*
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package co.actioniq.ivy.s3;
+
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Date;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * The stored bytes of an object downloaded so far, kept next to the destination in dest.s3part along with
+ * a small dest.s3part.properties record of which object they belong to (URL, ETag, length, last modified
+ * and checksum metadata).  A download that fails part way carries on from there on the next attempt, in
+ * this process or the next one, as long as the object still has the same ETag.
+ *
+ * Only used while holding the DestinationLock of dest.
+ */
+class PartialDownload {
+  static final String Suffix = ".s3part";
+
+  private final File part;
+  private final File record;
+
+  // The whole object's metadata, set by start or resume
+  private ObjectMetadata meta = null;
+  // Computed while streaming, only valid if every byte of the part went through it in a single pass
+  private Digests digests = Digests.none();
+  private boolean singlePass = false;
+
+  PartialDownload(File dest) {
+    this.part = new File(dest.getPath() + Suffix);
+    this.record = new File(dest.getPath() + Suffix + ".properties");
+  }
+
+  File file() {
+    return part;
+  }
+
+  ObjectMetadata metadata() {
+    return meta;
+  }
+
+  long offset() {
+    return part.length();
+  }
+
+  boolean isComplete() {
+    return meta != null && part.length() == meta.getContentLength();
+  }
+
+  /**
+   * Picks up what an earlier attempt left for src.  False (after discarding them) if the part and
+   * record are missing, unreadable or for another object.
+   */
+  boolean resume(URL src) throws IOException {
+    Properties properties = new Properties();
+    try (InputStream in = Files.newInputStream(record.toPath())) {
+      properties.load(in);
+    } catch (IOException | IllegalArgumentException e) {
+      discard();
+      return false;
+    }
+
+    long length = Long.parseLong(properties.getProperty("length", "-1"));
+    if (!part.exists() || !src.toExternalForm().equals(properties.getProperty("url")) || part.length() > length) {
+      discard();
+      return false;
+    }
+
+    meta = new ObjectMetadata();
+    meta.setContentLength(length);
+    meta.setHeader(Headers.ETAG, properties.getProperty("etag"));
+    meta.setLastModified(new Date(Long.parseLong(properties.getProperty("lastModified", "0"))));
+    Map<String,String> userMetadata = new TreeMap<>();
+    for (String key : properties.stringPropertyNames()) {
+      if (key.startsWith("meta.")) {
+        userMetadata.put(key.substring("meta.".length()), properties.getProperty(key));
+      }
+    }
+    meta.setUserMetadata(userMetadata);
+    singlePass = false;
+    return true;
+  }
+
+  /**
+   * Starts over for the object with this (whole object) metadata, recording it so the download can be resumed
+   */
+  void start(URL src, ObjectMetadata meta) throws IOException {
+    discard();
+
+    Properties properties = new Properties();
+    properties.setProperty("url", src.toExternalForm());
+    properties.setProperty("etag", meta.getETag());
+    properties.setProperty("length", String.valueOf(meta.getContentLength()));
+    properties.setProperty("lastModified", String.valueOf(meta.getLastModified().getTime()));
+    meta.getUserMetadata().forEach((key, value) -> properties.setProperty("meta." + key, value));
+    try (OutputStream out = Files.newOutputStream(record.toPath())) {
+      properties.store(out, null);
+    }
+
+    this.meta = meta;
+    this.digests = Checksums.forETag(meta);
+    this.singlePass = true;
+  }
+
+  /**
+   * Appends the content of object, the whole object after start or the rest of it after resume
+   */
+  void append(S3Object object) throws IOException {
+    try {
+      ObjectFiles.append(object, part, singlePass ? digests : Digests.none());
+    } catch (IOException | RuntimeException e) {
+      singlePass = false;
+      throw e;
+    }
+  }
+
+  /**
+   * The digests of the complete part to check against the ETag, computed while streaming when the
+   * download went through in one go and from the file otherwise
+   */
+  Digests storedDigests() throws IOException {
+    if (singlePass) {
+      return digests;
+    }
+    Digests res = Checksums.forETag(meta);
+    res.update(part);
+    return res;
+  }
+
+  void discard() throws IOException {
+    Files.deleteIfExists(part.toPath());
+    Files.deleteIfExists(record.toPath());
+    meta = null;
+    singlePass = false;
+  }
+}
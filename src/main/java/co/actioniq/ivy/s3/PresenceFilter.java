@@ -0,0 +1,153 @@
+/*
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package co.actioniq.ivy.s3;
+
+import org.apache.ivy.util.Message;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * What a root could possibly contain: the sorted set of its keys and "directories" down to Depth levels
+ * (e.g. co.actioniq/foo/ for an Ivy layout, com/example/ for a Maven one).  A URL whose first Depth levels
+ * aren't in the set is definitely absent, so a resolver in a chain can pass on it without asking S3.
+ *
+ * The set is built in the background from listings of the root, and rebuilt the same way once it is older
+ * than refreshMillis.  Until the first build completes everything might be present.  Publishes through
+ * this resolver are added right away, publishes from elsewhere show up with the next rebuild.
+ */
+class PresenceFilter {
+  static final int Depth = 2;
+
+  interface Lister {
+    /**
+     * The children of the directory (URL ending with a slash), directories ending with a slash
+     */
+    List<String> list(String dir) throws IOException;
+  }
+
+  private final String root;
+  private final long refreshMillis;
+  private final Lister lister;
+  private final AtomicBoolean building = new AtomicBoolean();
+
+  private volatile NavigableSet<String> present = null;
+  private volatile long builtAt = 0;
+  // The set being built, so what's published in the meantime isn't lost when it replaces present
+  private NavigableSet<String> next = null;
+
+  PresenceFilter(String root, long refreshMillis, Lister lister) {
+    this.root = Strings.stripSuffix(root, "/") + "/";
+    this.refreshMillis = refreshMillis;
+    this.lister = lister;
+  }
+
+  /**
+   * False only if the URL is definitely not there
+   */
+  boolean mightContain(String url) {
+    refreshIfStale();
+    NavigableSet<String> snapshot = present;
+    if (snapshot == null || !url.startsWith(root)) {
+      return true;
+    }
+    return snapshot.contains(entryFor(url.substring(root.length())));
+  }
+
+  /**
+   * Records a URL that was just published
+   */
+  synchronized void add(String url) {
+    if (!url.startsWith(root)) {
+      return;
+    }
+    String relative = url.substring(root.length());
+    for (NavigableSet<String> set : Arrays.asList(present, next)) {
+      if (set != null) {
+        set.add(entryFor(relative));
+      }
+    }
+  }
+
+  // The first Depth levels of relative, or all of it when it isn't that deep
+  private static String entryFor(String relative) {
+    int idx = -1;
+    for (int level = 0; level < Depth; level++) {
+      idx = relative.indexOf('/', idx + 1);
+      if (idx < 0 || idx == relative.length() - 1) {
+        return relative;
+      }
+    }
+    return relative.substring(0, idx + 1);
+  }
+
+  private void refreshIfStale() {
+    boolean stale = present == null || System.currentTimeMillis() - builtAt > refreshMillis;
+    if (stale && building.compareAndSet(false, true)) {
+      Thread thread = new Thread(() -> {
+        try {
+          refresh();
+        } catch (IOException | RuntimeException e) {
+          Message.verbose("PresenceFilter - Unable to list " + root + ", every lookup goes to S3: " + e.getMessage());
+          builtAt = System.currentTimeMillis(); // Don't retry on every lookup
+        } finally {
+          building.set(false);
+        }
+      }, "PresenceFilter");
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  /**
+   * Lists the root down to Depth levels and replaces the set
+   */
+  void refresh() throws IOException {
+    long start = System.currentTimeMillis();
+    NavigableSet<String> set = new ConcurrentSkipListSet<>();
+    synchronized (this) {
+      next = set;
+    }
+    try {
+      collect(root, 1, set);
+    } catch (IOException | RuntimeException e) {
+      synchronized (this) {
+        next = null;
+      }
+      throw e;
+    }
+    synchronized (this) {
+      present = set;
+      next = null;
+      builtAt = System.currentTimeMillis();
+    }
+    Message.verbose("PresenceFilter - " + root + " has " + set.size() + " entries (listed in " + (builtAt - start) + "ms)");
+  }
+
+  private void collect(String dir, int level, NavigableSet<String> set) throws IOException {
+    for (String child : lister.list(dir)) {
+      if (!child.startsWith(root)) {
+        continue;
+      }
+      set.add(child.substring(root.length()));
+      if (level < Depth && child.endsWith("/")) {
+        collect(child, level + 1, set);
+      }
+    }
+  }
+}
@@ -0,0 +1,257 @@
+/*
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package co.actioniq.ivy.s3;
+
+import com.amazonaws.services.s3.model.PartETag;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * The local side of a multipart upload of a large artifact, kept in ~/.ivy2/s3-uploads/<sha1 of the destination URL>/
+ * so that a publish that dies part way carries on where it stopped the next time:
+ *
+ * upload.zip is the artifact as it's stored (compressed), so it isn't compressed again, and
+ * upload.properties records the source file it came from, its content checksums, the multipart upload ID and
+ * the ETags of the parts uploaded so far.
+ *
+ * An open ResumableUpload holds a DestinationLock on the directory, so only one thread or process works on a
+ * destination at a time.
+ */
+class ResumableUpload implements AutoCloseable {
+  // Overrides ~/.ivy2/s3-uploads
+  static final String DirProperty = "co.actioniq.ivy.s3.uploads";
+  // S3 wants parts of at least 5MB (except the last one) and at most 10000 of them
+  static final long MinPartSize = 8 * 1024 * 1024;
+  private static final int MaxParts = 10000;
+  private static final String Name = "upload";
+
+  private final File content;
+  private final File record;
+  private final DestinationLock lock;
+  private final Properties properties = new Properties();
+
+  private ResumableUpload(File dir, DestinationLock lock) {
+    this.content = new File(dir, Name + ".zip");
+    this.record = new File(dir, Name + ".properties");
+    this.lock = lock;
+  }
+
+  /**
+   * The upload state for dest, blocking while another thread or process has it open
+   */
+  static ResumableUpload open(URL dest) throws IOException {
+    File dir = new File(uploadsDir(), sha1(dest.toExternalForm()));
+    // The lock files of every upload go in one directory, leaving the upload's own directory free to delete
+    Files.createDirectories(new File(uploadsDir(), DestinationLock.LockDirName).toPath());
+    DestinationLock lock = DestinationLock.acquire(new File(dir, Name));
+    ResumableUpload res = new ResumableUpload(dir, lock);
+    try {
+      res.load();
+    } catch (IOException | RuntimeException e) {
+      lock.close();
+      throw e;
+    }
+    return res;
+  }
+
+  private static File uploadsDir() {
+    String dir = System.getProperty(DirProperty);
+    return dir == null ? new File(Constants.DotIvyDir, "s3-uploads") : new File(dir);
+  }
+
+  private void load() throws IOException {
+    if (!record.exists()) {
+      return;
+    }
+    try (InputStream in = Files.newInputStream(record.toPath())) {
+      properties.load(in);
+    } catch (IOException | IllegalArgumentException e) {
+      // Unreadable, start over
+      discard();
+    }
+  }
+
+  /**
+   * Whether this holds what an earlier attempt left for src (unchanged since) to dest with at least these checksums
+   */
+  boolean isFor(URL dest, File src, Set<String> algorithms) {
+    return content.exists() &&
+        dest.toExternalForm().equals(properties.getProperty("url")) &&
+        src.getAbsolutePath().equals(properties.getProperty("source")) &&
+        String.valueOf(src.length()).equals(properties.getProperty("sourceLength")) &&
+        String.valueOf(src.lastModified()).equals(properties.getProperty("sourceLastModified")) &&
+        String.valueOf(content.length()).equals(properties.getProperty("length")) &&
+        algorithms.stream().allMatch(algorithm -> properties.containsKey("digest." + algorithm));
+  }
+
+  /**
+   * Starts over with the compressed file (moved in place) and the checksums of src
+   */
+  void start(URL dest, File src, File compressed, Digests contentDigests) throws IOException {
+    discard();
+    Files.move(compressed.toPath(), content.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+    long length = content.length();
+    properties.setProperty("url", dest.toExternalForm());
+    properties.setProperty("source", src.getAbsolutePath());
+    properties.setProperty("sourceLength", String.valueOf(src.length()));
+    properties.setProperty("sourceLastModified", String.valueOf(src.lastModified()));
+    properties.setProperty("length", String.valueOf(length));
+    properties.setProperty("partSize", String.valueOf(Math.max(MinPartSize, (length + MaxParts - 1) / MaxParts)));
+    for (String algorithm : contentDigests.algorithms()) {
+      properties.setProperty("digest." + algorithm, contentDigests.hex(algorithm));
+    }
+    store();
+  }
+
+  /**
+   * The compressed artifact to upload
+   */
+  File file() {
+    return content;
+  }
+
+  Digests contentDigests() {
+    Map<String,String> hex = new TreeMap<>();
+    for (String key : properties.stringPropertyNames()) {
+      if (key.startsWith("digest.")) {
+        hex.put(key.substring("digest.".length()), properties.getProperty(key));
+      }
+    }
+    return Digests.completed(hex);
+  }
+
+  synchronized String uploadId() {
+    return properties.getProperty("uploadId");
+  }
+
+  /**
+   * Records a new multipart upload, forgetting the parts of any previous one
+   */
+  synchronized void started(String uploadId) throws IOException {
+    properties.stringPropertyNames().stream().filter(key -> key.startsWith("part.")).forEach(properties::remove);
+    properties.setProperty("uploadId", uploadId);
+    store();
+  }
+
+  int partCount() {
+    long length = content.length();
+    return length == 0 ? 1 : (int)((length + partSize() - 1) / partSize());
+  }
+
+  long partOffset(int partNumber) {
+    return (partNumber - 1) * partSize();
+  }
+
+  long partLength(int partNumber) {
+    return Math.min(partSize(), content.length() - partOffset(partNumber));
+  }
+
+  private long partSize() {
+    return Long.parseLong(properties.getProperty("partSize"));
+  }
+
+  /**
+   * The ETag recorded for this part of the current upload, or null if it wasn't uploaded yet
+   */
+  synchronized String partETag(int partNumber) {
+    return properties.getProperty("part." + partNumber);
+  }
+
+  synchronized void partUploaded(PartETag part) throws IOException {
+    properties.setProperty("part." + part.getPartNumber(), part.getETag());
+    store();
+  }
+
+  synchronized void discard() throws IOException {
+    Files.deleteIfExists(content.toPath());
+    Files.deleteIfExists(record.toPath());
+    properties.clear();
+  }
+
+  // Written to a temp file first so a crash never leaves half a record
+  private void store() throws IOException {
+    File temp = lock.tempFile();
+    try {
+      try (OutputStream out = Files.newOutputStream(temp.toPath())) {
+        properties.store(out, null);
+      }
+      try {
+        Files.move(temp.toPath(), record.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp.toPath(), record.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      Files.deleteIfExists(temp.toPath());
+    }
+  }
+
+  public void close() throws IOException {
+    lock.close();
+  }
+
+  /**
+   * Deletes the local state of these (aborted) upload IDs, along with the lock files of uploads that
+   * finished more than maxAgeMillis ago
+   */
+  static void forget(Collection<String> uploadIds, long maxAgeMillis) throws IOException {
+    File[] dirs = uploadsDir().listFiles(dir -> dir.isDirectory() && !dir.getName().equals(DestinationLock.LockDirName));
+    if (dirs == null) {
+      return;
+    }
+    Files.createDirectories(new File(uploadsDir(), DestinationLock.LockDirName).toPath());
+
+    long cutoff = System.currentTimeMillis() - maxAgeMillis;
+    for (File dir : dirs) {
+      File record = new File(dir, Name + ".properties");
+      File lockFile = DestinationLock.lockFile(new File(dir, Name));
+      if (record.exists()) {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(record.toPath())) {
+          properties.load(in);
+        } catch (IOException | IllegalArgumentException e) {
+          continue;
+        }
+        if (uploadIds.contains(properties.getProperty("uploadId"))) {
+          Files.deleteIfExists(new File(dir, Name + ".zip").toPath());
+          Files.deleteIfExists(record.toPath());
+        }
+      } else if (lockFile.lastModified() < cutoff) {
+        Files.deleteIfExists(lockFile.toPath());
+        Files.deleteIfExists(dir.toPath());
+      }
+    }
+  }
+
+  private static String sha1(String s) {
+    Digests digests = Digests.of(Collections.singletonList("sha1"));
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    digests.update(bytes, 0, bytes.length);
+    return digests.hex("sha1");
+  }
+}
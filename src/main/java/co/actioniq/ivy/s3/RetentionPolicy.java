@@ -0,0 +1,59 @@
+/*
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package co.actioniq.ivy.s3;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Which revisions of a module to keep: the keepLast most recently published ones and/or the ones published
+ * within the last maxAgeMillis.  A revision kept by either rule is kept, a rule <= 0 is off.  The most recently
+ * published revision is always kept so a module that hasn't been published for a while still resolves.
+ */
+class RetentionPolicy {
+  final int keepLast;
+  final long maxAgeMillis;
+
+  RetentionPolicy(int keepLast, long maxAgeMillis) {
+    if (keepLast <= 0 && maxAgeMillis <= 0) {
+      throw new IllegalArgumentException("A retention policy needs keepLast or maxAgeMillis (or both)");
+    }
+    this.keepLast = keepLast;
+    this.maxAgeMillis = maxAgeMillis;
+  }
+
+  /**
+   * The revisions (keyed by their publication time) this policy doesn't keep, oldest first
+   */
+  List<String> expired(Map<String,Long> publishedAt, long now) {
+    List<Map.Entry<String,Long>> newestFirst = new ArrayList<>(publishedAt.entrySet());
+    newestFirst.sort(Map.Entry.<String,Long>comparingByValue(Comparator.reverseOrder()));
+
+    List<String> res = new ArrayList<>();
+    for (int i = newestFirst.size() - 1; i >= 0; i--) {
+      boolean keptByCount = i == 0 || (keepLast > 0 && i < keepLast);
+      boolean keptByAge = maxAgeMillis > 0 && newestFirst.get(i).getValue() >= now - maxAgeMillis;
+      if (!keptByCount && !keptByAge) {
+        res.add(newestFirst.get(i).getKey());
+      }
+    }
+    return res;
+  }
+
+  public String toString() {
+    return "keepLast = " + keepLast + ", maxAgeMillis = " + maxAgeMillis;
+  }
+}
@@ -0,0 +1,73 @@
+/*
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package co.actioniq.ivy.s3;
+
+import org.apache.ivy.util.url.URLHandler.URLInfo;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A record of the S3 objects a resolve used: one line per URL with its ETag, size and last modified
+ * time, separated by tabs and sorted by URL so the file diffs nicely.
+ */
+class S3Lockfile {
+  private S3Lockfile() {}
+
+  static Map<String,S3URLInfo> read(File file) throws IOException {
+    Map<String,S3URLInfo> res = new TreeMap<>();
+    try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        String[] fields = line.split("\t");
+        if (fields.length != 4) {
+          throw new IOException("Invalid line in lockfile " + file + ": " + line);
+        }
+        try {
+          res.put(fields[0], new S3URLInfo(true, Long.parseLong(fields[2]), Long.parseLong(fields[3]), fields[1]));
+        } catch (NumberFormatException e) {
+          throw new IOException("Invalid line in lockfile " + file + ": " + line, e);
+        }
+      }
+    }
+    return res;
+  }
+
+  /**
+   * Writes the infos that have an ETag (i.e. that came from S3), replacing the file atomically
+   */
+  static void write(File file, Map<String,? extends URLInfo> infos) throws IOException {
+    File tmp = new File(file.getPath() + ".tmp");
+    try (BufferedWriter writer = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+      writer.write("# S3 resolution lockfile: url, ETag, content length, last modified\n");
+      for (Map.Entry<String,? extends URLInfo> entry : new TreeMap<>(infos).entrySet()) {
+        URLInfo info = entry.getValue();
+        if (info instanceof S3URLInfo && ((S3URLInfo)info).getETag() != null) {
+          writer.write(entry.getKey() + "\t" + ((S3URLInfo)info).getETag() + "\t" + info.getContentLength() + "\t" + info.getLastModified() + "\n");
+        }
+      }
+    }
+    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+}
@@ -0,0 +1,99 @@
+/*
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package co.actioniq.ivy.s3;
+
+import org.apache.ivy.util.url.URLHandler.URLInfo;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Short lived cache of HEAD results (including 404s) keyed by URL so bulk checks
+ * and listings can answer later getURLInfo calls without another round trip.
+ *
+ * Pinned entries (e.g. from a lockfile) never expire, they are only replaced by fresh results.
+ * While recording, every reachable result handed out is also kept so it can be written back out.
+ */
+class S3MetadataCache {
+  private static final long DefaultTTLMillis = TimeUnit.MINUTES.toMillis(1);
+
+  private final Map<String,Entry> entries = new ConcurrentHashMap<>();
+  private final Map<String,URLInfo> recorded = new ConcurrentHashMap<>();
+  private final long ttlMillis;
+  private volatile boolean recording = false;
+
+  S3MetadataCache() {
+    this(DefaultTTLMillis);
+  }
+
+  S3MetadataCache(long ttlMillis) {
+    this.ttlMillis = ttlMillis;
+  }
+
+  Optional<URLInfo> get(URL url) {
+    String key = url.toExternalForm();
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      return Optional.empty();
+    }
+    if (entry.expiresAt < System.currentTimeMillis()) {
+      entries.remove(key, entry);
+      return Optional.empty();
+    }
+    record(key, entry.info);
+    return Optional.of(entry.info);
+  }
+
+  void put(URL url, URLInfo info) {
+    String key = url.toExternalForm();
+    entries.put(key, new Entry(info, System.currentTimeMillis() + ttlMillis));
+    record(key, info);
+  }
+
+  void pin(String url, URLInfo info) {
+    entries.put(url, new Entry(info, Long.MAX_VALUE));
+  }
+
+  void startRecording() {
+    recording = true;
+  }
+
+  Map<String,URLInfo> recorded() {
+    return new HashMap<>(recorded);
+  }
+
+  private void record(String key, URLInfo info) {
+    if (recording && info.isReachable()) {
+      recorded.put(key, info);
+    }
+  }
+
+  void invalidate(URL url) {
+    entries.remove(url.toExternalForm());
+  }
+
+  private static class Entry {
+    final URLInfo info;
+    final long expiresAt;
+
+    Entry(URLInfo info, long expiresAt) {
+      this.info = info;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
@@ -0,0 +1,167 @@
+/*
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package co.actioniq.ivy.s3;
+
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * Read only random access to an S3 object.  Each read that misses the current block fetches the next
+ * block (at least BlockSize bytes) with a ranged GET, so sequential small reads don't each cost a request.
+ *
+ * Every GET is constrained to the ETag the channel was opened with, so if the object is replaced while
+ * it's being read the read fails instead of mixing bytes from two versions.
+ *
+ * Positions are relative to the start of the bytes the channel exposes, which are a range of the object
+ * (offset to offset + size): the artifact itself when it's stored uncompressed in its zip (see open).
+ */
+class S3SeekableByteChannel implements SeekableByteChannel {
+  private static final int BlockSize = 64 * 1024;
+
+  private final URL url;
+  private final long offset;
+  private final long size;
+  private final String etag;
+
+  private long position = 0;
+  // The block's bytes and where they start in the object
+  private byte[] block = new byte[0];
+  private long blockStart = 0;
+  private boolean open = true;
+
+  private S3SeekableByteChannel(URL url, long offset, long size, String etag) {
+    this.url = url;
+    this.offset = offset;
+    this.size = size;
+    this.etag = etag;
+  }
+
+  /**
+   * A channel over the artifact in an object of this length: the entry's bytes when S3URLHandler stored it
+   * as is in its zip (archives are), otherwise the whole object as stored.  The block read to find out is
+   * kept for the reads that follow.
+   */
+  static S3SeekableByteChannel open(URL url, long length, String etag) throws IOException {
+    S3SeekableByteChannel object = new S3SeekableByteChannel(url, 0, length, etag);
+    ByteBuffer header = ByteBuffer.allocate((int)Math.min(length, SingleEntryZip.LocalHeaderSize));
+    while (header.hasRemaining() && object.read(header) > 0) {
+      // Usually a single read
+    }
+
+    long[] entry = SingleEntryZip.storedEntry(header.array(), length);
+    if (entry == null) {
+      object.position(0);
+      return object;
+    }
+    S3SeekableByteChannel res = new S3SeekableByteChannel(url, entry[0], entry[1], etag);
+    res.block = object.block;
+    res.blockStart = object.blockStart;
+    return res;
+  }
+
+  public synchronized int read(ByteBuffer dst) throws IOException {
+    ensureOpen();
+    if (position >= size) {
+      return -1;
+    }
+    if (!dst.hasRemaining()) {
+      return 0;
+    }
+
+    long objectPosition = offset + position;
+    if (objectPosition < blockStart || objectPosition >= blockStart + block.length) {
+      fetch(objectPosition, Math.max(dst.remaining(), BlockSize));
+    }
+
+    int blockOffset = (int)(objectPosition - blockStart);
+    int count = (int)Math.min(Math.min(dst.remaining(), block.length - blockOffset), size - position);
+    dst.put(block, blockOffset, count);
+    position += count;
+    return count;
+  }
+
+  // Fetches the block of the object at start, stopping at the end of the exposed bytes
+  private void fetch(long start, int length) throws IOException {
+    long end = Math.min(offset + size, start + length) - 1;
+    S3Object object = AsyncS3Client.join(S3URLHandler.client().getObject(url, cbk ->
+        new GetObjectRequest(cbk.bucket(), cbk.key()).withRange(start, end).withMatchingETagConstraint(etag)));
+    if (object == null) {
+      throw new IOException(url + " changed while it was being read");
+    }
+
+    byte[] bytes = new byte[(int)(end - start + 1)];
+    try (InputStream in = ObjectStream.open(url, object)) {
+      int read = 0;
+      while (read < bytes.length) {
+        int n = in.read(bytes, read, bytes.length - read);
+        if (n < 0) {
+          throw new IOException("Unexpected end of " + url + " at " + (start + read));
+        }
+        read += n;
+      }
+    }
+    block = bytes;
+    blockStart = start;
+  }
+
+  public int write(ByteBuffer src) {
+    throw new NonWritableChannelException();
+  }
+
+  public synchronized long position() throws IOException {
+    ensureOpen();
+    return position;
+  }
+
+  public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+    ensureOpen();
+    if (newPosition < 0) {
+      throw new IllegalArgumentException("Negative position: " + newPosition);
+    }
+    position = newPosition;
+    return this;
+  }
+
+  public long size() throws IOException {
+    ensureOpen();
+    return size;
+  }
+
+  public SeekableByteChannel truncate(long size) {
+    throw new NonWritableChannelException();
+  }
+
+  public synchronized boolean isOpen() {
+    return open;
+  }
+
+  public synchronized void close() {
+    open = false;
+    block = new byte[0];
+  }
+
+  private void ensureOpen() throws IOException {
+    if (!open) {
+      throw new ClosedChannelException();
+    }
+  }
+}
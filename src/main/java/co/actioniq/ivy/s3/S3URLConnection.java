@@ -1,35 +1,204 @@
 package co.actioniq.ivy.s3;
 
 import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.S3Object;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.channels.SeekableByteChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
-class S3URLConnection extends URLConnection {
-  private S3URLUtil s3URLUtil = new S3URLUtil();
+/**
+ * URLConnection for s3:// URLs.  Header queries are answered from a single HEAD of the object and a
+ * "Range: bytes=..." request property turns the GET into a ranged GET.  For random access (e.g. reading
+ * just the central directory and a few entries of a large jar) use getChannel.
+ *
+ * The input stream's bytes are the object as stored in S3, i.e. still zipped for artifacts published by
+ * S3URLHandler.  The channel reads through that zip for archives (jars and the like), which it stores
+ * uncompressed.
+ */
+public class S3URLConnection extends URLConnection {
+  private static final Pattern RangePattern = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
+  private ObjectMetadata metadata = null;
+  private Map<String,List<String>> headers = null;
+  private InputStream inputStream = null;
 
   S3URLConnection(URL url) {
     super(url);
   }
 
   @Override
-  public InputStream getInputStream() throws IOException {
-    ClientBucketKey clientBucketKey = s3URLUtil.getClientBucketAndKey(url);
-    S3Object object;
+  public void connect() throws IOException {
+    // Nothing to set up, the HEAD and GET are only made when needed
+    connected = true;
+  }
+
+  @Override
+  public synchronized InputStream getInputStream() throws IOException {
+    if (inputStream == null) {
+      connect();
+      long[] range = requestedRange();
+      S3Object object = get(cbk -> {
+        GetObjectRequest request = new GetObjectRequest(cbk.bucket(), cbk.key());
+        if (range == null) {
+          return request;
+        }
+        return range[1] < 0 ? request.withRange(range[0]) : request.withRange(range[0], range[1]);
+      });
+      inputStream = ObjectStream.open(url, object);
+    }
+    return inputStream;
+  }
+
+  /**
+   * A read only channel that fetches the parts being read with ranged GETs.  For an archive published by
+   * S3URLHandler it covers the archive inside the stored zip, otherwise the object as it is.
+   */
+  public SeekableByteChannel getChannel() throws IOException {
+    ObjectMetadata meta = head();
+    return S3SeekableByteChannel.open(url, meta.getContentLength(), meta.getETag());
+  }
+
+  @Override
+  public int getContentLength() {
+    long length = getContentLengthLong();
+    return length > Integer.MAX_VALUE ? -1 : (int)length;
+  }
+
+  @Override
+  public long getContentLengthLong() {
+    return headOrNull() == null ? -1 : metadata.getContentLength();
+  }
+
+  @Override
+  public long getLastModified() {
+    return headOrNull() == null || metadata.getLastModified() == null ? 0 : metadata.getLastModified().getTime();
+  }
+
+  @Override
+  public String getContentType() {
+    return headOrNull() == null ? null : metadata.getContentType();
+  }
+
+  @Override
+  public String getHeaderField(String name) {
+    List<String> values = getHeaderFields().get(name);
+    return values == null || values.isEmpty() ? null : values.get(values.size() - 1);
+  }
+
+  @Override
+  public String getHeaderFieldKey(int n) {
+    List<String> keys = new ArrayList<>(getHeaderFields().keySet());
+    return n < 0 || n >= keys.size() ? null : keys.get(n);
+  }
+
+  @Override
+  public String getHeaderField(int n) {
+    String key = getHeaderFieldKey(n);
+    return key == null ? null : getHeaderField(key);
+  }
+
+  /**
+   * The HEAD response headers, including x-amz-meta-* user metadata.  Keys are case insensitive.
+   */
+  @Override
+  public synchronized Map<String,List<String>> getHeaderFields() {
+    if (headers == null) {
+      Map<String,List<String>> fields = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+      if (headOrNull() != null) {
+        metadata.getRawMetadata().forEach((name, value) ->
+            fields.put(name, Collections.singletonList(value instanceof Date ? httpDate((Date)value) : String.valueOf(value))));
+        metadata.getUserMetadata().forEach((name, value) ->
+            fields.put("x-amz-meta-" + name, Collections.singletonList(value)));
+      }
+      headers = Collections.unmodifiableMap(fields);
+    }
+    return headers;
+  }
+
+  // The header methods can't throw so failures to HEAD mean there are no headers, like HttpURLConnection
+  private ObjectMetadata headOrNull() {
+    try {
+      return head();
+    } catch (IOException | RuntimeException e) {
+      return null;
+    }
+  }
+
+  private synchronized ObjectMetadata head() throws IOException {
+    if (metadata == null) {
+      connect();
+      try {
+        metadata = AsyncS3Client.join(S3URLHandler.client().getObjectMetadata(url));
+      } catch (AmazonS3Exception e) {
+        throw notFoundOr(e);
+      }
+    }
+    return metadata;
+  }
+
+  private S3Object get(Function<ClientBucketKey,GetObjectRequest> request) throws IOException {
     try {
-      object = clientBucketKey.getObject(clientBucketKey.bucket(), clientBucketKey.key());
+      return AsyncS3Client.join(S3URLHandler.client().getObject(url, request));
     } catch (AmazonS3Exception e) {
-      clientBucketKey = s3URLUtil.getNewClientBucketAndKey(url);
-      object = clientBucketKey.getObject(clientBucketKey.bucket(), clientBucketKey.key());
+      throw notFoundOr(e);
     }
-    return object.getObjectContent();
   }
 
-  @Override
-  public void connect() throws IOException {
-    // do nothing
+  private IOException notFoundOr(AmazonS3Exception e) {
+    if (e.getStatusCode() == 404) {
+      return new FileNotFoundException(url.toString());
+    }
+    return new IOException("S3 request for " + url + " failed: " + e.getMessage(), e);
+  }
+
+  // The inclusive [start, end] of the Range request property (end is -1 when open ended), or null for the whole object
+  private long[] requestedRange() throws IOException {
+    String range = getRequestProperty("Range");
+    if (range == null) {
+      return null;
+    }
+
+    Matcher matcher = RangePattern.matcher(range.trim());
+    if (!matcher.matches() || (matcher.group(1).isEmpty() && matcher.group(2).isEmpty())) {
+      throw new IOException("Unsupported Range for " + url + ": " + range);
+    }
+
+    if (matcher.group(1).isEmpty()) {
+      // A suffix range: the last n bytes
+      long length = head().getContentLength();
+      long suffix = Long.parseLong(matcher.group(2));
+      return new long[] {Math.max(0, length - suffix), Math.max(0, length - 1)};
+    }
+
+    long start = Long.parseLong(matcher.group(1));
+    long end = matcher.group(2).isEmpty() ? -1 : Long.parseLong(matcher.group(2));
+    if (end >= 0 && end < start) {
+      throw new IOException("Unsupported Range for " + url + ": " + range);
+    }
+    return new long[] {start, end};
+  }
+
+  private static String httpDate(Date date) {
+    SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+    format.setTimeZone(TimeZone.getTimeZone("GMT"));
+    return format.format(date);
   }
 }
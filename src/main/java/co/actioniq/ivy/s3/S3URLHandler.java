@@ -13,17 +13,22 @@
  */
 package co.actioniq.ivy.s3;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ListMultipartUploadsRequest;
 import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.MultipartUpload;
+import com.amazonaws.services.s3.model.MultipartUploadListing;
 import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PartSummary;
+import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
-import com.amazonaws.services.s3.transfer.TransferManager;
-import com.amazonaws.services.s3.transfer.Upload;
-import com.amazonaws.util.IOUtils;
 import org.apache.ivy.util.CopyProgressEvent;
 import org.apache.ivy.util.CopyProgressListener;
 import org.apache.ivy.util.Message;
@@ -31,25 +36,79 @@ import org.apache.ivy.util.url.URLHandler;
 import org.apache.ivy.util.url.URLHandlerDispatcher;
 import org.apache.ivy.util.url.URLHandlerRegistry;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
 
 class S3URLHandler implements URLHandler {
-  // One time setup to register our handler for S3:// urls in Ivy
+  // One time setup to register our handler for S3:// urls in Ivy.  This runs when the first handler is
+  // created, which S3URLRepository puts off until the first s3:// operation.
   private static final boolean _init = initHandlers();
 
-  private S3URLUtil s3URLUtil = new S3URLUtil();
+  // Minimum number of URLs sharing a parent before a bulk check lists the parent instead of HEADing each URL
+  private static final int BulkListThreshold = 2;
+  private static final int MaxConcurrentRequests = 32;
+  private static final int MaxPendingRequests = 1024;
+  // Objects up to this size are fetched with hedged GETs when hedging is enabled
+  private static final long SmallObjectBytes = 1024 * 1024;
+  // Attempts at fetching an object before a download fails, each one carrying on where the previous one stopped
+  private static final int MaxDownloadAttempts = 4;
+  // Artifacts this large are uploaded in parts that survive a failed publish, see ResumableUpload
+  private static final long MultipartThreshold = 16 * 1024 * 1024;
+  // Attempts at a conditional update of a revision index that other publishes keep changing
+  private static final int MaxRevisionIndexAttempts = 10;
+  // Marks revision indexes seeded from a listing of the module directory, which list every revision
+  private static final String RevisionIndexMetadata = "revision-index";
+  private static final String RevisionIndexSeeded = "seeded";
+
+  // Shared by every handler instance (the one registered with Ivy and the ones owned by S3URLRepository)
+  private static final AsyncS3Client s3 = makeSharedClient();
+  private static final S3MetadataCache metadataCache = new S3MetadataCache();
+
+  // Concurrent identical requests (e.g. from parallel resolves) share a single S3 call
+  private static final SingleFlight<URLInfo> infoFlights = new SingleFlight<>();
+  private static final SingleFlight<List<URL>> listFlights = new SingleFlight<>();
+  private static final SingleFlight<String> downloadFlights = new SingleFlight<>();
+  private static final SingleFlight<Optional<ModuleBundle>> bundleFlights = new SingleFlight<>();
+  private static final ModuleBundle.Cache bundles = new ModuleBundle.Cache();
+
+  private static AsyncS3Client makeSharedClient() {
+    AsyncS3Client client = new AsyncS3Client(new S3URLUtil(), MaxConcurrentRequests, MaxPendingRequests);
+    client.registerMBean();
+    return client;
+  }
+
+  /**
+   * The client shared by the handlers, also used by S3URLConnection
+   */
+  static AsyncS3Client client() {
+    return s3;
+  }
 
   private static boolean initHandlers() {
     initDispatcher();
@@ -124,46 +183,177 @@ class S3URLHandler implements URLHandler {
   }
 
   public URLInfo getURLInfo(URL url, int timeout) {
-    try {
-      info("getURLInfo(" + url + ", " + timeout + ")");
+    return AsyncS3Client.join(getURLInfoAsync(url, timeout, false));
+  }
 
-      ClientBucketKey cbk = s3URLUtil.getClientBucketAndKey(url);
+  private CompletableFuture<URLInfo> getURLInfoAsync(URL url, int timeout, boolean refresh) {
+    Optional<URLInfo> cached = refresh ? Optional.empty() : metadataCache.get(url);
+    if (cached.isPresent()) {
+      debug("getURLInfo(" + url + ") => cached");
+      return CompletableFuture.completedFuture(cached.get());
+    }
 
-      ObjectMetadata meta;
-      try {
-        meta = cbk.getObjectMetadata(cbk.bucket(), cbk.key());
-      } catch (AmazonS3Exception e) {
-        if (e.getStatusCode() == 404) {
-          return UNAVAILABLE;
-        }
-        cbk = s3URLUtil.getNewClientBucketAndKey(url);
-        meta = cbk.getObjectMetadata(cbk.bucket(), cbk.key());
+    Optional<ModuleBundle.Entry> bundled = refresh ? Optional.empty() : bundles.entry(url.toExternalForm());
+    if (bundled.isPresent()) {
+      debug("getURLInfo(" + url + ") => from its module bundle");
+      URLInfo info = bundled.get().info();
+      metadataCache.put(url, info);
+      return CompletableFuture.completedFuture(info);
+    }
+
+    return infoFlights.submit(url.toExternalForm(), () -> fetchURLInfo(url, timeout));
+  }
+
+  private CompletableFuture<URLInfo> fetchURLInfo(URL url, int timeout) {
+    info("getURLInfo(" + url + ", " + timeout + ")");
+
+    return s3.getObjectMetadata(url).handle((meta, t) -> {
+      URLInfo info;
+      if (t == null) {
+        info = new S3URLInfo(true, meta.getContentLength(), meta.getLastModified().getTime(), meta.getETag());
+      } else if (isNotFound(t)) {
+        info = UNAVAILABLE;
+      } else {
+        throw new CompletionException(t instanceof CompletionException ? t.getCause() : t);
       }
+      metadataCache.put(url, info);
+      return info;
+    });
+  }
 
-      long contentLength = meta.getContentLength();
-      long lastModified = meta.getLastModified().getTime();
+  private static boolean isNotFound(Throwable t) {
+    Throwable cause = t instanceof CompletionException ? t.getCause() : t;
+    return cause instanceof AmazonS3Exception && ((AmazonS3Exception)cause).getStatusCode() == 404;
+  }
 
-      return new S3URLInfo(true, contentLength, lastModified);
-    } catch (AmazonS3Exception e) {
-      if (e.getStatusCode() == 404) {
-        return UNAVAILABLE;
+  /**
+   * Checks many URLs at once, keyed by their external form.  URLs sharing a parent "directory" are
+   * answered with a single listObjects call on that prefix, the others with concurrent HEADs.
+   * Every result seeds the metadata cache so subsequent getURLInfo calls don't hit S3.
+   */
+  Map<String,URLInfo> getURLInfos(Collection<URL> urls) {
+    return getURLInfos(urls, false);
+  }
+
+  /**
+   * Same as getURLInfos but always asks S3, replacing whatever was cached (or pinned)
+   */
+  Map<String,URLInfo> refreshURLInfos(Collection<URL> urls) {
+    return getURLInfos(urls, true);
+  }
+
+  private Map<String,URLInfo> getURLInfos(Collection<URL> urls, boolean refresh) {
+    info("getURLInfos(" + urls.size() + " urls, refresh = " + refresh + ")");
+
+    Map<String,URLInfo> results = new ConcurrentHashMap<>();
+    Map<String,List<URL>> byParent = new LinkedHashMap<>();
+    for (URL url : urls) {
+      Optional<URLInfo> cached = refresh ? Optional.empty() : metadataCache.get(url);
+      if (!cached.isPresent() && !refresh) {
+        cached = bundles.entry(url.toExternalForm()).map(ModuleBundle.Entry::info);
+      }
+      if (cached.isPresent()) {
+        results.put(url.toExternalForm(), cached.get());
+      } else {
+        byParent.computeIfAbsent(parentOf(url), p -> new ArrayList<>()).add(url);
       }
-      throw e;
     }
+
+    List<CompletableFuture<Void>> futures = new ArrayList<>();
+    for (List<URL> siblings : byParent.values()) {
+      if (siblings.size() >= BulkListThreshold) {
+        futures.add(checkByListing(siblings, results));
+      } else {
+        for (URL url : siblings) {
+          futures.add(getURLInfoAsync(url, 0, refresh).thenAccept(info -> results.put(url.toExternalForm(), info)));
+        }
+      }
+    }
+    AsyncS3Client.join(CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])));
+
+    debug("getURLInfos(" + urls.size() + " urls) => " + results.values().stream().filter(URLInfo::isReachable).count() + " reachable");
+
+    return results;
+  }
+
+  // The URL up to and including its last slash
+  private static String parentOf(URL url) {
+    String external = url.toExternalForm();
+    return external.substring(0, external.lastIndexOf('/') + 1);
+  }
+
+  // All of the siblings must share the same parent prefix
+  private CompletableFuture<Void> checkByListing(List<URL> siblings, Map<String,URLInfo> results) {
+    URL first = siblings.get(0);
+    String parent = parentOf(first);
+
+    CompletableFuture<ObjectListing> listing = s3.listObjects(first, cbk -> {
+      String prefix = cbk.key().substring(0, cbk.key().lastIndexOf('/') + 1);
+      return new ListObjectsRequest().withBucketName(cbk.bucket()).withPrefix(prefix).withDelimiter("/");
+    });
+
+    return listing.thenCompose(l -> {
+      Map<String,S3ObjectSummary> summaries = new HashMap<>();
+      for (S3ObjectSummary summary : l.getObjectSummaries()) {
+        summaries.put(Strings.stripPrefix(summary.getKey(), l.getPrefix()), summary);
+      }
+
+      List<CompletableFuture<Void>> misses = new ArrayList<>();
+      for (URL url : siblings) {
+        S3ObjectSummary summary = summaries.get(Strings.stripPrefix(url.toExternalForm(), parent));
+        if (summary != null) {
+          URLInfo info = new S3URLInfo(true, summary.getSize(), summary.getLastModified().getTime(), summary.getETag());
+          metadataCache.put(url, info);
+          results.put(url.toExternalForm(), info);
+        } else if (l.isTruncated()) {
+          // Only the first page was fetched so we can't conclude anything from a miss
+          misses.add(getURLInfoAsync(url, 0, true).thenAccept(info -> results.put(url.toExternalForm(), info)));
+        } else {
+          metadataCache.put(url, UNAVAILABLE);
+          results.put(url.toExternalForm(), UNAVAILABLE);
+        }
+      }
+      return CompletableFuture.allOf(misses.toArray(new CompletableFuture<?>[misses.size()]));
+    });
+  }
+
+  /**
+   * Trust these infos (e.g. from a lockfile) instead of asking S3 until they are refreshed
+   */
+  void pinURLInfos(Map<String,? extends URLInfo> infos) {
+    infos.forEach(metadataCache::pin);
+  }
+
+  /**
+   * Start keeping track of every reachable URL info handed out, see recordedURLInfos
+   */
+  void recordURLInfos() {
+    metadataCache.startRecording();
+  }
+
+  Map<String,URLInfo> recordedURLInfos() {
+    return metadataCache.recorded();
+  }
+
+  /**
+   * Starts preparing credentials, region and client for this URL's bucket in the background.  Failures are
+   * only logged since the first real request will run into (and report) the same problem.
+   */
+  void warmUp(URL url) {
+    info("warmUp(" + url + ")");
+    long start = System.currentTimeMillis();
+    s3.warmUp(url).whenComplete((v, t) -> {
+      if (t == null) {
+        debug("warmUp(" + url + ") => ready in " + (System.currentTimeMillis() - start) + "ms");
+      } else {
+        Message.verbose("S3URLHandler - Unable to warm up " + url + ": " + t.getMessage());
+      }
+    });
   }
 
   public InputStream openStream(URL url) {
     info("openStream(" + url + ")");
-
-    ClientBucketKey cbk = s3URLUtil.getClientBucketAndKey(url);
-    S3Object obj;
-    try {
-      obj = cbk.getObject(cbk.bucket(), cbk.key());
-    } catch (AmazonS3Exception e) {
-      cbk = s3URLUtil.getNewClientBucketAndKey(url);
-      obj = cbk.getObject(cbk.bucket(), cbk.key());
-    }
-    return obj.getObjectContent();
+    return ObjectStream.open(url, AsyncS3Client.join(s3.getObject(url)));
   }
 
   /**
@@ -172,35 +362,408 @@ class S3URLHandler implements URLHandler {
   List<URL> list(URL url) throws MalformedURLException {
     info("list(" + url + ")");
 
-      /* key is the prefix in this case */
-    ClientBucketKey cbk = s3URLUtil.getClientBucketAndKey(url);
+    List<URL> res = listFlights.call(url.toExternalForm(), () -> listAllPages(url));
 
-    // We want the prefix to have a trailing slash
-    String prefix = Strings.stripSuffix(cbk.key(), "/") + "/";
+    debug("list(" + url + ") => \n  " + res);
 
-    ListObjectsRequest request = new ListObjectsRequest().withBucketName(cbk.bucket()).withPrefix(prefix).withDelimiter("/");
+    return res;
+  }
+
+  private List<URL> listAllPages(URL url) {
+    String urlWithSlash = Strings.stripSuffix(url.toString(), "/") + "/";
+    List<URL> res = new ArrayList<>();
+    String marker = null;
+    do {
+      String m = marker;
+      ObjectListing listing = AsyncS3Client.join(s3.listObjects(url, cbk -> {
+        /* key is the prefix in this case, and we want it to have a trailing slash */
+        String prefix = Strings.stripSuffix(cbk.key(), "/") + "/";
+        return new ListObjectsRequest().withBucketName(cbk.bucket()).withPrefix(prefix).withDelimiter("/").withMarker(m);
+      }));
+
+      String prefix = listing.getPrefix();
+      Stream<String> keys = listing.getCommonPrefixes().stream();
+      Stream<String> summaryKeys = listing.getObjectSummaries().stream().map(S3ObjectSummary::getKey);
+      Stream.concat(keys, summaryKeys).forEach(k -> res.add(toURL(urlWithSlash + Strings.stripPrefix(k, prefix))));
+
+      marker = listing.isTruncated() ? listing.getNextMarker() : null;
+    } while (marker != null);
+
+    return Collections.unmodifiableList(res);
+  }
 
-    ObjectListing listing;
+  /**
+   * Every object under this prefix (a "directory", with or without its trailing slash), following truncated listings
+   */
+  List<S3ObjectSummary> listRecursively(URL url) {
+    info("listRecursively(" + url + ")");
+
+    List<S3ObjectSummary> res = new ArrayList<>();
+    String marker = null;
+    do {
+      String m = marker;
+      ObjectListing listing = AsyncS3Client.join(s3.listObjects(url, cbk -> new ListObjectsRequest()
+          .withBucketName(cbk.bucket()).withPrefix(Strings.stripSuffix(cbk.key(), "/") + "/").withMarker(m)));
+      res.addAll(listing.getObjectSummaries());
+      // Without a delimiter S3 doesn't return a NextMarker, the last key is the marker
+      marker = listing.isTruncated() && !listing.getObjectSummaries().isEmpty()
+          ? listing.getObjectSummaries().get(listing.getObjectSummaries().size() - 1).getKey()
+          : null;
+    } while (marker != null);
+
+    debug("listRecursively(" + url + ") => " + res.size() + " objects");
+    return res;
+  }
+
+  /**
+   * Copies every object under sourceDir to the same relative key under targetDir without the bytes leaving S3.
+   * Module descriptors (ivy.xml, poms and their checksum files) are copied last so the revision only becomes
+   * visible in the target once all of its artifacts are there.  Returns the number of objects copied.
+   */
+  int copyDirectory(URL sourceDir, URL targetDir) {
+    info("copyDirectory(" + sourceDir + ", " + targetDir + ")");
+
+    String sourcePrefix = Strings.stripSuffix(s3.bucketAndKey(sourceDir).key, "/") + "/";
+    String targetWithSlash = Strings.stripSuffix(targetDir.toString(), "/") + "/";
+    String sourceWithSlash = Strings.stripSuffix(sourceDir.toString(), "/") + "/";
+
+    List<AsyncS3Client.ObjectCopy> artifacts = new ArrayList<>();
+    List<AsyncS3Client.ObjectCopy> descriptors = new ArrayList<>();
+    for (S3ObjectSummary summary : listRecursively(sourceDir)) {
+      String relative = Strings.stripPrefix(summary.getKey(), sourcePrefix);
+      AsyncS3Client.ObjectCopy copy = new AsyncS3Client.ObjectCopy(toURL(sourceWithSlash + relative), toURL(targetWithSlash + relative));
+      (isDescriptor(relative) ? descriptors : artifacts).add(copy);
+    }
+
+    for (List<AsyncS3Client.ObjectCopy> batch : Arrays.asList(artifacts, descriptors)) {
+      if (!batch.isEmpty()) {
+        AsyncS3Client.join(s3.copy(batch));
+        batch.forEach(copy -> metadataCache.invalidate(copy.target));
+      }
+    }
+    return artifacts.size() + descriptors.size();
+  }
+
+  /**
+   * Deletes the revisions under this module directory expired by the policy (only reporting them when dryRun)
+   * and returns them.  A revision is a directory holding an ivy.xml or a pom, anything else is left alone.
+   * Revisions are first removed from the revision index, then their descriptors are deleted and only then
+   * their artifacts, so a partially deleted revision never looks valid.
+   */
+  List<String> pruneModule(URL moduleDir, RetentionPolicy policy, boolean dryRun) {
+    info("pruneModule(" + moduleDir + ", " + policy + ", dryRun = " + dryRun + ")");
+
+    String moduleWithSlash = Strings.stripSuffix(moduleDir.toString(), "/") + "/";
+    String modulePrefix = Strings.stripSuffix(s3.bucketAndKey(moduleDir).key, "/") + "/";
+
+    Map<String,List<S3ObjectSummary>> byRevision = new LinkedHashMap<>();
+    Set<String> withDescriptor = new LinkedHashSet<>();
+    for (S3ObjectSummary summary : listRecursively(moduleDir)) {
+      String relative = Strings.stripPrefix(summary.getKey(), modulePrefix);
+      int slashIdx = relative.indexOf('/');
+      if (slashIdx < 0) {
+        continue; // e.g. maven-metadata.xml
+      }
+      String revision = relative.substring(0, slashIdx);
+      byRevision.computeIfAbsent(revision, r -> new ArrayList<>()).add(summary);
+      String name = relative.substring(slashIdx + 1);
+      if (name.equals("ivy.xml") || (name.endsWith(".pom") && name.indexOf('/') < 0)) {
+        withDescriptor.add(revision);
+      }
+    }
+
+    Map<String,Long> publishedAt = new HashMap<>();
+    for (String revision : withDescriptor) {
+      publishedAt.put(revision, byRevision.get(revision).stream().mapToLong(o -> o.getLastModified().getTime()).max().orElse(0));
+    }
+    List<String> expired = policy.expired(publishedAt, System.currentTimeMillis());
+
+    List<URL> descriptors = new ArrayList<>();
+    List<URL> artifacts = new ArrayList<>();
+    for (String revision : expired) {
+      List<S3ObjectSummary> objects = byRevision.get(revision);
+      long bytes = objects.stream().mapToLong(S3ObjectSummary::getSize).sum();
+      Message.info("S3URLHandler - " + (dryRun ? "Would delete " : "Deleting ") + moduleWithSlash + revision + "/ ("
+          + objects.size() + " objects, " + bytes + " bytes, published " + new Date(publishedAt.get(revision)) + ")");
+      for (S3ObjectSummary summary : objects) {
+        URL url = toURL(moduleWithSlash + Strings.stripPrefix(summary.getKey(), modulePrefix));
+        (isDescriptor(summary.getKey()) ? descriptors : artifacts).add(url);
+      }
+    }
+
+    if (!dryRun && !expired.isEmpty()) {
+      removeFromRevisionIndex(moduleDir, expired);
+      delete(descriptors);
+      delete(artifacts);
+    }
+    return expired;
+  }
+
+  // ivy.xml, poms and their checksum files
+  private static boolean isDescriptor(String name) {
+    String base = name;
+    for (String algorithm : Checksums.SupportedAlgorithms) {
+      base = Strings.stripSuffix(base, "." + algorithm);
+    }
+    // The bundle holds the descriptors so it goes along with them
+    return base.endsWith("ivy.xml") || base.endsWith(".pom") || base.endsWith(ModuleBundle.Name);
+  }
+
+  /**
+   * Makes the objects of this revision directory available from its bundle, if it has one.  The bundle is
+   * fetched with a single GET the first time (concurrent callers share it), after which getURLInfo and
+   * download answer for its objects without going to S3.
+   */
+  void useBundle(URL revisionDir) {
+    String dir = Strings.stripSuffix(revisionDir.toString(), "/") + "/";
+    if (!bundles.contains(dir)) {
+      bundleFlights.call(dir, () -> fetchBundle(dir));
+    }
+  }
+
+  private Optional<ModuleBundle> fetchBundle(String dir) {
+    URL bundleURL = toURL(dir + ModuleBundle.Name);
+    Optional<ModuleBundle> res = Optional.empty();
+    if (!metadataCache.get(bundleURL).map(i -> !i.isReachable()).orElse(false)) {
+      info("fetchBundle(" + bundleURL + ")");
+      try (InputStream in = ObjectStream.open(bundleURL, AsyncS3Client.join(s3.getObject(bundleURL)))) {
+        res = Optional.of(ModuleBundle.read(in));
+        debug("fetchBundle(" + bundleURL + ") => " + res.get().entries().size() + " objects");
+      } catch (AmazonS3Exception e) {
+        if (e.getStatusCode() != 404) {
+          throw e;
+        }
+        metadataCache.put(bundleURL, UNAVAILABLE);
+      } catch (IOException e) {
+        Message.warn("S3URLHandler - Ignoring unreadable module bundle " + bundleURL + ": " + e.getMessage());
+      }
+    }
+    bundles.put(dir, res);
+    return res;
+  }
+
+  /**
+   * (Re)writes the bundle of this revision directory from the objects currently in it.  When they add up
+   * to more than ModuleBundle.MaxBytes no bundle is written (and an existing one is deleted since it would
+   * be stale).  Returns whether a bundle was written.
+   */
+  boolean writeBundle(URL revisionDir) {
+    info("writeBundle(" + revisionDir + ")");
+
+    String dir = Strings.stripSuffix(revisionDir.toString(), "/") + "/";
+    String prefix = Strings.stripSuffix(s3.bucketAndKey(revisionDir).key, "/") + "/";
+    URL bundleURL = toURL(dir + ModuleBundle.Name);
+
+    List<S3ObjectSummary> summaries = listRecursively(revisionDir).stream()
+        .filter(summary -> !summary.getKey().equals(prefix + ModuleBundle.Name))
+        .collect(Collectors.toList());
+    long total = summaries.stream().mapToLong(S3ObjectSummary::getSize).sum();
+
+    bundles.invalidate(dir);
+    metadataCache.invalidate(bundleURL);
+    if (summaries.isEmpty() || total > ModuleBundle.MaxBytes) {
+      debug("writeBundle(" + revisionDir + ") => skipped, " + summaries.size() + " objects of " + total + " bytes");
+      delete(Collections.singletonList(bundleURL));
+      return false;
+    }
+
+    Map<String,CompletableFuture<S3Object>> objects = new LinkedHashMap<>();
+    for (S3ObjectSummary summary : summaries) {
+      String name = Strings.stripPrefix(summary.getKey(), prefix);
+      objects.put(name, s3.getObject(toURL(dir + name)));
+    }
+
+    List<ModuleBundle.Entry> entries = new ArrayList<>();
     try {
-      listing = cbk.listObjects(request);
-    } catch (AmazonS3Exception e) {
-      cbk = s3URLUtil.getNewClientBucketAndKey(url);
-      listing = cbk.listObjects(request);
+      for (Map.Entry<String,CompletableFuture<S3Object>> object : objects.entrySet()) {
+        S3Object o = AsyncS3Client.join(object.getValue());
+        ObjectMetadata meta = o.getObjectMetadata();
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try (InputStream in = ObjectStream.open(toURL(dir + object.getKey()), o)) {
+          BufferPool.Shared.copy(in, content);
+        }
+        entries.add(new ModuleBundle.Entry(object.getKey(), meta.getETag(), meta.getLastModified().getTime(),
+            meta.getUserMetadata(), content.toByteArray()));
+      }
+
+      byte[] content = ModuleBundle.write(entries);
+      ObjectMetadata meta = new ObjectMetadata();
+      meta.setContentLength(content.length);
+      meta.setContentType("application/zip");
+      AsyncS3Client.join(s3.putObject(bundleURL, cbk ->
+          new PutObjectRequest(cbk.bucket(), cbk.key(), new ByteArrayInputStream(content), meta)));
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+
+    debug("writeBundle(" + revisionDir + ") => " + entries.size() + " objects");
+    return true;
+  }
+
+  /**
+   * The revisions listed in the maven-metadata.xml index under this module directory, if there is one that lists
+   * every revision.  Indexes written before they were seeded from a listing may miss older revisions.
+   */
+  Optional<List<String>> readRevisionIndex(URL moduleDir) {
+    return readMavenMetadata(revisionIndexURL(moduleDir)).filter(i -> i.seeded).map(i -> i.metadata.versions());
+  }
+
+  /**
+   * Adds a revision to the maven-metadata.xml index under this module directory, creating it from a listing of
+   * the revisions already there if needed.  The index is stored as-is (not zipped) so Maven and Ivy's
+   * IBiblioResolver can read it too.
+   */
+  void addToRevisionIndex(URL moduleDir, String organisation, String module, String revision) {
+    URL indexURL = revisionIndexURL(moduleDir);
+    info("addToRevisionIndex(" + indexURL + ", " + revision + ")");
+
+    updateRevisionIndex(indexURL, index -> {
+      if (index.isPresent() && index.get().seeded) {
+        return index.get().metadata.withVersion(revision);
+      }
+      List<String> versions = new ArrayList<>(index.filter(i -> i.metadata != null).map(i -> i.metadata.versions())
+          .orElse(Collections.emptyList()));
+      for (String listed : listRevisions(moduleDir)) {
+        if (!versions.contains(listed)) {
+          versions.add(listed);
+        }
+      }
+      return new MavenMetadata(organisation, module, versions).withVersion(revision);
+    });
+  }
+
+  /**
+   * Removes revisions from the maven-metadata.xml index under this module directory, if there is one
+   */
+  void removeFromRevisionIndex(URL moduleDir, Collection<String> revisions) {
+    URL indexURL = revisionIndexURL(moduleDir);
+    info("removeFromRevisionIndex(" + indexURL + ", " + revisions + ")");
+
+    updateRevisionIndex(indexURL, index ->
+        index.filter(i -> i.metadata != null).map(i -> i.metadata.withoutVersions(revisions)).orElse(null));
+  }
+
+  // Read-modify-write made conditional on the index not changing in between (If-Match, or If-None-Match when
+  // creating it), so concurrent publishes re-read and merge rather than drop each other's revisions
+  private void updateRevisionIndex(URL indexURL, Function<Optional<RevisionIndex>,MavenMetadata> update) {
+    for (int attempt = 1; ; attempt++) {
+      metadataCache.invalidate(indexURL);
+      Optional<RevisionIndex> index = readMavenMetadata(indexURL);
+      MavenMetadata updated = update.apply(index);
+      if (updated == null) {
+        return;
+      }
+
+      byte[] content = updated.toBytes();
+      ObjectMetadata meta = new ObjectMetadata();
+      meta.setContentLength(content.length);
+      meta.setContentType("application/xml");
+      meta.addUserMetadata(RevisionIndexMetadata, RevisionIndexSeeded);
+
+      try {
+        AsyncS3Client.join(s3.putObject(indexURL, cbk -> {
+          PutObjectRequest request = new PutObjectRequest(cbk.bucket(), cbk.key(), new ByteArrayInputStream(content), meta);
+          if (index.isPresent()) {
+            request.putCustomRequestHeader("If-Match", index.get().etag);
+          } else {
+            request.putCustomRequestHeader("If-None-Match", "*");
+          }
+          return request;
+        }));
+        metadataCache.invalidate(indexURL);
+        return;
+      } catch (AmazonS3Exception e) {
+        // 412 when the index changed since we read it, 409 when another conditional write is in progress
+        boolean conflict = e.getStatusCode() == 412 || e.getStatusCode() == 409;
+        if (!conflict || attempt >= MaxRevisionIndexAttempts) {
+          throw e;
+        }
+        debug("updateRevisionIndex(" + indexURL + ") changed concurrently, retrying (attempt " + attempt + ")");
+      }
     }
+  }
 
-    if (listing.isTruncated()) {
-      throw new RuntimeException("Truncated ObjectListing!  Making additional calls currently isn't implemented!");
+  // The revision directories under this module directory
+  private List<String> listRevisions(URL moduleDir) {
+    try {
+      return list(moduleDir).stream()
+          .map(URL::toExternalForm)
+          .filter(url -> url.endsWith("/"))
+          .map(url -> Strings.stripSuffix(url, "/"))
+          .map(url -> url.substring(url.lastIndexOf('/') + 1))
+          .collect(Collectors.toList());
+    } catch (MalformedURLException e) {
+      throw new RuntimeException(e);
     }
+  }
 
-    Stream<String> keys = listing.getCommonPrefixes().stream();
-    Stream<String> summaryKeys = listing.getObjectSummaries().stream().map(S3ObjectSummary::getKey);
+  // A maven-metadata.xml index along with what's needed to update it, metadata is null when it's unreadable
+  private static class RevisionIndex {
+    final MavenMetadata metadata;
+    final String etag;
+    final boolean seeded;
 
-    String urlWithSlash = Strings.stripSuffix(url.toString(), "/") + "/";
-    Stream<URL> res = Stream.concat(keys, summaryKeys).map(k -> toURL(urlWithSlash + Strings.stripPrefix(k, prefix)));
+    RevisionIndex(MavenMetadata metadata, String etag, boolean seeded) {
+      this.metadata = metadata;
+      this.etag = etag;
+      this.seeded = seeded;
+    }
+  }
 
-    debug("list(" + url + ") => \n  " + res);
+  private URL revisionIndexURL(URL moduleDir) {
+    return toURL(Strings.stripSuffix(moduleDir.toString(), "/") + "/" + MavenMetadata.FileName);
+  }
+
+  /**
+   * Deletes the objects, concurrently in batches of up to 1000 keys per bucket
+   */
+  void delete(List<URL> urls) {
+    info("delete(" + urls.size() + " urls)");
+
+    Map<String,List<URL>> byBucket = new LinkedHashMap<>();
+    for (URL url : urls) {
+      byBucket.computeIfAbsent(s3.bucketAndKey(url).bucket, b -> new ArrayList<>()).add(url);
+    }
 
-    return res.collect(Collectors.toList());
+    List<CompletableFuture<?>> futures = new ArrayList<>();
+    for (List<URL> bucketURLs : byBucket.values()) {
+      for (int i = 0; i < bucketURLs.size(); i += AsyncS3Client.MaxDeleteBatch) {
+        List<URL> batch = bucketURLs.subList(i, Math.min(bucketURLs.size(), i + AsyncS3Client.MaxDeleteBatch));
+        List<String> keys = batch.stream().map(url -> s3.bucketAndKey(url).key).collect(Collectors.toList());
+        futures.add(s3.deleteObjects(batch.get(0), keys).thenRun(() -> batch.forEach(metadataCache::invalidate)));
+      }
+    }
+    AsyncS3Client.join(CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])));
+  }
+
+  private Optional<RevisionIndex> readMavenMetadata(URL indexURL) {
+    // Most directories don't have an index so remember the misses
+    if (metadataCache.get(indexURL).map(i -> !i.isReachable()).orElse(false)) {
+      return Optional.empty();
+    }
+
+    S3Object object;
+    try {
+      object = AsyncS3Client.join(s3.getSmallObject(indexURL));
+    } catch (AmazonS3Exception e) {
+      if (e.getStatusCode() == 404) {
+        metadataCache.put(indexURL, UNAVAILABLE);
+        return Optional.empty();
+      }
+      throw e;
+    }
+
+    ObjectMetadata meta = object.getObjectMetadata();
+    try (InputStream in = ObjectStream.open(indexURL, object)) {
+      ByteArrayOutputStream content = new ByteArrayOutputStream();
+      BufferPool.Shared.copy(in, content);
+      boolean seeded = RevisionIndexSeeded.equals(meta.getUserMetaDataOf(RevisionIndexMetadata));
+      return Optional.of(new RevisionIndex(MavenMetadata.parse(content.toByteArray()), meta.getETag(), seeded));
+    } catch (IOException e) {
+      // Still there to be replaced on the next publish, but listing nothing
+      Message.warn("S3URLHandler - Ignoring unreadable index " + indexURL + ": " + e.getMessage());
+      return Optional.of(new RevisionIndex(null, meta.getETag(), false));
+    }
   }
 
   private URL toURL(String url) {
@@ -211,7 +774,6 @@ class S3URLHandler implements URLHandler {
     }
   }
 
-  @SuppressWarnings("RV_RETURN_VALUE_IGNORED_BAD_PRACTICE")
   public void download(URL src, File dest, CopyProgressListener l) {
     info("download(" + src + ", " + dest + ")");
 
@@ -220,63 +782,245 @@ class S3URLHandler implements URLHandler {
       l.start(event);
     }
 
-    File actualDest = dest;
-    if (!src.getPath().endsWith("/ivy.xml")) {
+    // Downloads are keyed by destination so two threads never write the same file at once.  A caller
+    // that waited on a download of the same src is done, one that waited on another src goes again.
+    String srcKey = src.toExternalForm();
+    while (!downloadFlights.call(dest.getAbsolutePath(), () -> downloadOnce(src, dest)).equals(srcKey)) {
+      debug("download(" + src + ", " + dest + ") => waited on a download of another src, retrying");
+    }
+
+    if (null != l) {
+      l.end(event); //l.progress(evt.update(EMPTY_BUFFER, 0, meta.getContentLength))
+    }
+  }
+
+  // Only one process at a time downloads to dest, the others wait and reuse its file
+  private String downloadOnce(URL src, File dest) {
+    try (DestinationLock lock = DestinationLock.acquire(dest)) {
+      if (lock.changedWhileWaiting() && dest.lastModified() == getLastModified(src)) {
+        debug("download(" + src + ", " + dest + ") => downloaded by another process");
+        return src.toExternalForm();
+      }
+
+      File temp = lock.tempFile();
       try {
-        actualDest = File.createTempFile("S3URLHandler-", ".zip");
-        actualDest.deleteOnExit();
-      } catch (IOException e) {
-        throw new RuntimeException(e);
+        downloadTo(src, temp, dest);
+        lock.commit(temp);
+      } finally {
+        Files.deleteIfExists(temp.toPath());
       }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
     }
+    return src.toExternalForm();
+  }
 
-    ClientBucketKey cbk = s3URLUtil.getClientBucketAndKey(src);
-    ObjectMetadata meta;
-    try {
-      meta = cbk.getObject(new GetObjectRequest(cbk.bucket(), cbk.key()), actualDest);
-    } catch (AmazonS3Exception e) {
-      cbk = s3URLUtil.getNewClientBucketAndKey(src);
-      meta = cbk.getObject(new GetObjectRequest(cbk.bucket(), cbk.key()), actualDest);
+  // Descriptors, and anything we already know is small, are worth hedging
+  private static boolean isSmall(URL url) {
+    String path = url.getPath();
+    if (path.endsWith("/ivy.xml") || path.endsWith(".pom")) {
+      return true;
     }
+    return metadataCache.get(url).map(info -> info.isReachable() && info.getContentLength() <= SmallObjectBytes).orElse(false);
+  }
 
-    if (actualDest != dest) {
-      uncompressFile(actualDest, dest);
+  // Writes src to temp, which is then moved to dest
+  @SuppressWarnings("RV_RETURN_VALUE_IGNORED_BAD_PRACTICE")
+  private void downloadTo(URL src, File temp, File dest) throws IOException {
+    Optional<ModuleBundle.Entry> bundled = bundles.entry(src.toExternalForm());
+    if (bundled.isPresent()) {
+      debug("download(" + src + ", " + dest + ") => from its module bundle");
     }
 
-    dest.setLastModified(meta.getLastModified().getTime());
+    ObjectMetadata meta;
+    if (src.getPath().endsWith("/ivy.xml")) {
+      S3Object object = bundled.isPresent() ? bundled.get().toObject() : AsyncS3Client.join(s3.getSmallObject(src));
+      meta = object.getObjectMetadata();
 
-    if (null != l) {
-      l.end(event); //l.progress(evt.update(EMPTY_BUFFER, 0, meta.getContentLength))
+      // Stored as is, the ETag and the user metadata checksums both cover the bytes as they stream through
+      Digests digests = Checksums.forETag(meta).plus(Checksums.forContent(meta));
+      ObjectFiles.write(object, temp, digests);
+      Checksums.verifyETag(src.toString(), digests, meta);
+      Checksums.verifyContent(src.toString(), digests, meta);
+    } else {
+      // The stored (zipped) bytes go to a partial file next to dest so a failed download can be resumed.  The
+      // ETag covers them, the user metadata checksums cover the artifact uncompressed from them.
+      PartialDownload partial = new PartialDownload(dest);
+      if (bundled.isPresent()) {
+        S3Object object = bundled.get().toObject();
+        partial.start(src, object.getObjectMetadata());
+        partial.append(object);
+      } else {
+        fetchResumable(src, partial);
+      }
+
+      meta = partial.metadata();
+      try {
+        Checksums.verifyETag(src.toString(), partial.storedDigests(), meta);
+        Digests contentDigests = Checksums.forContent(meta);
+        SingleEntryZip.uncompress(partial.file(), temp, contentDigests);
+        Checksums.verifyContent(src.toString(), contentDigests, meta);
+      } finally {
+        // Either used or corrupt, neither is worth resuming
+        partial.discard();
+      }
+    }
+
+    // Set before the file is moved into place, other processes compare it to tell whether they can reuse it
+    temp.setLastModified(meta.getLastModified().getTime());
+  }
+
+  // Fetches the stored bytes of src into partial, carrying on from whatever an earlier attempt left behind
+  private void fetchResumable(URL src, PartialDownload partial) throws IOException {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        if (!partial.resume(src)) {
+          S3Object object = AsyncS3Client.join(isSmall(src) ? s3.getSmallObject(src) : s3.getObject(src));
+          partial.start(src, object.getObjectMetadata());
+          partial.append(object);
+        } else if (!partial.isComplete()) {
+          long offset = partial.offset();
+          String etag = partial.metadata().getETag();
+          debug("download(" + src + ") => resuming from byte " + offset);
+          // Only if the object is still the one the partial file has the beginning of
+          S3Object object = AsyncS3Client.join(s3.getObject(src, cbk ->
+              new GetObjectRequest(cbk.bucket(), cbk.key()).withRange(offset).withMatchingETagConstraint(etag)));
+          if (object == null) {
+            debug("download(" + src + ") => changed since the partial download, starting over");
+            partial.discard();
+            continue;
+          }
+          if (object.getObjectMetadata().getContentLength() != partial.metadata().getContentLength() - offset) {
+            // Not the rest of the object (e.g. the range was ignored), appending it would only corrupt the file
+            object.getObjectContent().abort();
+            partial.discard();
+            continue;
+          }
+          partial.append(object);
+        }
+        return;
+      } catch (AmazonServiceException e) {
+        throw e;
+      } catch (IOException | AmazonClientException e) {
+        if (attempt >= MaxDownloadAttempts) {
+          throw e;
+        }
+        debug("download(" + src + ") => attempt " + attempt + " failed, resuming: " + e.getMessage());
+      }
     }
   }
 
   public void upload(File src, URL dest, CopyProgressListener l) {
-    info("upload(" + src + ", " + dest + ")");
+    upload(src, dest, l, Collections.emptyList());
+  }
+
+  /**
+   * Uploads src with the checksums of its content stored as object metadata.  Each of the sidecarChecksums
+   * is also uploaded next to it as dest.algorithm (the way Ivy publishes checksums) in the same batch.
+   * All of the checksums are computed in the same pass that compresses the file.
+   *
+   * Artifacts of MultipartThreshold bytes or more go up in parts, keeping a ResumableUpload so that
+   * uploading the same src to dest again after a failure only sends the parts S3 doesn't have yet.
+   */
+  void upload(File src, URL dest, CopyProgressListener l, List<String> sidecarChecksums) {
+    info("upload(" + src + ", " + dest + ", " + sidecarChecksums + ")");
 
     CopyProgressEvent event = new CopyProgressEvent();
     if (null != l) {
       l.start(event);
     }
 
-    if (!src.getName().equals("ivy.xml") && !src.getName().equals("ivy.linux.xml")) {
-      src = compressFile(src);
-    }
+    Set<String> algorithms = new LinkedHashSet<>(Checksums.DefaultAlgorithms);
+    algorithms.addAll(sidecarChecksums);
+    Digests contentDigests = Digests.of(algorithms);
 
-    ClientBucketKey cbk = s3URLUtil.getClientBucketAndKey(dest);
-    TransferManager tm = cbk.getTransferManager(cbk.bucket(), cbk.key());
+    // What's already there (if anything) is fetched while we compress
+    CompletableFuture<ObjectMetadata> existing = s3.getObjectMetadata(dest).handle((meta, t) -> {
+      if (t != null && !isNotFound(t)) {
+        debug("upload(" + src + ", " + dest + ") => unable to HEAD the existing object: " + t.getMessage());
+      }
+      return t == null ? meta : null;
+    });
+
+    boolean isDescriptor = src.getName().equals("ivy.xml") || src.getName().equals("ivy.linux.xml");
+    List<File> tempFiles = new ArrayList<>();
+    ResumableUpload resumable = null;
     try {
-      try {
-        Upload upload = tm.upload(cbk.bucket(), cbk.key(), src);
-        upload.waitForUploadResult();
-      } catch (AmazonServiceException e) {
-        cbk = s3URLUtil.getNewClientBucketAndKey(dest);
-        Upload upload = tm.upload(cbk.bucket(), cbk.key(), src);
-        upload.waitForUploadResult();
+      if (!isDescriptor && src.length() >= MultipartThreshold) {
+        resumable = ResumableUpload.open(dest);
+      }
+
+      File actualSrc = src;
+      if (resumable != null && resumable.isFor(dest, src, algorithms)) {
+        info("upload(" + src + ", " + dest + ") => resuming upload " + resumable.uploadId());
+        actualSrc = resumable.file();
+        contentDigests = resumable.contentDigests();
+      } else if (!isDescriptor) {
+        actualSrc = compressFile(src, contentDigests);
+        tempFiles.add(actualSrc);
+        if (resumable != null) {
+          // Whatever was left there was for another version of the file
+          abortQuietly(dest, resumable);
+          resumable.start(dest, src, actualSrc, contentDigests);
+          actualSrc = resumable.file();
+        }
+      } else {
+        contentDigests.update(src);
+      }
+
+      // Stored zipped like any other file uploaded through here so download can read them back, along with the
+      // checksums of their own content so the next upload can tell whether they still match
+      List<AsyncS3Client.FileUpload> sidecars = new ArrayList<>();
+      for (String algorithm : sidecarChecksums) {
+        File checksumFile = File.createTempFile("S3URLHandler-", "." + algorithm);
+        tempFiles.add(checksumFile);
+        Files.write(checksumFile.toPath(), contentDigests.hex(algorithm).getBytes(StandardCharsets.UTF_8));
+
+        Digests checksumDigests = Digests.of(Checksums.DefaultAlgorithms);
+        File zippedChecksumFile = compressFile(checksumFile, checksumDigests);
+        tempFiles.add(zippedChecksumFile);
+        sidecars.add(new AsyncS3Client.FileUpload(toURL(dest + "." + algorithm), zippedChecksumFile,
+            Checksums.toMetadata(checksumDigests)));
       }
-    } catch (InterruptedException e) {
+
+      if (isAlreadyUploaded(dest, actualSrc, contentDigests, sidecars, AsyncS3Client.join(existing))) {
+        info("upload(" + src + ", " + dest + ") => skipped, identical to the existing object");
+        if (resumable != null) {
+          abortQuietly(dest, resumable);
+        }
+        if (null != l) {
+          // Reported as done in one go, nothing was transferred
+          CopyProgressEvent skipped = new CopyProgressEvent(new byte[0], 0, src.length());
+          l.progress(skipped);
+          l.end(skipped);
+        }
+        return;
+      }
+
+      List<AsyncS3Client.FileUpload> uploads = new ArrayList<>();
+      if (resumable == null) {
+        uploads.add(new AsyncS3Client.FileUpload(dest, actualSrc, Checksums.toMetadata(contentDigests)));
+      }
+      uploads.addAll(sidecars);
+
+      if (resumable != null) {
+        uploadParts(dest, resumable, Checksums.toMetadata(contentDigests));
+        metadataCache.invalidate(dest);
+      }
+      if (!uploads.isEmpty()) {
+        AsyncS3Client.join(s3.upload(uploads));
+      }
+
+      for (AsyncS3Client.FileUpload upload : uploads) {
+        metadataCache.invalidate(upload.url);
+      }
+    } catch (IOException e) {
       throw new RuntimeException(e);
     } finally {
-      tm.shutdownNow();
+      for (File tempFile : tempFiles) {
+        tempFile.delete();
+      }
+      closeQuietly(resumable);
     }
 
     if (null != l) {
@@ -284,47 +1028,163 @@ class S3URLHandler implements URLHandler {
     }
   }
 
-  private File compressFile(File src) {
-    File zippedSrc;
+  /**
+   * Sends the parts of the upload that S3 doesn't have yet (all of them for a new upload) and completes it.
+   * A part S3 lists is only skipped if it has the ETag recorded when we uploaded it, anything else is sent again.
+   */
+  private void uploadParts(URL dest, ResumableUpload upload, ObjectMetadata metadata) throws IOException {
+    Map<Integer,PartETag> uploaded = new TreeMap<>();
+    String uploadId = upload.uploadId();
+    if (uploadId != null) {
+      try {
+        for (PartSummary part : listParts(dest, uploadId)) {
+          if (part.getPartNumber() <= upload.partCount() && part.getSize() == upload.partLength(part.getPartNumber()) &&
+              part.getETag().equals(upload.partETag(part.getPartNumber()))) {
+            uploaded.put(part.getPartNumber(), new PartETag(part.getPartNumber(), part.getETag()));
+          }
+        }
+      } catch (AmazonS3Exception e) {
+        if (e.getStatusCode() != 404) {
+          throw e;
+        }
+        // Completed, aborted (e.g. by abortStaleUploads) or expired since, start a new one
+        debug("upload(" + dest + ") => upload " + uploadId + " is gone, starting over");
+        uploadId = null;
+      }
+    }
+
+    if (uploadId == null) {
+      uploadId = AsyncS3Client.join(s3.initiateMultipartUpload(dest, metadata));
+      upload.started(uploadId);
+    }
+    info("upload(" + dest + ") => upload " + uploadId + ": " + uploaded.size() + " of " + upload.partCount() + " parts already uploaded");
 
-    try {
-      zippedSrc = File.createTempFile("S3URLHandler-", ".zip");
-      zippedSrc.deleteOnExit();
+    List<CompletableFuture<PartETag>> parts = new ArrayList<>();
+    for (int partNumber = 1; partNumber <= upload.partCount(); partNumber++) {
+      if (!uploaded.containsKey(partNumber)) {
+        parts.add(s3.uploadPart(dest, uploadId, partNumber, upload.file(), upload.partOffset(partNumber), upload.partLength(partNumber))
+            .thenApply(part -> {
+              try {
+                upload.partUploaded(part);
+              } catch (IOException e) {
+                // Only costs sending the part again if this upload gets interrupted
+                debug("upload(" + dest + ") => unable to record part " + part.getPartNumber() + ": " + e.getMessage());
+              }
+              return part;
+            }));
+      }
+    }
+    // Wait for every part, even after a failure, so the ones that made it are recorded for the next attempt
+    CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[parts.size()])).handle((ignored, t) -> null).join();
+    for (CompletableFuture<PartETag> part : parts) {
+      PartETag etag = AsyncS3Client.join(part);
+      uploaded.put(etag.getPartNumber(), etag);
+    }
 
-      try (ZipOutputStream zipOut = new ZipOutputStream(new FileOutputStream(zippedSrc))) {
-        ZipEntry zipEntry = new ZipEntry(src.getName());
-        zipOut.putNextEntry(zipEntry);
+    AsyncS3Client.join(s3.completeMultipartUpload(dest, uploadId, new ArrayList<>(uploaded.values())));
+    upload.discard();
+  }
 
-        try (FileInputStream srcIn = new FileInputStream(src)) {
-          IOUtils.copy(srcIn, zipOut);
-        }
+  private List<PartSummary> listParts(URL dest, String uploadId) {
+    List<PartSummary> res = new ArrayList<>();
+    Integer marker = null;
+    PartListing listing;
+    do {
+      listing = AsyncS3Client.join(s3.listParts(dest, uploadId, marker));
+      res.addAll(listing.getParts());
+      marker = listing.getNextPartNumberMarker();
+    } while (listing.isTruncated());
+    return res;
+  }
 
-        zipOut.closeEntry();
+  // Aborts the multipart upload it recorded (if any) and forgets about it
+  private void abortQuietly(URL dest, ResumableUpload upload) throws IOException {
+    String uploadId = upload.uploadId();
+    if (uploadId != null) {
+      try {
+        AsyncS3Client.join(s3.abortMultipartUpload(dest, uploadId));
+      } catch (RuntimeException e) {
+        // abortStaleUploads gets rid of it eventually
+        debug("upload(" + dest + ") => unable to abort upload " + uploadId + ": " + e.getMessage());
       }
-    } catch (IOException e) {
-      throw new RuntimeException(e);
     }
+    upload.discard();
+  }
 
-    return zippedSrc;
+  private void closeQuietly(ResumableUpload upload) {
+    if (upload != null) {
+      try {
+        upload.close();
+      } catch (IOException e) {
+        debug("upload => unable to release the lock of the upload state: " + e.getMessage());
+      }
+    }
   }
 
-  private void uncompressFile(File zippedDest, File dest) {
-    try {
-      try (ZipInputStream zipIn = new ZipInputStream(new FileInputStream(zippedDest))) {
-        ZipEntry zipEntry = zipIn.getNextEntry();
-        if (zipEntry == null) {
-          throw new RuntimeException("Zip file is empty: " + zippedDest.getAbsolutePath());
-        }
+  /**
+   * Aborts the incomplete multipart uploads under root started more than maxAgeMillis ago (e.g. by publishes
+   * that died part way) so S3 stops keeping their parts, and returns their keys.
+   */
+  List<String> abortStaleUploads(URL root, long maxAgeMillis) throws IOException {
+    info("abortStaleUploads(" + root + ", " + maxAgeMillis + ")");
 
-        try (FileOutputStream destOut = new FileOutputStream(dest)) {
-          IOUtils.copy(zipIn, destOut);
+    String prefix = Strings.stripSuffix(s3.bucketAndKey(root).key, "/") + "/";
+    String rootWithSlash = Strings.stripSuffix(root.toString(), "/") + "/";
+    long cutoff = System.currentTimeMillis() - maxAgeMillis;
+
+    List<MultipartUpload> stale = new ArrayList<>();
+    MultipartUploadListing listing = null;
+    do {
+      MultipartUploadListing previous = listing;
+      listing = AsyncS3Client.join(s3.listMultipartUploads(root, cbk -> {
+        ListMultipartUploadsRequest request = new ListMultipartUploadsRequest(cbk.bucket()).withPrefix(prefix);
+        return previous == null ? request :
+            request.withKeyMarker(previous.getNextKeyMarker()).withUploadIdMarker(previous.getNextUploadIdMarker());
+      }));
+      for (MultipartUpload upload : listing.getMultipartUploads()) {
+        if (upload.getInitiated().getTime() <= cutoff) {
+          stale.add(upload);
         }
+      }
+    } while (listing.isTruncated());
 
-        zipIn.closeEntry();
+    List<CompletableFuture<Void>> aborts = new ArrayList<>();
+    for (MultipartUpload upload : stale) {
+      aborts.add(s3.abortMultipartUpload(toURL(rootWithSlash + Strings.stripPrefix(upload.getKey(), prefix)), upload.getUploadId()));
+    }
+    aborts.forEach(AsyncS3Client::join);
+
+    ResumableUpload.forget(stale.stream().map(MultipartUpload::getUploadId).collect(Collectors.toSet()), maxAgeMillis);
+    return stale.stream().map(MultipartUpload::getKey).collect(Collectors.toList());
+  }
+
+  // The existing object has the same content and so do its sidecar checksum files.  Sidecars uploaded before they
+  // carried checksums can only match on their ETag, which a freshly zipped one doesn't, so they get uploaded again.
+  private boolean isAlreadyUploaded(URL dest, File actualSrc, Digests contentDigests,
+                                    List<AsyncS3Client.FileUpload> sidecars, ObjectMetadata existing) throws IOException {
+    if (existing == null || !Checksums.isIdentical(existing, contentDigests, actualSrc)) {
+      return false;
+    }
+
+    List<CompletableFuture<ObjectMetadata>> existingSidecars = sidecars.stream()
+        .map(sidecar -> s3.getObjectMetadata(sidecar.url).handle((meta, t) -> t == null ? meta : null))
+        .collect(Collectors.toList());
+    for (int i = 0; i < sidecars.size(); i++) {
+      AsyncS3Client.FileUpload sidecar = sidecars.get(i);
+      ObjectMetadata existingSidecar = AsyncS3Client.join(existingSidecars.get(i));
+      Digests expected = Digests.completed(sidecar.metadata.getUserMetadata());
+      if (existingSidecar == null || !Checksums.isIdentical(existingSidecar, expected, sidecar.file)) {
+        debug("isAlreadyUploaded(" + dest + ") => " + sidecar.url + " is missing or doesn't match");
+        return false;
       }
-    } catch (IOException e) {
-      throw new RuntimeException(e);
     }
+    return true;
+  }
+
+  private File compressFile(File src, Digests contentDigests) throws IOException {
+    File zippedSrc = File.createTempFile("S3URLHandler-", ".zip");
+    SingleEntryZip.compress(src, zippedSrc, contentDigests);
+    return zippedSrc;
   }
 
   // I don't think we care what this is set to
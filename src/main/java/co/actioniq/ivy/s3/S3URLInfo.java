@@ -17,7 +17,17 @@ import org.apache.ivy.util.url.URLHandler;
 
 // For access to URLInfo's protected constructor
 class S3URLInfo extends URLHandler.URLInfo {
+  private final String etag;
+
   S3URLInfo(boolean available, long contentLength, long lastModified) {
+    this(available, contentLength, lastModified, null);
+  }
+
+  S3URLInfo(boolean available, long contentLength, long lastModified, String etag) {
     super(available, contentLength, lastModified);
+    this.etag = etag;
   }
+
+  // May be null when the info didn't come from S3 (e.g. UNAVAILABLE)
+  String getETag() { return etag; }
 }
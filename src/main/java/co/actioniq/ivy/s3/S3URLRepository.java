@@ -13,21 +13,229 @@
  */
 package co.actioniq.ivy.s3;
 
+import org.apache.ivy.plugins.repository.BasicResource;
+import org.apache.ivy.plugins.repository.RepositoryCopyProgressListener;
+import org.apache.ivy.plugins.repository.Resource;
+import org.apache.ivy.plugins.repository.TransferEvent;
 import org.apache.ivy.plugins.repository.url.URLRepository;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.stream.Collectors;
 
 class S3URLRepository extends URLRepository {
-  private final S3URLHandler s3 = new S3URLHandler();
+  // Created on the first s3:// operation, see handler()
+  private volatile S3URLHandler s3 = null;
+  private final RepositoryCopyProgressListener progress = new RepositoryCopyProgressListener(this);
+  private boolean useRevisionIndex = false;
+  private List<String> sidecarChecksums = Collections.emptyList();
+  private boolean hedging = false;
+  private long hedgeDelayMillis = -1;
+  private volatile PresenceFilter presence = null;
+
+  void setUseRevisionIndex(boolean useRevisionIndex) {
+    this.useRevisionIndex = useRevisionIndex;
+  }
+
+  boolean isUseRevisionIndex() { return useRevisionIndex; }
+
+  /**
+   * Checksum files (e.g. sha1) to upload along with every file put in this repository
+   */
+  void setSidecarChecksums(List<String> sidecarChecksums) {
+    this.sidecarChecksums = sidecarChecksums;
+  }
+
+  /**
+   * The handler, loading the S3 machinery (and registering s3:// URLs with Ivy and java.net.URL) the first
+   * time it's needed.  Resolves that never reach an S3 resolver in the chain don't pay for any of it.
+   */
+  S3URLHandler handler() {
+    S3URLHandler handler = s3;
+    if (handler == null) {
+      synchronized (this) {
+        if (s3 == null) {
+          s3 = new S3URLHandler();
+          applyHedging();
+        }
+        handler = s3;
+      }
+    }
+    return handler;
+  }
+
+  /**
+   * Hedge HEADs and small GETs after delayMillis, or after the observed p95 latency when it's negative.
+   * Hedging is shared by every S3 resolver, so enabling it for one enables it for all.
+   */
+  synchronized void setHedging(boolean hedging, long delayMillis) {
+    this.hedging = hedging;
+    this.hedgeDelayMillis = delayMillis;
+    if (s3 != null) {
+      applyHedging();
+    }
+  }
+
+  boolean isHedging() { return hedging; }
+
+  long getHedgeDelayMillis() { return hedgeDelayMillis; }
+
+  // Applied when the handler is created so configuring hedging doesn't load the S3 machinery
+  private void applyHedging() {
+    if (hedging) {
+      S3URLHandler.client().hedging().enable(hedgeDelayMillis);
+    }
+  }
+
+  /**
+   * Answer lookups under root that the filter rules out locally, or stop filtering when root is null
+   */
+  void setPresenceFilter(String root, long refreshMillis) {
+    presence = root == null ? null : new PresenceFilter(root, refreshMillis, this::listChildren);
+  }
+
+  private List<String> listChildren(String dir) throws IOException {
+    return handler().list(new URL(dir)).stream().map(URL::toExternalForm).collect(Collectors.toList());
+  }
+
+  boolean isDefinitelyAbsent(String source) {
+    PresenceFilter filter = presence;
+    return filter != null && !filter.mightContain(source);
+  }
+
+  /**
+   * Records a URL that was just written under the root (by a publish or a copy), see PresenceFilter.add
+   */
+  void addToPresenceFilter(String url) {
+    PresenceFilter filter = presence;
+    if (filter != null) {
+      filter.add(url);
+    }
+  }
+
+  public Resource getResource(String source) throws IOException {
+    if (source.startsWith("s3")) {
+      if (isDefinitelyAbsent(source)) {
+        return new BasicResource(source, false, 0, 0, false);
+      }
+      handler();
+    }
+    return super.getResource(source);
+  }
+
+  public void get(String source, File destination) throws IOException {
+    if (source.startsWith("s3")) {
+      handler();
+    }
+    super.get(source, destination);
+  }
+
+  // Same as URLRepository.put but calls our handler so it can write checksum files in the same pass
+  public void put(File source, String destination, boolean overwrite) throws IOException {
+    if (!destination.startsWith("s3")) {
+      super.put(source, destination, overwrite);
+      return;
+    }
+
+    S3URLHandler s3 = handler();
+    // Not through the filter, it may not know about objects published elsewhere since it was built
+    if (!overwrite && super.getResource(destination).exists()) {
+      throw new IOException("destination file exists and overwrite == false");
+    }
+
+    fireTransferInitiated(super.getResource(destination), TransferEvent.REQUEST_PUT);
+    try {
+      progress.setTotalLength(source.length());
+      s3.upload(source, new URL(destination), progress, sidecarChecksums);
+      addToPresenceFilter(destination);
+    } catch (RuntimeException e) {
+      fireTransferError(e);
+      throw e;
+    } finally {
+      progress.setTotalLength(null);
+    }
+  }
 
   public List list(String parent) throws IOException {
     if (parent.startsWith("s3")) {
-      return s3.list(new URL(parent)).stream().map(URL::toExternalForm).collect(Collectors.toList());
+      if (useRevisionIndex) {
+        // A module directory with an index lists its revisions without an S3 LIST.  Without one, or with an
+        // index that wasn't seeded from a listing and may miss revisions published before it, we LIST.
+        String parentWithSlash = Strings.stripSuffix(parent, "/") + "/";
+        Optional<List<String>> revisions = handler().readRevisionIndex(new URL(parent));
+        if (revisions.isPresent()) {
+          return revisions.get().stream().map(r -> parentWithSlash + r + "/").collect(Collectors.toList());
+        }
+      }
+      return handler().list(new URL(parent)).stream().map(URL::toExternalForm).collect(Collectors.toList());
     } else {
       return super.list(parent);
     }
   }
+
+  void addToRevisionIndex(String moduleDir, String organisation, String module, String revision) throws IOException {
+    handler().addToRevisionIndex(new URL(moduleDir), organisation, module, revision);
+  }
+
+  int copyDirectory(String sourceDir, String targetDir) throws IOException {
+    S3URLHandler s3 = handler();
+    return s3.copyDirectory(new URL(sourceDir), new URL(targetDir));
+  }
+
+  List<String> pruneModule(String moduleDir, RetentionPolicy policy, boolean dryRun) throws IOException {
+    S3URLHandler s3 = handler();
+    return s3.pruneModule(new URL(moduleDir), policy, dryRun);
+  }
+
+  List<String> abortStaleUploads(String root, long maxAgeMillis) throws IOException {
+    return handler().abortStaleUploads(new URL(root), maxAgeMillis);
+  }
+
+  void useBundle(String revisionDir) throws IOException {
+    // No point fetching the bundle of a module that isn't there
+    if (isDefinitelyAbsent(Strings.stripSuffix(revisionDir, "/") + "/" + ModuleBundle.Name)) {
+      return;
+    }
+    handler().useBundle(new URL(revisionDir));
+  }
+
+  boolean writeBundle(String revisionDir) throws IOException {
+    return handler().writeBundle(new URL(revisionDir));
+  }
+
+  void warmUp(String root) throws IOException {
+    handler().warmUp(new URL(root));
+  }
+
+  /**
+   * Bulk equivalent of getResource(source).exists().  The s3 sources are checked concurrently
+   * (sharing listings where possible) and their results cached for later lookups.
+   */
+  Map<String,Boolean> exist(Collection<String> sources) throws IOException {
+    Map<String,Boolean> res = new LinkedHashMap<>();
+    List<URL> s3URLs = new ArrayList<>();
+    for (String source : sources) {
+      if (source.startsWith("s3") && isDefinitelyAbsent(source)) {
+        res.put(source, false);
+      } else if (source.startsWith("s3")) {
+        handler();
+        s3URLs.add(new URL(source));
+      } else {
+        res.put(source, getResource(source).exists());
+      }
+    }
+
+    if (!s3URLs.isEmpty()) {
+      handler().getURLInfos(s3URLs).forEach((url, info) -> res.put(url, info.isReachable()));
+    }
+    return res;
+  }
 }
@@ -13,14 +13,73 @@
  */
 package co.actioniq.ivy.s3;
 
+import org.apache.ivy.core.IvyPatternHelper;
+import org.apache.ivy.core.LogOptions;
+import org.apache.ivy.core.cache.ArtifactOrigin;
+import org.apache.ivy.core.cache.DefaultRepositoryCacheManager;
+import org.apache.ivy.core.cache.RepositoryCacheManager;
+import org.apache.ivy.core.event.EventManager;
+import org.apache.ivy.core.event.resolve.EndResolveEvent;
+import org.apache.ivy.core.module.descriptor.Artifact;
+import org.apache.ivy.core.module.descriptor.DefaultArtifact;
+import org.apache.ivy.core.module.descriptor.DependencyDescriptor;
+import org.apache.ivy.core.module.id.ModuleRevisionId;
+import org.apache.ivy.core.report.ArtifactDownloadReport;
+import org.apache.ivy.core.report.DownloadReport;
+import org.apache.ivy.core.report.DownloadStatus;
+import org.apache.ivy.core.report.ResolveReport;
+import org.apache.ivy.core.resolve.DownloadOptions;
+import org.apache.ivy.core.resolve.ResolveData;
+import org.apache.ivy.core.resolve.ResolvedModuleRevision;
+import org.apache.ivy.core.settings.IvySettings;
+import org.apache.ivy.plugins.repository.Resource;
+import org.apache.ivy.plugins.repository.url.URLRepository;
 import org.apache.ivy.plugins.resolver.IBiblioResolver;
+import org.apache.ivy.plugins.resolver.util.ResolvedResource;
+import org.apache.ivy.plugins.resolver.util.ResourceMDParser;
+import org.apache.ivy.util.Checks;
+import org.apache.ivy.util.Message;
+import org.apache.ivy.util.url.URLHandler.URLInfo;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 
 public class S3URLResolver extends IBiblioResolver {
   private static final String M2_PER_MODULE_PATTERN = "[revision]/[artifact]-[revision](-[classifier]).[ext]";
   private static final String M2_PATTERN = "[organisation]/[module]/" + M2_PER_MODULE_PATTERN;
+  private static final long DefaultNegativeLookupRefreshMillis = 10 * 60 * 1000;
+  // The classified jars Ivy's pom parser checks for next to every pom
+  private static final List<String> PomProbedClassifiers = Arrays.asList("sources", "src", "javadoc");
+
+  private boolean inlineChecksums = false;
+  private boolean warmup = false;
+  private boolean warmedUp = false;
+  private boolean negativeLookups = false;
+  private boolean bundles = false;
+  // The revision directories published in the current publish transaction
+  private final Set<String> publishedRevisionDirs = new LinkedHashSet<>();
+  // For artifacts with their own URL, as BasicResolver does
+  private final URLRepository artifactURLRepository = new URLRepository();
+  private long negativeLookupRefreshMillis = DefaultNegativeLookupRefreshMillis;
+  private File lockfile = null;
+  private boolean strictLockfile = false;
+  private EventManager lockfileEventManager = null;
 
   public S3URLResolver() {
     setM2compatible(true);
@@ -38,6 +97,590 @@ public class S3URLResolver extends IBiblioResolver {
 
   public String getTypeName() { return "s3"; }
 
+  private S3URLRepository s3Repository() {
+    return (S3URLRepository)getRepository();
+  }
+
+  /**
+   * When enabled, the S3 client for the root's bucket (credentials, region lookup and all) is prepared in the
+   * background as soon as the resolver is configured, instead of on the first request.
+   */
+  public void setWarmup(boolean warmup) {
+    this.warmup = warmup;
+    startWarmUp();
+  }
+
+  public boolean isWarmup() {
+    return warmup;
+  }
+
+  // Settings can set the root and warmup attributes in either order, whichever comes second starts it
+  private synchronized void startWarmUp() {
+    String root = getRoot();
+    if (!warmup || warmedUp || root == null || !root.startsWith("s3")) {
+      return;
+    }
+    warmedUp = true;
+    try {
+      s3Repository().warmUp(root);
+    } catch (IOException | RuntimeException e) {
+      Message.verbose("S3URLResolver - Unable to warm up " + root + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * When enabled, the resolver keeps the set of organisations/modules present under its root (listed in the
+   * background and refreshed every negativeLookupRefresh milliseconds) and answers lookups outside of it as
+   * missing without asking S3.  Useful when the resolver sits in a chain next to a public repository.
+   */
+  public void setNegativeLookups(boolean negativeLookups) {
+    this.negativeLookups = negativeLookups;
+    applyPresenceFilter();
+  }
+
+  public boolean isNegativeLookups() {
+    return negativeLookups;
+  }
+
+  public void setNegativeLookupRefresh(long negativeLookupRefresh) {
+    this.negativeLookupRefreshMillis = negativeLookupRefresh;
+    applyPresenceFilter();
+  }
+
+  public long getNegativeLookupRefresh() {
+    return negativeLookupRefreshMillis;
+  }
+
+  // Settings can set the root and these attributes in any order, the filter is replaced each time
+  private void applyPresenceFilter() {
+    String root = getRoot();
+    boolean enabled = negativeLookups && root != null && root.startsWith("s3");
+    s3Repository().setPresenceFilter(enabled ? root : null, negativeLookupRefreshMillis);
+  }
+
+  /**
+   * When enabled, publishing a module revision also writes a single bundle object holding all of its files
+   * (up to 8MB) and resolving a revision fetches its bundle once instead of each file separately.  Revisions
+   * without a bundle are resolved as usual.
+   */
+  public void setBundles(boolean bundles) {
+    this.bundles = bundles;
+  }
+
+  public boolean isBundles() {
+    return bundles;
+  }
+
+  /**
+   * When enabled, HEADs and small GETs (descriptors, indexes) still pending after hedgeDelay get a second
+   * request and the first response wins.  Extra requests are capped at about 5% of all requests.
+   */
+  public void setHedging(boolean hedging) {
+    s3Repository().setHedging(hedging, s3Repository().getHedgeDelayMillis());
+  }
+
+  public boolean isHedging() {
+    return s3Repository().isHedging();
+  }
+
+  /**
+   * Milliseconds before a request is hedged, defaults to the p95 latency of recent requests
+   */
+  public void setHedgeDelay(long hedgeDelay) {
+    s3Repository().setHedging(s3Repository().isHedging(), hedgeDelay);
+  }
+
+  public long getHedgeDelay() {
+    return s3Repository().getHedgeDelayMillis();
+  }
+
+  /**
+   * When enabled every published revision is recorded in its module's maven-metadata.xml and
+   * revision listings read that index instead of listing S3 (falling back to listing without one).
+   */
+  public void setRevisionIndex(boolean revisionIndex) {
+    s3Repository().setUseRevisionIndex(revisionIndex);
+  }
+
+  public boolean isRevisionIndex() {
+    return s3Repository().isUseRevisionIndex();
+  }
+
+  /**
+   * When enabled Ivy doesn't fetch .sha1/.md5 files to check downloads.  Downloads are always checked
+   * while streaming against the checksums stored on the object (or its ETag), so this only gives up
+   * checking objects that have neither (i.e. multipart uploads published without checksum metadata).
+   */
+  public void setInlineChecksums(boolean inlineChecksums) {
+    this.inlineChecksums = inlineChecksums;
+  }
+
+  public boolean isInlineChecksums() {
+    return inlineChecksums;
+  }
+
+  /**
+   * A file recording the S3 metadata (ETag, size, last modified) of everything a successful resolve used.
+   * Later resolves trust those entries instead of asking S3 for them again.
+   */
+  public void setLockfile(String lockfile) {
+    this.lockfile = new File(lockfile);
+  }
+
+  public String getLockfile() {
+    return lockfile == null ? null : lockfile.getPath();
+  }
+
+  /**
+   * "trust" (the default) uses the lockfile entries as they are, "strict" also re-checks all of them
+   * against S3 in the background, warns about the ones that changed and replaces them in the metadata
+   * cache, so lookups from then on (and the lockfile written at the end of the resolve) see the current objects.
+   */
+  public void setLockfileMode(String lockfileMode) {
+    switch (lockfileMode) {
+      case "trust":
+        strictLockfile = false;
+        break;
+      case "strict":
+        strictLockfile = true;
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown lockfile mode: " + lockfileMode + " (expected trust or strict)");
+    }
+  }
+
+  public String getLockfileMode() {
+    return strictLockfile ? "strict" : "trust";
+  }
+
+  public ResolvedModuleRevision getDependency(DependencyDescriptor dd, ResolveData data) throws ParseException {
+    if (lockfile != null && data.getEventManager() != null) {
+      initLockfile(data.getEventManager());
+    }
+    return super.getDependency(dd, data);
+  }
+
+  // Loads the lockfile the first time we resolve, and makes sure it's written at the end of every resolve
+  private synchronized void initLockfile(EventManager eventManager) {
+    if (lockfileEventManager == eventManager) {
+      return;
+    }
+    boolean firstResolve = lockfileEventManager == null;
+    lockfileEventManager = eventManager;
+    eventManager.addIvyListener(event -> writeLockfile(((EndResolveEvent)event).getReport()), EndResolveEvent.NAME);
+
+    if (!firstResolve) {
+      return;
+    }
+
+    S3URLHandler handler = s3Repository().handler();
+    handler.recordURLInfos();
+    if (lockfile.exists()) {
+      try {
+        Map<String,S3URLInfo> locked = S3Lockfile.read(lockfile);
+        Message.verbose("S3URLResolver - Using " + locked.size() + " entries from lockfile " + lockfile);
+        handler.pinURLInfos(locked);
+        if (strictLockfile) {
+          verifyLockfileInBackground(locked);
+        }
+      } catch (IOException e) {
+        Message.warn("S3URLResolver - Ignoring unreadable lockfile " + lockfile + ": " + e.getMessage());
+      }
+    }
+  }
+
+  private void verifyLockfileInBackground(Map<String,S3URLInfo> locked) {
+    Thread thread = new Thread(() -> {
+      try {
+        List<URL> urls = new ArrayList<>();
+        for (String url : locked.keySet()) {
+          urls.add(new URL(url));
+        }
+        s3Repository().handler().refreshURLInfos(urls).forEach((url, info) -> {
+          String etag = info instanceof S3URLInfo ? ((S3URLInfo)info).getETag() : null;
+          if (!Objects.equals(locked.get(url).getETag(), etag)) {
+            Message.warn("S3URLResolver - " + url + " changed since lockfile " + lockfile + " was written");
+          }
+        });
+      } catch (IOException | RuntimeException e) {
+        Message.warn("S3URLResolver - Unable to verify lockfile " + lockfile + ": " + e.getMessage());
+      }
+    }, "S3URLResolver-lockfile");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private void writeLockfile(ResolveReport report) {
+    if (report == null || report.hasError()) {
+      return;
+    }
+
+    Map<String,URLInfo> infos = new HashMap<>();
+    s3Repository().handler().recordedURLInfos().forEach((url, info) -> {
+      if (isOwnURL(url)) {
+        infos.put(url, info);
+      }
+    });
+
+    try {
+      S3Lockfile.write(lockfile, infos);
+    } catch (IOException e) {
+      Message.warn("S3URLResolver - Unable to write lockfile " + lockfile + ": " + e.getMessage());
+    }
+  }
+
+  // Whether the URL is under one of our patterns (the handler is shared with other S3 resolvers)
+  private boolean isOwnURL(String url) {
+    List<String> patterns = new ArrayList<>(strings(getIvyPatterns()));
+    patterns.addAll(strings(getArtifactPatterns()));
+    for (String str : patterns) {
+      int tokenIdx = str.indexOf('[');
+      if (url.startsWith(tokenIdx < 0 ? str : str.substring(0, tokenIdx))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  protected ResolvedResource findResourceUsingPattern(ModuleRevisionId mrid, String pattern, Artifact artifact,
+                                                      ResourceMDParser rmdparser, Date date) {
+    if (getSettings() != null && !getSettings().getVersionMatcher().isDynamic(mrid)) {
+      if (bundles) {
+        useBundle(artifact);
+      }
+      checkCandidates(mrid, artifact, date);
+    }
+    return super.findResourceUsingPattern(mrid, pattern, artifact, rmdparser, date);
+  }
+
+  // Ivy looks for the artifact one pattern at a time.  Checking all of the places it could be at once (and for a
+  // descriptor, those of the artifacts looked up next: the module's jar, and the sources and javadoc jars a pom
+  // is probed for) lets the handler share a listing between the ones in the same directory, and the lookups that
+  // follow are answered from its metadata cache.
+  private void checkCandidates(ModuleRevisionId mrid, Artifact artifact, Date date) {
+    List<Artifact> artifacts = new ArrayList<>();
+    artifacts.add(artifact);
+    if (isModuleDescriptor(artifact)) {
+      artifacts.add(new DefaultArtifact(mrid, date, mrid.getName(), "jar", "jar"));
+    }
+    if ("pom".equals(artifact.getType())) {
+      for (String classifier : PomProbedClassifiers) {
+        artifacts.add(new DefaultArtifact(mrid, date, mrid.getName(), classifier, "jar",
+            Collections.singletonMap("m:classifier", classifier)));
+      }
+    }
+
+    Set<String> candidates = new LinkedHashSet<>();
+    for (Artifact candidate : artifacts) {
+      for (String pattern : patternsOf(candidate)) {
+        candidates.add(IvyPatternHelper.substitute(pattern, mrid, candidate));
+      }
+    }
+    candidates.removeIf(candidate -> !candidate.startsWith("s3"));
+    if (candidates.size() < 2) {
+      return; // Nothing to share
+    }
+
+    try {
+      s3Repository().exist(candidates);
+    } catch (IOException | RuntimeException e) {
+      // Each pattern is still looked up on its own
+      Message.verbose("S3URLResolver - Unable to check the candidates for " + artifact + ": " + e.getMessage());
+    }
+  }
+
+  // Failing to get the bundle only means falling back to the individual files
+  private void useBundle(Artifact artifact) {
+    String revisionDir = getRevisionDirectory(artifact);
+    if (revisionDir == null || !revisionDir.startsWith("s3")) {
+      return;
+    }
+    try {
+      s3Repository().useBundle(revisionDir);
+    } catch (IOException | RuntimeException e) {
+      Message.verbose("S3URLResolver - Unable to use the bundle of " + revisionDir + ": " + e.getMessage());
+    }
+  }
+
+  // The module directory plus the revision, or null if the patterns don't have a directory per revision
+  private String getRevisionDirectory(Artifact artifact) {
+    String moduleDir = getModuleDirectory(artifact);
+    return moduleDir == null ? null : moduleDir + "/" + artifact.getModuleRevisionId().getRevision() + "/";
+  }
+
+  public void beginPublishTransaction(ModuleRevisionId module, boolean overwrite) throws IOException {
+    publishedRevisionDirs.clear();
+    super.beginPublishTransaction(module, overwrite);
+  }
+
+  public void abortPublishTransaction() throws IOException {
+    publishedRevisionDirs.clear();
+    super.abortPublishTransaction();
+  }
+
+  public void commitPublishTransaction() throws IOException {
+    super.commitPublishTransaction();
+    if (bundles) {
+      for (String revisionDir : publishedRevisionDirs) {
+        s3Repository().writeBundle(revisionDir);
+      }
+    }
+    publishedRevisionDirs.clear();
+  }
+
+  // Same as BasicResolver's, but with our downloader
+  public DownloadReport download(Artifact[] artifacts, DownloadOptions options) {
+    RepositoryCacheManager cacheManager = getRepositoryCacheManager();
+    clearArtifactAttempts();
+    DownloadReport dr = new DownloadReport();
+    for (Artifact artifact : artifacts) {
+      ArtifactDownloadReport adr = cacheManager.download(artifact, a -> getArtifactRef(fromSystem(a), null),
+          this::downloadLocked, getCacheDownloadOptions(options));
+      if (DownloadStatus.FAILED == adr.getDownloadStatus()) {
+        if (!ArtifactDownloadReport.MISSING_ARTIFACT.equals(adr.getDownloadDetails())) {
+          Message.warn("\t" + adr);
+        }
+      } else if (DownloadStatus.NO == adr.getDownloadStatus() || LogOptions.LOG_QUIET.equals(options.getLog())) {
+        Message.verbose("\t" + adr);
+      } else {
+        Message.info("\t" + adr);
+      }
+      dr.addArtifactReport(adr);
+      checkInterrupted();
+    }
+    return dr;
+  }
+
+  // Same as BasicResolver's, but with our downloader
+  public ArtifactDownloadReport download(ArtifactOrigin origin, DownloadOptions options) {
+    Checks.checkNotNull(origin, "origin");
+    return getRepositoryCacheManager().download(origin.getArtifact(), artifact -> {
+      try {
+        Resource resource = getResource(origin.getLocation());
+        return resource == null ? null : new ResolvedResource(resource, artifact.getModuleRevisionId().getRevision());
+      } catch (IOException e) {
+        Message.debug(e);
+        return null;
+      }
+    }, this::downloadLocked, getCacheDownloadOptions(options));
+  }
+
+  // Ivy's downloader fetches the artifact to dest.part and renames that to dest.  Doing both under dest's
+  // DestinationLock keeps processes sharing the cache from moving each other's part file, and the ones that
+  // waited reuse what the first one downloaded.  The lock covers the part file so our handler writes it without
+  // taking a lock of its own.
+  private void downloadLocked(Artifact artifact, Resource resource, File dest) throws IOException {
+    createLockDir();
+    try (DestinationLock lock = DestinationLock.acquire(dest)) {
+      if (lock.changedWhileWaiting() && dest.lastModified() == resource.getLastModified()) {
+        Message.verbose("\t" + dest + " was downloaded by another process");
+        return;
+      }
+
+      Files.deleteIfExists(dest.toPath());
+      File part = new File(dest.getAbsolutePath() + ".part");
+      lock.cover(part);
+      if (resource.getName().equals(String.valueOf(artifact.getUrl()))) {
+        artifactURLRepository.get(resource.getName(), part);
+      } else {
+        getAndCheck(resource, part);
+      }
+      if (!part.renameTo(dest)) {
+        throw new IOException("impossible to move part file to definitive one: " + part + " -> " + dest);
+      }
+    }
+  }
+
+  // The lock files of the whole cache go in one directory at its root, see DestinationLock.lockFile
+  private void createLockDir() throws IOException {
+    RepositoryCacheManager cacheManager = getRepositoryCacheManager();
+    if (cacheManager instanceof DefaultRepositoryCacheManager) {
+      File basedir = ((DefaultRepositoryCacheManager)cacheManager).getBasedir();
+      Files.createDirectories(new File(basedir, DestinationLock.LockDirName).toPath());
+    }
+  }
+
+  protected long getAndCheck(Resource resource, File dest) throws IOException {
+    if (inlineChecksums) {
+      return get(resource, dest);
+    }
+    return super.getAndCheck(resource, dest);
+  }
+
+  public void publish(Artifact artifact, File src, boolean overwrite) throws IOException {
+    // With inline checksums our handler writes the checksum files while uploading, see putChecksum
+    s3Repository().setSidecarChecksums(inlineChecksums ? Arrays.asList(getChecksumAlgorithms()) : Collections.emptyList());
+    super.publish(artifact, src, overwrite);
+
+    String revisionDir = getRevisionDirectory(artifact);
+    if (bundles && revisionDir != null && revisionDir.startsWith("s3")) {
+      publishedRevisionDirs.add(revisionDir);
+    }
+
+    if (isRevisionIndex() && isModuleDescriptor(artifact)) {
+      ModuleRevisionId mrid = artifact.getModuleRevisionId();
+      String moduleDir = getModuleDirectory(artifact);
+      if (moduleDir != null) {
+        s3Repository().addToRevisionIndex(moduleDir, mrid.getOrganisation(), mrid.getName(), mrid.getRevision());
+      }
+    }
+  }
+
+  protected void putChecksum(Artifact artifact, File src, String dest, boolean overwrite, String algorithm) throws IOException {
+    if (!inlineChecksums) {
+      super.putChecksum(artifact, src, dest, overwrite, algorithm);
+    }
+  }
+
+  /**
+   * Promotes a published module revision to another root (e.g. from staging to releases) by copying
+   * all of its objects server side, so none of the bytes leave S3.  The descriptors are copied last
+   * and the target's revision index is updated when revisionIndex is enabled.  A revision already in the
+   * target root is never overwritten.
+   */
+  public void promote(ModuleRevisionId mrid, String targetRoot) throws IOException {
+    ensureConfigured(getSettings());
+    String moduleDir = getModuleDirectory(DefaultArtifact.newIvyArtifact(mrid, null));
+    String root = getRoot();
+    if (moduleDir == null || root == null || !moduleDir.startsWith(root)) {
+      throw new IOException("Unable to promote " + mrid + ": the patterns of " + getName() + " don't have a directory per revision under its root");
+    }
+
+    String targetModuleDir = Strings.stripSuffix(targetRoot, "/") + "/" + Strings.stripPrefix(moduleDir.substring(root.length()), "/");
+    String sourceRevisionDir = moduleDir + "/" + mrid.getRevision() + "/";
+    String targetRevisionDir = targetModuleDir + "/" + mrid.getRevision() + "/";
+    Message.info("S3URLResolver - Promoting " + mrid + " from " + sourceRevisionDir + " to " + targetRevisionDir);
+
+    if (!s3Repository().handler().list(new URL(targetRevisionDir)).isEmpty()) {
+      throw new IOException("Unable to promote " + mrid + ": " + targetRevisionDir + " already exists");
+    }
+    int copied = s3Repository().copyDirectory(sourceRevisionDir, targetRevisionDir);
+    if (copied == 0) {
+      throw new IOException("Unable to promote " + mrid + ": nothing found under " + sourceRevisionDir);
+    }
+
+    if (isRevisionIndex()) {
+      s3Repository().addToRevisionIndex(targetModuleDir, mrid.getOrganisation(), mrid.getName(), mrid.getRevision());
+    }
+    // The resolvers of the target root in these settings see the promoted revision without waiting for a refresh
+    if (getSettings() instanceof IvySettings) {
+      for (Object resolver : ((IvySettings)getSettings()).getResolvers()) {
+        if (resolver instanceof S3URLResolver) {
+          ((S3URLResolver)resolver).s3Repository().addToPresenceFilter(targetRevisionDir);
+        }
+      }
+    }
+    Message.info("S3URLResolver - Promoted " + mrid + " (" + copied + " objects)");
+  }
+
+  /**
+   * Deletes the revisions of the organisation's modules matching modulePattern (a glob) that aren't among the
+   * keepLast most recently published ones or published within the last maxAgeMillis (either one can be <= 0
+   * to turn it off).  The most recently published revision of a module is always kept.  Returns the expired
+   * revisions, which are only reported when dryRun is set.
+   */
+  public List<ModuleRevisionId> prune(String organisation, String modulePattern, int keepLast, long maxAgeMillis,
+                                      boolean dryRun) throws IOException {
+    ensureConfigured(getSettings());
+    RetentionPolicy policy = new RetentionPolicy(keepLast, maxAgeMillis);
+
+    String organisationDir = getOrganisationDirectory(organisation);
+    if (organisationDir == null) {
+      throw new IOException("Unable to prune " + organisation + ": the patterns of " + getName() + " don't have a directory per module");
+    }
+
+    // Not Ivy's GlobPatternMatcher, which needs jakarta-oro on the classpath
+    PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + modulePattern);
+    List<ModuleRevisionId> res = new ArrayList<>();
+    for (Object child : getRepository().list(organisationDir)) {
+      String childDir = (String)child;
+      if (!childDir.endsWith("/")) {
+        continue;
+      }
+      String module = Strings.stripSuffix(childDir, "/");
+      module = module.substring(module.lastIndexOf('/') + 1);
+      if (matcher.matches(Paths.get(module))) {
+        for (String revision : s3Repository().pruneModule(childDir, policy, dryRun)) {
+          res.add(ModuleRevisionId.newInstance(organisation, module, revision));
+        }
+      }
+    }
+    return res;
+  }
+
+  /**
+   * Aborts the incomplete multipart uploads under the root that were started more than maxAgeMillis ago, along
+   * with their local state, and returns their keys.  These are left behind by publishes of large artifacts that
+   * died part way and never ran again: S3 keeps (and bills) their parts until they're completed or aborted.
+   * Only run it with a maxAgeMillis well above the time a publish takes, uploads still in progress get aborted too.
+   */
+  public List<String> abortStaleUploads(long maxAgeMillis) throws IOException {
+    ensureConfigured(getSettings());
+    String root = getRoot();
+    if (root == null || !root.startsWith("s3")) {
+      throw new IOException("Unable to abort the stale uploads of " + getName() + ": its root isn't an s3:// URL");
+    }
+    List<String> res = s3Repository().abortStaleUploads(root, maxAgeMillis);
+    Message.info("S3URLResolver - Aborted " + res.size() + " stale uploads under " + root);
+    return res;
+  }
+
+  // The part of the ivy pattern before the /[module]/ directory, or null without one
+  private String getOrganisationDirectory(String organisation) {
+    List<String> patterns = strings(getIvyPatterns());
+    if (patterns.isEmpty()) {
+      return null;
+    }
+
+    String pattern = patterns.get(0);
+    int moduleIdx = pattern.indexOf("/[module]/");
+    if (moduleIdx < 0) {
+      return null;
+    }
+
+    String org = isM2compatible() ? organisation.replace('.', '/') : organisation;
+    return IvyPatternHelper.substituteToken(pattern.substring(0, moduleIdx), "organisation", org);
+  }
+
+  private static boolean isModuleDescriptor(Artifact artifact) {
+    return "ivy".equals(artifact.getType()) || "pom".equals(artifact.getType());
+  }
+
+  // The patterns the artifact is looked up with
+  private List<String> patternsOf(Artifact artifact) {
+    return strings(isModuleDescriptor(artifact) ? getIvyPatterns() : getArtifactPatterns());
+  }
+
+  // Ivy hands out its patterns as raw lists of strings
+  private static List<String> strings(List<?> list) {
+    List<String> res = new ArrayList<>(list.size());
+    for (Object o : list) {
+      res.add((String)o);
+    }
+    return res;
+  }
+
+  // The part of the publish pattern before the /[revision]/ directory, e.g. s3://bucket/releases/co/actioniq/foo
+  // or null if the pattern doesn't have a directory per revision.
+  String getModuleDirectory(Artifact artifact) {
+    List<String> patterns = strings("ivy".equals(artifact.getType()) ? getIvyPatterns() : getArtifactPatterns());
+    if (patterns.isEmpty()) {
+      return null;
+    }
+
+    String pattern = patterns.get(0);
+    int revisionIdx = pattern.indexOf("/[revision]/");
+    if (revisionIdx < 0) {
+      return null;
+    }
+
+    ModuleRevisionId mrid = artifact.getModuleRevisionId();
+    if (isM2compatible()) {
+      mrid = convertM2IdForResourceSearch(mrid);
+    }
+    return IvyPatternHelper.substitute(pattern.substring(0, revisionIdx), mrid);
+  }
+
   // #coveo change: need to reset patterns when this is called (see below)
   public void setRoot(String root) {
     super.setRoot(root);
@@ -46,5 +689,8 @@ public class S3URLResolver extends IBiblioResolver {
     // To be able to modify them again, we'll fix that.
     setIvyPatterns(new ArrayList());
     setArtifactPatterns(new ArrayList());
+
+    startWarmUp();
+    applyPresenceFilter();
   }
 }
@@ -5,15 +5,18 @@ import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.auth.AWSCredentialsProviderChain;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
 import com.amazonaws.auth.EnvironmentVariableCredentialsProvider;
 import com.amazonaws.auth.InstanceProfileCredentialsProvider;
 import com.amazonaws.auth.PropertiesFileCredentialsProvider;
 import com.amazonaws.auth.SystemPropertiesCredentialsProvider;
 import com.amazonaws.auth.profile.ProfileCredentialsProvider;
+import com.amazonaws.client.builder.AwsClientBuilder;
 import com.amazonaws.regions.Region;
 import com.amazonaws.regions.RegionUtils;
 import com.amazonaws.regions.Regions;
-import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import com.amazonaws.services.s3.AmazonS3URI;
 import org.apache.ivy.util.Message;
 
@@ -29,15 +32,21 @@ import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 class S3URLUtil {
-  // This is for matching region names in URLs or host names
-  private static final Pattern RegionMatcher = makeRegionMatcher();
+  // Points every client at another S3 compatible endpoint (with path style access), e.g. a local fake for tests
+  static final String EndpointProperty = "co.actioniq.ivy.s3.endpoint";
 
-  private Map<String,AWSCredentials> credentialsCache = new ConcurrentHashMap<>();
+  private final Map<String,AWSCredentials> credentialsCache = new ConcurrentHashMap<>();
+  // One client per bucket, replaced when its credentials are renewed
+  private final Map<String,AmazonS3> clientCache = new ConcurrentHashMap<>();
+  private final AtomicInteger credentialRenewals = new AtomicInteger();
   private final String credentialFileName;
 
   S3URLUtil() {
@@ -49,21 +58,98 @@ class S3URLUtil {
   }
 
   ClientBucketKey getClientBucketAndKey(URL url) {
-    return getClientBucketAndKey(url, false);
+    BucketAndKey bk = getBucketAndKey(url);
+    AmazonS3 client = clientCache.get(bk.bucket);
+    if (client == null) {
+      // Two threads may both build a client here, only one of them gets cached and used
+      client = install(bk.bucket, makeClient(bk.bucket, getCredentials(bk.bucket), getRegionNameFromURLOrDNS(url, bk.bucket)));
+    }
+    return new ClientBucketKey(client, bk);
   }
 
-  ClientBucketKey getNewClientBucketAndKey(URL url) {
-    return getClientBucketAndKey(url, true);
+  // Caches the client unless another thread got there first, in which case ours is shut down and theirs returned
+  private AmazonS3 install(String bucket, AmazonS3 client) {
+    AmazonS3 existing = clientCache.putIfAbsent(bucket, client);
+    if (existing == null) {
+      return client;
+    }
+    client.shutdown();
+    return existing;
   }
 
-  private ClientBucketKey getClientBucketAndKey(URL url, boolean renew) {
+  /**
+   * A client with renewed credentials to replace the stale one (whose request failed, e.g. because its
+   * session expired).  Only one renewal replaces a given stale client, the callers that lose the race
+   * get the winner's client.
+   */
+  ClientBucketKey getNewClientBucketAndKey(URL url, ClientBucketKey stale) {
     BucketAndKey bk = getBucketAndKey(url);
-    AmazonS3Client client = new AmazonS3Client(getCredentials(bk.bucket, renew), getProxyConfiguration());
-    Optional<Region> region = getRegion(url, bk.bucket, client);
-    region.ifPresent(client::setRegion);
+    AmazonS3 current = clientCache.get(bk.bucket);
+    if (current != null && !stale.usesClient(current)) {
+      return new ClientBucketKey(current, bk); // Already renewed by somebody else
+    }
+
+    // Built outside of the map, the credentials chain and the region lookup can take a while
+    AWSCredentials credentials = computeCredentials(bk.bucket);
+    AmazonS3 client = makeClient(bk.bucket, credentials, getRegionNameFromURLOrDNS(url, bk.bucket));
+    boolean replaced = current == null ? clientCache.putIfAbsent(bk.bucket, client) == null : clientCache.replace(bk.bucket, current, client);
+    if (!replaced) {
+      client.shutdown();
+      return getClientBucketAndKey(url);
+    }
+    credentialRenewals.incrementAndGet();
+    credentialsCache.put(bk.bucket, credentials);
     return new ClientBucketKey(client, bk);
   }
 
+  int credentialRenewals() {
+    return credentialRenewals.get();
+  }
+
+  /**
+   * Prepares the credentials, region and client for this URL's bucket ahead of the first request.  The
+   * credentials chain and the region lookup run in parallel on the executor.
+   */
+  CompletableFuture<Void> warmUp(URL url, Executor executor) {
+    BucketAndKey bk = getBucketAndKey(url);
+    if (clientCache.containsKey(bk.bucket)) {
+      return CompletableFuture.completedFuture(null);
+    }
+
+    CompletableFuture<AWSCredentials> credentials =
+        CompletableFuture.supplyAsync(() -> getCredentials(bk.bucket), executor);
+    CompletableFuture<Optional<String>> regionName =
+        CompletableFuture.supplyAsync(() -> getRegionNameFromURLOrDNS(url, bk.bucket), executor);
+
+    return credentials.thenCombine(regionName, (c, r) -> {
+      install(bk.bucket, makeClient(bk.bucket, c, r));
+      return null;
+    });
+  }
+
+  private AmazonS3 makeClient(String bucket, AWSCredentials credentials, Optional<String> regionName) {
+    AmazonS3ClientBuilder builder = AmazonS3ClientBuilder.standard()
+        .withCredentials(new AWSStaticCredentialsProvider(credentials))
+        .withClientConfiguration(getProxyConfiguration());
+    String endpoint = System.getProperty(EndpointProperty);
+    if (endpoint != null) {
+      return builder
+          .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endpoint, Regions.US_EAST_1.getName()))
+          .withPathStyleAccessEnabled(true)
+          .build();
+    }
+
+    // Without a region the client goes through us-east-1 (the global endpoint)
+    Optional<Region> region = Optionals.first(() -> regionName, () -> getRegionNameFromService(bucket, builder))
+        .flatMap(r -> Optional.ofNullable(RegionUtils.getRegion(r)));
+    return builder.withRegion(region.map(Region::getName).orElse(Regions.US_EAST_1.getName())).build();
+  }
+
+  // This is for matching region names in URLs or host names, built on first use since it walks every Regions value
+  private static class RegionMatcherHolder {
+    static final Pattern RegionMatcher = makeRegionMatcher();
+  }
+
   private static Pattern makeRegionMatcher() {
     Comparator<String> ReverseLengthComparator = Comparator.comparingInt(String::length).reversed();
     String pattern = Arrays.stream(Regions.values())
@@ -73,13 +159,14 @@ class S3URLUtil {
     return Pattern.compile(pattern);
   }
 
-  // Try to get the region of the S3 URL so we can set it on the S3Client
-  private Optional<Region> getRegion(URL url, String bucket, AmazonS3Client client) {
-    Optional<String> region = Optionals.first(
+  // Try to get the region of the S3 URL so we can set it on the S3Client (asking the service is the last resort)
+  private Optional<String> getRegionNameFromURLOrDNS(URL url, String bucket) {
+    if (System.getProperty(EndpointProperty) != null) {
+      return Optional.empty();
+    }
+    return Optionals.first(
         () -> getRegionNameFromURL(url),
-        () -> getRegionNameFromDNS(bucket),
-        () -> getRegionNameFromService(bucket, client));
-    return region.flatMap(r -> Optional.ofNullable(RegionUtils.getRegion(r)));
+        () -> getRegionNameFromDNS(bucket));
   }
 
   private Optional<String> getRegionNameFromURL(URL url) {
@@ -102,19 +189,22 @@ class S3URLUtil {
     }
   }
 
-  // TODO: cache the result of this so we aren't always making the call
-  private Optional<String> getRegionNameFromService(String bucket, AmazonS3Client client) {
+  // Only called when a bucket's client is created, which is cached
+  private Optional<String> getRegionNameFromService(String bucket, AmazonS3ClientBuilder builder) {
+    AmazonS3 client = builder.withRegion(Regions.US_EAST_1).build();
     try {
       // This might fail if the current credentials don't have access to the getBucketLocation call
       return Optional.ofNullable(client.getBucketLocation(bucket));
     } catch (Exception e) {
       return Optional.empty();
+    } finally {
+      client.shutdown();
     }
   }
 
   private static Optional<String> findFirstInRegionMatcher(String str) {
     try {
-      return Optional.ofNullable(RegionMatcher.matcher(str).group(1));
+      return Optional.ofNullable(RegionMatcherHolder.RegionMatcher.matcher(str).group(1));
     } catch (IllegalStateException e) {
       return Optional.empty();
     }
@@ -129,7 +219,7 @@ class S3URLUtil {
 //    }
   }
 
-  private BucketAndKey getBucketAndKey(URL url) {
+  BucketAndKey getBucketAndKey(URL url) {
     // The AmazonS3URI constructor should work for standard S3 urls.  But if a custom domain is being used
     // (e.g. snapshots.maven.frugalmechanic.com) then we treat the hostname as the bucket and the path as the key
     return getAmazonS3URI(url)
@@ -155,14 +245,8 @@ class S3URLUtil {
     }
   }
 
-  private AWSCredentials getCredentials(String bucket, boolean renew) {
-    AWSCredentials credentials;
-    if (renew) {
-      credentials = computeCredentials(bucket);
-      credentialsCache.put(bucket, credentials);
-    } else {
-      credentials = credentialsCache.computeIfAbsent(bucket, this::computeCredentials);
-    }
+  private AWSCredentials getCredentials(String bucket) {
+    AWSCredentials credentials = credentialsCache.computeIfAbsent(bucket, this::computeCredentials);
     Message.debug("S3URLHandler - Using AWS Access Key Id: "+credentials.getAWSAccessKeyId()+" for bucket: "+bucket);
     return credentials;
   }
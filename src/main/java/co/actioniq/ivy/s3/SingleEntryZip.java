@@ -0,0 +1,430 @@
+/*
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package co.actioniq.ivy.s3;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Reads and writes the single entry zip files we store artifacts as.  This is the same format
+ * ZipOutputStream produces, written by hand so the Deflater/Inflater and the copy buffers can come
+ * from the BufferPool instead of being allocated for every file.
+ *
+ * The entry time is the source file's modification time (in UTC) so compressing the same file
+ * twice gives byte-identical output.
+ *
+ * Archives (jars and the like) are already compressed, so their entry is STORED rather than deflated:
+ * that's cheaper than deflating them again, and readers can seek straight into the archive's bytes
+ * (see storedEntry).
+ */
+class SingleEntryZip {
+  private SingleEntryZip() {}
+
+  private static final int LocalHeaderSig = 0x04034b50;
+  private static final int DataDescriptorSig = 0x08074b50;
+  private static final int CentralHeaderSig = 0x02014b50;
+  private static final int EndSig = 0x06054b50;
+
+  private static final int FlagEncrypted = 0x0001;
+  private static final int FlagDataDescriptor = 0x0008;
+  private static final int FlagUTF8 = 0x0800;
+
+  // Sizes and offsets from here on need zip64 extensions which we leave to ZipOutputStream
+  private static final long Zip64Threshold = 0xFFFFFFFFL;
+
+  static final int LocalHeaderSize = 30;
+  private static final int CentralHeaderSize = 46;
+  private static final int EndSize = 22;
+
+  private static final Set<String> ArchiveExtensions = new HashSet<>(Arrays.asList("jar", "war", "ear", "aar", "zip"));
+
+  static void compress(File src, File dest) throws IOException {
+    compress(src, dest, Digests.none());
+  }
+
+  /**
+   * Compresses src into dest, updating the digests with the uncompressed bytes as they are read
+   */
+  static void compress(File src, File dest, Digests digests) throws IOException {
+    byte[] name = src.getName().getBytes(StandardCharsets.UTF_8);
+    if (needsZip64(src.length(), name.length)) {
+      compressWithZipOutputStream(src, dest, digests);
+      return;
+    }
+    if (isArchive(src.getName())) {
+      store(src, dest, name, digests);
+      return;
+    }
+
+    int flags = FlagDataDescriptor | FlagUTF8;
+    long dosTime = dosTime(src.lastModified());
+
+    BufferPool pool = BufferPool.Shared;
+    Deflater deflater = pool.acquireDeflater();
+    byte[][] buffers = pool.acquireBuffers(2);
+    try (InputStream in = new FileInputStream(src); OutputStream out = new FileOutputStream(dest)) {
+      byte[] inBuf = buffers[0];
+      byte[] outBuf = buffers[1];
+
+      LittleEndian header = localHeader(flags, ZipEntry.DEFLATED, dosTime, name);
+      header.writeTo(out);
+
+      CRC32 crc = new CRC32();
+      long size = 0;
+      long compressedSize = 0;
+      int n;
+      while ((n = in.read(inBuf)) != -1) {
+        crc.update(inBuf, 0, n);
+        digests.update(inBuf, 0, n);
+        size += n;
+        deflater.setInput(inBuf, 0, n);
+        while (!deflater.needsInput()) {
+          compressedSize += deflate(deflater, outBuf, out);
+        }
+      }
+      deflater.finish();
+      while (!deflater.finished()) {
+        compressedSize += deflate(deflater, outBuf, out);
+      }
+
+      LittleEndian descriptor = new LittleEndian(16);
+      descriptor.int32(DataDescriptorSig).int32(crc.getValue()).int32(compressedSize).int32(size);
+      descriptor.writeTo(out);
+
+      long centralOffset = header.length() + compressedSize + descriptor.length();
+      writeDirectory(out, flags, ZipEntry.DEFLATED, dosTime, crc.getValue(), compressedSize, size, name, centralOffset);
+    } finally {
+      pool.releaseBuffers(buffers);
+      pool.release(deflater);
+    }
+  }
+
+  // Copies src as a STORED entry.  Those can't defer their CRC and sizes to a data descriptor, so the
+  // local header is written with zeros first and filled in once the data is through.
+  private static void store(File src, File dest, byte[] name, Digests digests) throws IOException {
+    int flags = FlagUTF8;
+    long dosTime = dosTime(src.lastModified());
+
+    BufferPool pool = BufferPool.Shared;
+    byte[][] buffers = pool.acquireBuffers(1);
+    try (InputStream in = new FileInputStream(src); FileOutputStream out = new FileOutputStream(dest)) {
+      LittleEndian header = localHeader(flags, ZipEntry.STORED, dosTime, name);
+      header.writeTo(out);
+
+      CRC32 crc = new CRC32();
+      long size = 0;
+      int n;
+      while ((n = in.read(buffers[0])) != -1) {
+        crc.update(buffers[0], 0, n);
+        digests.update(buffers[0], 0, n);
+        out.write(buffers[0], 0, n);
+        size += n;
+      }
+
+      writeDirectory(out, flags, ZipEntry.STORED, dosTime, crc.getValue(), size, size, name, header.length() + size);
+
+      LittleEndian fields = new LittleEndian(12);
+      fields.int32(crc.getValue()).int32(size).int32(size);
+      ByteBuffer buffer = fields.buffer();
+      long position = 14;
+      while (buffer.hasRemaining()) {
+        position += out.getChannel().write(buffer, position);
+      }
+    } finally {
+      pool.releaseBuffers(buffers);
+    }
+  }
+
+  private static LittleEndian localHeader(int flags, int method, long dosTime, byte[] name) {
+    LittleEndian header = new LittleEndian(LocalHeaderSize + name.length);
+    return header.int32(LocalHeaderSig).int16(20).int16(flags).int16(method).int32(dosTime)
+        .int32(0).int32(0).int32(0).int16(name.length).int16(0).bytes(name);
+  }
+
+  // The central directory and the end record that follow the entry data
+  private static void writeDirectory(OutputStream out, int flags, int method, long dosTime, long crc,
+                                     long compressedSize, long size, byte[] name, long centralOffset) throws IOException {
+    LittleEndian central = new LittleEndian(CentralHeaderSize + name.length);
+    central.int32(CentralHeaderSig).int16(20).int16(20).int16(flags).int16(method).int32(dosTime)
+        .int32(crc).int32(compressedSize).int32(size).int16(name.length).int16(0).int16(0)
+        .int16(0).int16(0).int32(0).int32(0).bytes(name);
+    central.writeTo(out);
+
+    LittleEndian end = new LittleEndian(EndSize);
+    end.int32(EndSig).int16(0).int16(0).int16(1).int16(1).int32(central.length()).int32(centralOffset).int16(0);
+    end.writeTo(out);
+  }
+
+  static boolean isArchive(String fileName) {
+    int dot = fileName.lastIndexOf('.');
+    return dot >= 0 && ArchiveExtensions.contains(fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+  }
+
+  /**
+   * Where the content starts in a zip of objectLength bytes starting with this local header, and how long
+   * it is, when it's one we wrote with a STORED entry.  Null when it's anything else (deflated, several
+   * entries, or not one of ours), since then the bytes can't be read in place.
+   */
+  static long[] storedEntry(byte[] header, long objectLength) {
+    if (header.length < LocalHeaderSize || LittleEndian.int32(header, 0) != LocalHeaderSig) {
+      return null;
+    }
+    int flags = LittleEndian.int16(header, 6);
+    int method = LittleEndian.int16(header, 8);
+    long compressedSize = LittleEndian.int32(header, 18);
+    long size = LittleEndian.int32(header, 22);
+    int nameLength = LittleEndian.int16(header, 26);
+    int extraLength = LittleEndian.int16(header, 28);
+    if (method != ZipEntry.STORED || (flags & (FlagEncrypted | FlagDataDescriptor)) != 0 || compressedSize != size) {
+      return null;
+    }
+
+    long dataOffset = LocalHeaderSize + nameLength + extraLength;
+    // Exactly one entry followed by its central directory header and the end record
+    if (dataOffset + size + CentralHeaderSize + nameLength + EndSize != objectLength) {
+      return null;
+    }
+    return new long[] {dataOffset, size};
+  }
+
+  /**
+   * Whether an entry of this many bytes could end up with a size or offset that doesn't fit in 32 bits.
+   * Incompressible data grows when deflated, so this goes by zlib's bound on the compressed size
+   * (deflateBound) rather than by the length alone.
+   */
+  static boolean needsZip64(long length, int nameLength) {
+    long maxCompressedSize = length + (length >> 12) + (length >> 14) + (length >> 25) + 13;
+    // The central directory starts after the local header, the data and its descriptor
+    long maxCentralOffset = 30 + nameLength + maxCompressedSize + 16;
+    return length >= Zip64Threshold || maxCentralOffset >= Zip64Threshold;
+  }
+
+  private static int deflate(Deflater deflater, byte[] outBuf, OutputStream out) throws IOException {
+    int n = deflater.deflate(outBuf);
+    out.write(outBuf, 0, n);
+    return n;
+  }
+
+  static void uncompress(File zipped, File dest) throws IOException {
+    uncompress(zipped, dest, Digests.none());
+  }
+
+  /**
+   * Uncompresses the entry into dest, updating the digests with the uncompressed bytes
+   */
+  static void uncompress(File zipped, File dest, Digests digests) throws IOException {
+    byte[] header = new byte[30];
+    try (InputStream in = new FileInputStream(zipped)) {
+      int read = readFully(in, header, 0, header.length);
+      if (read >= 4 && LittleEndian.int32(header, 0) == EndSig) {
+        throw new ZipException("Zip file is empty: " + zipped.getAbsolutePath());
+      }
+      if (read < header.length || LittleEndian.int32(header, 0) != LocalHeaderSig) {
+        throw new ZipException("Not a zip file: " + zipped.getAbsolutePath());
+      }
+
+      int flags = LittleEndian.int16(header, 6);
+      int method = LittleEndian.int16(header, 8);
+      if (method != ZipEntry.DEFLATED || (flags & FlagEncrypted) != 0) {
+        // Stored entries are plain copies and encrypted ones aren't something we write, let the JDK deal with them
+        uncompressWithZipInputStream(zipped, dest, digests);
+        return;
+      }
+
+      skipFully(in, LittleEndian.int16(header, 26) + LittleEndian.int16(header, 28));
+
+      // Whatever follows the compressed data: the start of the data descriptor
+      byte[] trailer = new byte[8];
+      long crc = inflate(in, dest, digests, trailer);
+
+      long expectedCRC;
+      if ((flags & FlagDataDescriptor) != 0) {
+        // The data descriptor signature is optional
+        expectedCRC = LittleEndian.int32(trailer, 0) == DataDescriptorSig ? LittleEndian.int32(trailer, 4) : LittleEndian.int32(trailer, 0);
+      } else {
+        expectedCRC = LittleEndian.int32(header, 14);
+      }
+      if (crc != expectedCRC) {
+        throw new ZipException("CRC mismatch in " + zipped.getAbsolutePath());
+      }
+    }
+  }
+
+  // Inflates the entry data into dest and fills trailer with the bytes following the compressed data
+  private static long inflate(InputStream in, File dest, Digests digests, byte[] trailer) throws IOException {
+    BufferPool pool = BufferPool.Shared;
+    Inflater inflater = pool.acquireInflater();
+    byte[][] buffers = pool.acquireBuffers(2);
+    try (OutputStream out = new FileOutputStream(dest)) {
+      byte[] inBuf = buffers[0];
+      byte[] outBuf = buffers[1];
+      CRC32 crc = new CRC32();
+
+      int lastRead = 0;
+      while (!inflater.finished()) {
+        if (inflater.needsInput()) {
+          lastRead = in.read(inBuf);
+          if (lastRead == -1) {
+            throw new EOFException("Unexpected end of zip entry");
+          }
+          inflater.setInput(inBuf, 0, lastRead);
+        }
+        int n = inflater.inflate(outBuf);
+        if (n == 0 && inflater.needsDictionary()) {
+          throw new ZipException("Zip entry needs a preset dictionary");
+        }
+        crc.update(outBuf, 0, n);
+        digests.update(outBuf, 0, n);
+        out.write(outBuf, 0, n);
+      }
+
+      int leftover = Math.min(inflater.getRemaining(), trailer.length);
+      System.arraycopy(inBuf, lastRead - inflater.getRemaining(), trailer, 0, leftover);
+      readFully(in, trailer, leftover, trailer.length - leftover);
+
+      return crc.getValue();
+    } catch (DataFormatException e) {
+      throw new ZipException(e.getMessage());
+    } finally {
+      pool.releaseBuffers(buffers);
+      pool.release(inflater);
+    }
+  }
+
+  private static void compressWithZipOutputStream(File src, File dest, Digests digests) throws IOException {
+    try (ZipOutputStream zipOut = new ZipOutputStream(new FileOutputStream(dest))) {
+      ZipEntry zipEntry = new ZipEntry(src.getName());
+      zipEntry.setTime(src.lastModified());
+      zipOut.putNextEntry(zipEntry);
+
+      try (FileInputStream srcIn = new FileInputStream(src)) {
+        BufferPool.Shared.copy(digests.wrap(srcIn), zipOut);
+      }
+
+      zipOut.closeEntry();
+    }
+  }
+
+  private static void uncompressWithZipInputStream(File zipped, File dest, Digests digests) throws IOException {
+    try (ZipInputStream zipIn = new ZipInputStream(new FileInputStream(zipped))) {
+      ZipEntry zipEntry = zipIn.getNextEntry();
+      if (zipEntry == null) {
+        throw new ZipException("Zip file is empty: " + zipped.getAbsolutePath());
+      }
+
+      try (FileOutputStream destOut = new FileOutputStream(dest)) {
+        BufferPool.Shared.copy(digests.wrap(zipIn), destOut);
+      }
+
+      zipIn.closeEntry();
+    }
+  }
+
+  private static long dosTime(long millis) {
+    LocalDateTime t = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneOffset.UTC);
+    if (t.getYear() < 1980) {
+      return (1 << 21) | (1 << 16);
+    }
+    return (t.getYear() - 1980) << 25 | t.getMonthValue() << 21 | t.getDayOfMonth() << 16
+        | t.getHour() << 11 | t.getMinute() << 5 | t.getSecond() >> 1;
+  }
+
+  private static int readFully(InputStream in, byte[] b, int off, int len) throws IOException {
+    int total = 0;
+    while (total < len) {
+      int n = in.read(b, off + total, len - total);
+      if (n == -1) {
+        break;
+      }
+      total += n;
+    }
+    return total;
+  }
+
+  private static void skipFully(InputStream in, long n) throws IOException {
+    while (n > 0) {
+      long skipped = in.skip(n);
+      if (skipped <= 0) {
+        throw new EOFException("Unexpected end of zip file");
+      }
+      n -= skipped;
+    }
+  }
+
+  private static class LittleEndian {
+    private final byte[] bytes;
+    private int pos = 0;
+
+    LittleEndian(int size) {
+      this.bytes = new byte[size];
+    }
+
+    LittleEndian int16(int v) {
+      bytes[pos++] = (byte)v;
+      bytes[pos++] = (byte)(v >>> 8);
+      return this;
+    }
+
+    LittleEndian int32(long v) {
+      int16((int)(v & 0xFFFF));
+      return int16((int)((v >>> 16) & 0xFFFF));
+    }
+
+    LittleEndian bytes(byte[] b) {
+      System.arraycopy(b, 0, bytes, pos, b.length);
+      pos += b.length;
+      return this;
+    }
+
+    int length() { return pos; }
+
+    ByteBuffer buffer() {
+      return ByteBuffer.wrap(bytes, 0, pos);
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+      out.write(bytes, 0, pos);
+    }
+
+    static int int16(byte[] b, int off) {
+      return (b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8;
+    }
+
+    static long int32(byte[] b, int off) {
+      return (int16(b, off) | (long)int16(b, off + 2) << 16) & 0xFFFFFFFFL;
+    }
+  }
+}
@@ -0,0 +1,98 @@
+/*
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package co.actioniq.ivy.s3;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Deduplicates concurrent identical operations: while an operation for a key is in flight, later
+ * callers for the same key wait for its result instead of starting their own.  Nothing is kept
+ * once the operation completes, so a failure is seen by everybody waiting on it but the next
+ * caller tries again.
+ *
+ * Callers get their own dependent future, so cancelling it only stops that caller from waiting.
+ */
+class SingleFlight<T> {
+  private final Map<String,CompletableFuture<T>> inFlight = new ConcurrentHashMap<>();
+
+  /**
+   * Starts the operation unless one is already in flight for this key
+   */
+  CompletableFuture<T> submit(String key, Supplier<CompletableFuture<T>> operation) {
+    CompletableFuture<T> shared = new CompletableFuture<>();
+    CompletableFuture<T> existing = inFlight.putIfAbsent(key, shared);
+    if (existing != null) {
+      return existing.thenApply(Function.identity());
+    }
+
+    try {
+      operation.get().whenComplete((result, t) -> finish(key, shared, result, t));
+    } catch (RuntimeException | Error e) {
+      finish(key, shared, null, e);
+    }
+    return shared.thenApply(Function.identity());
+  }
+
+  /**
+   * Runs the operation on the calling thread unless one is already in flight for this key,
+   * in which case this blocks for that one's result (rethrowing its exception).
+   */
+  T call(String key, Supplier<T> operation) {
+    CompletableFuture<T> shared = new CompletableFuture<>();
+    CompletableFuture<T> existing = inFlight.putIfAbsent(key, shared);
+    if (existing == null) {
+      T result;
+      try {
+        result = operation.get();
+      } catch (RuntimeException | Error e) {
+        finish(key, shared, null, e);
+        throw e;
+      }
+      finish(key, shared, result, null);
+      return result;
+    }
+
+    try {
+      return existing.get();
+    } catch (InterruptedException e) {
+      // Only this caller gives up, the operation carries on for the others
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException)cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error)cause;
+      }
+      throw new RuntimeException(cause);
+    }
+  }
+
+  private void finish(String key, CompletableFuture<T> shared, T result, Throwable t) {
+    // Remove first so anybody arriving after completion starts a fresh operation
+    inFlight.remove(key, shared);
+    if (t == null) {
+      shared.complete(result);
+    } else {
+      shared.completeExceptionally(t);
+    }
+  }
+}
@@ -0,0 +1,58 @@
+/*
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package co.actioniq.ivy.s3;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class AdaptiveLimiterTest {
+  @Test
+  public void testQueuesTasksOverTheLimit() {
+    List<Runnable> started = new ArrayList<>();
+    AdaptiveLimiter limiter = new AdaptiveLimiter("bucket", started::add, 2, 32);
+
+    for (int i = 0; i < 5; i++) {
+      limiter.execute(() -> {});
+    }
+    assertEquals(2, started.size());
+    assertEquals(3, limiter.waiting());
+
+    limiter.release();
+    assertEquals(3, started.size());
+    assertEquals(2, limiter.inFlight());
+  }
+
+  @Test
+  public void testAdditiveIncreaseMultiplicativeDecrease() {
+    AdaptiveLimiter limiter = new AdaptiveLimiter("bucket", Runnable::run, 8, 32);
+
+    // About one more per limit's worth of successes
+    for (int i = 0; i < 10; i++) {
+      limiter.onSuccess();
+    }
+    assertEquals(9, limiter.limit());
+
+    limiter.onThrottle();
+    assertEquals(4, limiter.limit());
+
+    // Throttles from the same burst only count once
+    limiter.onThrottle();
+    assertEquals(4, limiter.limit());
+    assertEquals(2, limiter.throttles());
+  }
+}
@@ -0,0 +1,642 @@
+/*
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package co.actioniq.ivy.s3;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Just enough of S3 (path style HEAD, PUT including If-Match and If-None-Match, GET including ranges and
+ * If-Match, LIST, CopyObject, DeleteObjects and multipart uploads) to run the handler against.  Requests signed with an access key that isn't accepted get a 403
+ * ExpiredToken like an expired session would, GETs can be made to drop the connection part way through and
+ * part uploads can be made to fail.
+ */
+class FakeS3Server implements AutoCloseable {
+  private static class StoredObject {
+    final byte[] bytes;
+    final String etag;
+    final Map<String,String> userMetadata;
+    final Date lastModified;
+
+    StoredObject(byte[] bytes, Map<String,String> userMetadata) {
+      this(bytes, "\"" + md5Hex(bytes) + "\"", userMetadata);
+    }
+
+    StoredObject(byte[] bytes, String etag, Map<String,String> userMetadata) {
+      this(bytes, etag, userMetadata, new Date());
+    }
+
+    StoredObject(byte[] bytes, String etag, Map<String,String> userMetadata, Date lastModified) {
+      this.bytes = bytes;
+      this.etag = etag;
+      this.userMetadata = userMetadata;
+      this.lastModified = lastModified;
+    }
+  }
+
+  private static class MultipartUpload {
+    final String path;
+    final Map<String,String> userMetadata;
+    final Date initiated = new Date();
+    final Map<Integer,StoredObject> parts = new ConcurrentHashMap<>();
+
+    MultipartUpload(String path, Map<String,String> userMetadata) {
+      this.path = path;
+      this.userMetadata = userMetadata;
+    }
+  }
+
+  private final HttpServer server;
+  private final Map<String,StoredObject> objects = new ConcurrentHashMap<>();
+  private final Set<String> acceptedAccessKeys = ConcurrentHashMap.newKeySet();
+  private final AtomicInteger rejectedRequests = new AtomicInteger();
+  private final AtomicInteger rangeRequests = new AtomicInteger();
+  private final AtomicInteger headRequests = new AtomicInteger();
+  private final AtomicInteger listRequests = new AtomicInteger();
+  private final AtomicInteger putRequests = new AtomicInteger();
+  private final AtomicInteger truncatedGets = new AtomicInteger();
+  private final AtomicInteger throttledRequests = new AtomicInteger();
+  private volatile int truncateAfterBytes = 0;
+  private final Map<String,MultipartUpload> uploads = new ConcurrentHashMap<>();
+  private final AtomicInteger uploadIds = new AtomicInteger();
+  private final AtomicInteger partUploads = new AtomicInteger();
+  private volatile int rejectPartsAbove = Integer.MAX_VALUE;
+  private final List<Integer> deleteBatches = Collections.synchronizedList(new ArrayList<>());
+  private final List<String> deletedKeys = Collections.synchronizedList(new ArrayList<>());
+
+  FakeS3Server() throws IOException {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/", this::handle);
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.start();
+  }
+
+  String endpoint() {
+    return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+  }
+
+  /**
+   * Only requests signed with this access key are accepted from now on
+   */
+  void acceptOnly(String accessKey) {
+    acceptedAccessKeys.clear();
+    acceptedAccessKeys.add(accessKey);
+  }
+
+  int rejectedRequests() {
+    return rejectedRequests.get();
+  }
+
+  int rangeRequests() {
+    return rangeRequests.get();
+  }
+
+  int headRequests() {
+    return headRequests.get();
+  }
+
+  int listRequests() {
+    return listRequests.get();
+  }
+
+  /**
+   * Single request object uploads, not counting multipart uploads
+   */
+  int putRequests() {
+    return putRequests.get();
+  }
+
+  /**
+   * The next count requests fail with a 503 SlowDown
+   */
+  void throttleNext(int count) {
+    throttledRequests.set(count);
+  }
+
+  /**
+   * The next count GETs send at most bytes bytes of their body before dropping the connection
+   */
+  void truncateNextGets(int count, int bytes) {
+    truncateAfterBytes = bytes;
+    truncatedGets.set(count);
+  }
+
+  /**
+   * Part uploads with a higher part number fail with a 403 AccessDenied from now on
+   */
+  void rejectPartsAbove(int partNumber) {
+    rejectPartsAbove = partNumber;
+  }
+
+  int partUploads() {
+    return partUploads.get();
+  }
+
+  /**
+   * The multipart uploads neither completed nor aborted yet
+   */
+  int incompleteUploads() {
+    return uploads.size();
+  }
+
+  /**
+   * The number of keys in each DeleteObjects request so far
+   */
+  List<Integer> deleteBatches() {
+    return new ArrayList<>(deleteBatches);
+  }
+
+  /**
+   * The keys deleted so far, in the order they were deleted
+   */
+  List<String> deletedKeys() {
+    return new ArrayList<>(deletedKeys);
+  }
+
+  /**
+   * Stores an object directly, as if it had been uploaded at lastModified
+   */
+  void put(String bucket, String key, byte[] bytes, Date lastModified) {
+    objects.put("/" + bucket + "/" + key, new StoredObject(bytes, "\"" + md5Hex(bytes) + "\"", Collections.emptyMap(), lastModified));
+  }
+
+  byte[] get(String bucket, String key) {
+    StoredObject object = objects.get("/" + bucket + "/" + key);
+    return object == null ? null : object.bytes;
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      String path = exchange.getRequestURI().getPath();
+      if (!acceptedAccessKeys.contains(accessKey(exchange.getRequestHeaders()))) {
+        rejectedRequests.incrementAndGet();
+        drain(exchange.getRequestBody());
+        error(exchange, 403, "ExpiredToken", "The provided token has expired.");
+        return;
+      }
+      if (throttledRequests.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+        drain(exchange.getRequestBody());
+        error(exchange, 503, "SlowDown", "Please reduce your request rate.");
+        return;
+      }
+
+      Map<String,String> query = query(exchange.getRequestURI().getRawQuery());
+      switch (exchange.getRequestMethod()) {
+        case "PUT":
+          if (query.containsKey("uploadId")) {
+            uploadPart(exchange, query);
+          } else if (exchange.getRequestHeaders().containsKey("x-amz-copy-source")) {
+            copyObject(exchange, path);
+          } else {
+            putRequests.incrementAndGet();
+            put(exchange, path);
+          }
+          break;
+        case "POST":
+          if (query.containsKey("uploads")) {
+            initiateMultipartUpload(exchange, path);
+          } else if (query.containsKey("delete")) {
+            deleteObjects(exchange, path);
+          } else {
+            completeMultipartUpload(exchange, path, query);
+          }
+          break;
+        case "DELETE":
+          if (uploads.remove(query.get("uploadId")) == null) {
+            error(exchange, 404, "NoSuchUpload", "The specified upload does not exist.");
+          } else {
+            exchange.sendResponseHeaders(204, -1);
+          }
+          break;
+        case "HEAD":
+        case "GET":
+          if (query.containsKey("uploads")) {
+            listMultipartUploads(exchange, path, query);
+          } else if (query.containsKey("uploadId")) {
+            listParts(exchange, query);
+          } else if (isBucketPath(path)) {
+            listObjects(exchange, path, query);
+          } else {
+            if (exchange.getRequestMethod().equals("HEAD")) {
+              headRequests.incrementAndGet();
+            }
+            get(exchange, path, exchange.getRequestMethod().equals("HEAD"));
+          }
+          break;
+        default:
+          error(exchange, 405, "MethodNotAllowed", "Not supported by the fake");
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private void put(HttpExchange exchange, String path) throws IOException {
+    StoredObject object = new StoredObject(readBody(exchange), userMetadata(exchange.getRequestHeaders()));
+    String ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+    String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+    boolean[] stored = {false};
+    objects.compute(path, (p, existing) -> {
+      boolean matches = ifMatch == null ? ifNoneMatch == null || existing == null :
+          existing != null && (ifMatch.equals(existing.etag) || ("\"" + ifMatch + "\"").equals(existing.etag));
+      stored[0] = matches;
+      return matches ? object : existing;
+    });
+    if (!stored[0]) {
+      error(exchange, 412, "PreconditionFailed", "At least one of the pre-conditions you specified did not hold");
+      return;
+    }
+    exchange.getResponseHeaders().set("ETag", object.etag);
+    exchange.sendResponseHeaders(200, -1);
+  }
+
+  // The source's bytes and user metadata (x-amz-metadata-directive COPY), x-amz-copy-source is /bucket/key
+  private void copyObject(HttpExchange exchange, String path) throws IOException {
+    drain(exchange.getRequestBody());
+    String sourcePath = URLDecoder.decode(exchange.getRequestHeaders().getFirst("x-amz-copy-source"), "UTF-8");
+    StoredObject source = objects.get(sourcePath.startsWith("/") ? sourcePath : "/" + sourcePath);
+    if (source == null) {
+      error(exchange, 404, "NoSuchKey", "The specified key does not exist.");
+      return;
+    }
+    StoredObject copy = new StoredObject(source.bytes, source.etag, source.userMetadata);
+    objects.put(path, copy);
+    xml(exchange, "<CopyObjectResult><LastModified>" + isoDate(copy.lastModified) + "</LastModified><ETag>" +
+        copy.etag + "</ETag></CopyObjectResult>");
+  }
+
+  // Quiet mode only: every key is deleted (missing ones included, like S3) and the result lists no errors
+  private void deleteObjects(HttpExchange exchange, String path) throws IOException {
+    String bucket = path.substring(1).split("/")[0];
+    String body = new String(readAll(exchange.getRequestBody()), StandardCharsets.UTF_8);
+    Matcher matcher = Pattern.compile("<Key>([^<]*)</Key>").matcher(body);
+    int count = 0;
+    while (matcher.find()) {
+      String key = matcher.group(1).replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"")
+          .replace("&apos;", "'").replace("&amp;", "&");
+      objects.remove("/" + bucket + "/" + key);
+      deletedKeys.add(key);
+      count++;
+    }
+    deleteBatches.add(count);
+    xml(exchange, "<DeleteResult></DeleteResult>");
+  }
+
+  private void initiateMultipartUpload(HttpExchange exchange, String path) throws IOException {
+    String uploadId = "upload-" + uploadIds.incrementAndGet();
+    uploads.put(uploadId, new MultipartUpload(path, userMetadata(exchange.getRequestHeaders())));
+    xml(exchange, "<InitiateMultipartUploadResult>" + bucketAndKey(path) + "<UploadId>" + uploadId +
+        "</UploadId></InitiateMultipartUploadResult>");
+  }
+
+  private void uploadPart(HttpExchange exchange, Map<String,String> query) throws IOException {
+    byte[] bytes = readBody(exchange);
+    MultipartUpload upload = uploads.get(query.get("uploadId"));
+    int partNumber = Integer.parseInt(query.get("partNumber"));
+    if (upload == null) {
+      error(exchange, 404, "NoSuchUpload", "The specified upload does not exist.");
+      return;
+    }
+    if (partNumber > rejectPartsAbove) {
+      error(exchange, 403, "AccessDenied", "Access Denied");
+      return;
+    }
+
+    partUploads.incrementAndGet();
+    StoredObject part = new StoredObject(bytes, Collections.emptyMap());
+    upload.parts.put(partNumber, part);
+    exchange.getResponseHeaders().set("ETag", part.etag);
+    exchange.sendResponseHeaders(200, -1);
+  }
+
+  private void listParts(HttpExchange exchange, Map<String,String> query) throws IOException {
+    MultipartUpload upload = uploads.get(query.get("uploadId"));
+    if (upload == null) {
+      error(exchange, 404, "NoSuchUpload", "The specified upload does not exist.");
+      return;
+    }
+
+    StringBuilder res = new StringBuilder("<ListPartsResult>" + bucketAndKey(upload.path) + "<UploadId>" +
+        query.get("uploadId") + "</UploadId><IsTruncated>false</IsTruncated>");
+    new TreeMap<>(upload.parts).forEach((partNumber, part) -> res.append("<Part><PartNumber>").append(partNumber)
+        .append("</PartNumber><LastModified>").append(isoDate(part.lastModified)).append("</LastModified><ETag>")
+        .append(part.etag).append("</ETag><Size>").append(part.bytes.length).append("</Size></Part>"));
+    xml(exchange, res.append("</ListPartsResult>").toString());
+  }
+
+  // Like S3, the ETag of the object is the MD5 of the parts' MD5s followed by the number of parts
+  private void completeMultipartUpload(HttpExchange exchange, String path, Map<String,String> query) throws IOException {
+    String body = new String(readAll(exchange.getRequestBody()), StandardCharsets.UTF_8);
+    MultipartUpload upload = uploads.get(query.get("uploadId"));
+    if (upload == null) {
+      error(exchange, 404, "NoSuchUpload", "The specified upload does not exist.");
+      return;
+    }
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ByteArrayOutputStream md5s = new ByteArrayOutputStream();
+    Matcher matcher = Pattern.compile("<PartNumber>(\\d+)</PartNumber>\\s*<ETag>([^<]*)</ETag>").matcher(body);
+    int count = 0;
+    while (matcher.find()) {
+      StoredObject part = upload.parts.get(Integer.parseInt(matcher.group(1)));
+      if (part == null || !part.etag.replace("\"", "").equals(matcher.group(2).replace("&quot;", "").replace("\"", ""))) {
+        error(exchange, 400, "InvalidPart", "One or more of the specified parts could not be found.");
+        return;
+      }
+      bytes.write(part.bytes);
+      md5s.write(new BigInteger("1" + part.etag.replace("\"", ""), 16).toByteArray(), 1, 16);
+      count++;
+    }
+
+    String etag = "\"" + md5Hex(md5s.toByteArray()) + "-" + count + "\"";
+    objects.put(path, new StoredObject(bytes.toByteArray(), etag, upload.userMetadata));
+    uploads.remove(query.get("uploadId"));
+    xml(exchange, "<CompleteMultipartUploadResult><Location>" + endpoint() + path + "</Location>" + bucketAndKey(path) +
+        "<ETag>" + etag + "</ETag></CompleteMultipartUploadResult>");
+  }
+
+  // A single page with every key under the prefix, rolled up to the next delimiter when there is one
+  private void listObjects(HttpExchange exchange, String path, Map<String,String> query) throws IOException {
+    listRequests.incrementAndGet();
+    String bucket = path.substring(1).split("/")[0];
+    String prefix = query.getOrDefault("prefix", "");
+    String delimiter = query.get("delimiter");
+    StringBuilder res = new StringBuilder("<ListBucketResult><Name>" + bucket + "</Name><Prefix>" + prefix +
+        "</Prefix><MaxKeys>1000</MaxKeys><IsTruncated>false</IsTruncated>");
+    Set<String> commonPrefixes = new TreeSet<>();
+    new TreeMap<>(objects).forEach((objectPath, object) -> {
+      if (!objectPath.startsWith("/" + bucket + "/" + prefix)) {
+        return;
+      }
+      String key = objectPath.substring(bucket.length() + 2);
+      int delimiterIdx = delimiter == null ? -1 : key.indexOf(delimiter, prefix.length());
+      if (delimiterIdx >= 0) {
+        commonPrefixes.add(key.substring(0, delimiterIdx + delimiter.length()));
+      } else {
+        res.append("<Contents><Key>").append(key).append("</Key><LastModified>").append(isoDate(object.lastModified))
+            .append("</LastModified><ETag>").append(object.etag).append("</ETag><Size>").append(object.bytes.length)
+            .append("</Size><StorageClass>STANDARD</StorageClass></Contents>");
+      }
+    });
+    commonPrefixes.forEach(common -> res.append("<CommonPrefixes><Prefix>").append(common).append("</Prefix></CommonPrefixes>"));
+    xml(exchange, res.append("</ListBucketResult>").toString());
+  }
+
+  private void listMultipartUploads(HttpExchange exchange, String path, Map<String,String> query) throws IOException {
+    String bucketPath = "/" + path.split("/")[1] + "/";
+    String prefix = bucketPath + query.getOrDefault("prefix", "");
+    StringBuilder res = new StringBuilder("<ListMultipartUploadsResult><Bucket>" + path.split("/")[1] +
+        "</Bucket><IsTruncated>false</IsTruncated>");
+    new TreeMap<>(uploads).forEach((uploadId, upload) -> {
+      if (upload.path.startsWith(prefix)) {
+        res.append("<Upload><Key>").append(upload.path.substring(bucketPath.length())).append("</Key><UploadId>")
+            .append(uploadId).append("</UploadId><Initiated>").append(isoDate(upload.initiated)).append("</Initiated></Upload>");
+      }
+    });
+    xml(exchange, res.append("</ListMultipartUploadsResult>").toString());
+  }
+
+  private static byte[] readBody(HttpExchange exchange) throws IOException {
+    Headers request = exchange.getRequestHeaders();
+    byte[] bytes = readAll(exchange.getRequestBody());
+    if (String.valueOf(request.getFirst("Content-Encoding")).contains("aws-chunked") ||
+        request.containsKey("x-amz-decoded-content-length")) {
+      bytes = decodeChunks(bytes);
+    }
+    return bytes;
+  }
+
+  private static Map<String,String> userMetadata(Headers request) {
+    Map<String,String> userMetadata = new TreeMap<>();
+    request.forEach((name, values) -> {
+      String lower = name.toLowerCase(Locale.ROOT);
+      if (lower.startsWith("x-amz-meta-")) {
+        userMetadata.put(lower, values.get(0));
+      }
+    });
+    return userMetadata;
+  }
+
+  // /bucket or /bucket/, as opposed to /bucket/key
+  private static boolean isBucketPath(String path) {
+    int slashIdx = path.indexOf('/', 1);
+    return slashIdx < 0 || slashIdx == path.length() - 1;
+  }
+
+  private static String bucketAndKey(String path) {
+    String[] parts = path.substring(1).split("/", 2);
+    return "<Bucket>" + parts[0] + "</Bucket><Key>" + parts[1] + "</Key>";
+  }
+
+  private static Map<String,String> query(String rawQuery) throws IOException {
+    Map<String,String> res = new TreeMap<>();
+    if (rawQuery != null) {
+      for (String param : rawQuery.split("&")) {
+        int eq = param.indexOf('=');
+        res.put(URLDecoder.decode(eq < 0 ? param : param.substring(0, eq), "UTF-8"),
+            eq < 0 ? "" : URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+      }
+    }
+    return res;
+  }
+
+  private static void xml(HttpExchange exchange, String body) throws IOException {
+    byte[] bytes = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" + body).getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/xml");
+    exchange.sendResponseHeaders(200, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+  private void get(HttpExchange exchange, String path, boolean headOnly) throws IOException {
+    StoredObject object = objects.get(path);
+    if (object == null) {
+      error(exchange, 404, "NoSuchKey", "The specified key does not exist.");
+      return;
+    }
+
+    String range = exchange.getRequestHeaders().getFirst("Range");
+    if (range != null) {
+      rangeRequests.incrementAndGet();
+    }
+
+    String ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+    if (ifMatch != null && !ifMatch.equals(object.etag) && !("\"" + ifMatch + "\"").equals(object.etag)) {
+      error(exchange, 412, "PreconditionFailed", "At least one of the pre-conditions you specified did not hold");
+      return;
+    }
+
+    Headers response = exchange.getResponseHeaders();
+    response.set("ETag", object.etag);
+    response.set("Last-Modified", httpDate(object.lastModified));
+    response.set("Content-Type", "application/octet-stream");
+    object.userMetadata.forEach(response::set);
+    if (headOnly) {
+      response.set("Content-Length", String.valueOf(object.bytes.length));
+      exchange.sendResponseHeaders(200, -1);
+      return;
+    }
+
+    // The SDK sends ranges from an offset to the end as bytes=<start>-<Long.MAX_VALUE - 1>
+    int start = 0;
+    int end = object.bytes.length - 1;
+    if (range != null && range.matches("bytes=\\d+-\\d*")) {
+      start = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+      String last = range.substring(range.indexOf('-') + 1);
+      if (!last.isEmpty()) {
+        end = (int)Math.min(end, Long.parseLong(last));
+      }
+      response.set("Content-Range", "bytes " + start + "-" + end + "/" + object.bytes.length);
+    }
+    int length = end - start + 1;
+    exchange.sendResponseHeaders(length < object.bytes.length ? 206 : 200, length == 0 ? -1 : length);
+
+    OutputStream out = exchange.getResponseBody();
+    if (truncatedGets.getAndUpdate(n -> Math.max(0, n - 1)) > 0 && truncateAfterBytes < length) {
+      // Drop the connection without finishing the body
+      out.write(object.bytes, start, truncateAfterBytes);
+      out.flush();
+      throw new IOException("Truncated on purpose");
+    }
+    out.write(object.bytes, start, length);
+    out.close();
+  }
+
+  private static void error(HttpExchange exchange, int status, String code, String message) throws IOException {
+    if (exchange.getRequestMethod().equals("HEAD")) {
+      exchange.sendResponseHeaders(status, -1);
+      return;
+    }
+    byte[] body = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<Error><Code>" + code + "</Code><Message>" + message +
+        "</Message><RequestId>fake</RequestId></Error>").getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/xml");
+    exchange.sendResponseHeaders(status, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  // Authorization: AWS4-HMAC-SHA256 Credential=<access key>/<date>/<region>/s3/aws4_request, ...
+  private static String accessKey(Headers headers) {
+    String authorization = headers.getFirst("Authorization");
+    if (authorization == null || !authorization.contains("Credential=")) {
+      return null;
+    }
+    String credential = authorization.substring(authorization.indexOf("Credential=") + "Credential=".length());
+    return credential.substring(0, credential.indexOf('/'));
+  }
+
+  // aws-chunked bodies are a series of "<hex size>;chunk-signature=<sig>\r\n<data>\r\n" ending with a 0 size chunk
+  private static byte[] decodeChunks(byte[] body) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+    while (true) {
+      String header = readLine(in);
+      int size = Integer.parseInt(header.split(";")[0].trim(), 16);
+      if (size == 0) {
+        return out.toByteArray();
+      }
+      byte[] chunk = new byte[size];
+      in.readFully(chunk);
+      out.write(chunk);
+      readLine(in);
+    }
+  }
+
+  private static String readLine(DataInputStream in) throws IOException {
+    StringBuilder line = new StringBuilder();
+    int c;
+    while ((c = in.read()) != -1 && c != '\n') {
+      if (c != '\r') {
+        line.append((char)c);
+      }
+    }
+    return line.toString();
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+    return out.toByteArray();
+  }
+
+  private static void drain(InputStream in) throws IOException {
+    readAll(in);
+  }
+
+  private static String httpDate(Date date) {
+    SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+    format.setTimeZone(TimeZone.getTimeZone("GMT"));
+    return format.format(date);
+  }
+
+  private static String isoDate(Date date) {
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return format.format(date);
+  }
+
+  private static String md5Hex(byte[] bytes) {
+    try {
+      StringBuilder hex = new StringBuilder();
+      for (byte b : MessageDigest.getInstance("MD5").digest(bytes)) {
+        hex.append(String.format("%02x", b));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
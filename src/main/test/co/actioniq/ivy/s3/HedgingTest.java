@@ -0,0 +1,72 @@
+/*
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package co.actioniq.ivy.s3;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+
+public class HedgingTest {
+  @Test
+  public void testSlowRequestIsHedged() throws Exception {
+    Hedging hedging = new Hedging();
+    hedging.enable(20);
+
+    List<CompletableFuture<String>> attempts = new ArrayList<>();
+    List<String> discarded = new ArrayList<>();
+    CompletableFuture<String> result = hedging.run(decided -> {
+      CompletableFuture<String> attempt = new CompletableFuture<>();
+      synchronized (attempts) {
+        attempts.add(attempt);
+      }
+      return attempt;
+    }, discarded::add);
+
+    // The first attempt hangs so a hedge gets started, which wins
+    Thread.sleep(200);
+    assertEquals(2, attempts.size());
+    attempts.get(1).complete("hedge");
+    attempts.get(0).complete("first");
+
+    assertEquals("hedge", result.get());
+    assertEquals(1, discarded.size());
+    assertEquals("first", discarded.get(0));
+    assertEquals(1, hedging.hedges());
+  }
+
+  @Test
+  public void testFailsOnlyWhenEveryAttemptFailed() throws Exception {
+    Hedging hedging = new Hedging();
+    hedging.enable(20);
+
+    List<CompletableFuture<String>> attempts = new ArrayList<>();
+    CompletableFuture<String> result = hedging.run(decided -> {
+      CompletableFuture<String> attempt = new CompletableFuture<>();
+      synchronized (attempts) {
+        attempts.add(attempt);
+      }
+      return attempt;
+    }, value -> {});
+
+    Thread.sleep(200);
+    attempts.get(0).completeExceptionally(new RuntimeException("slow and broken"));
+    assertEquals(false, result.isDone());
+    attempts.get(1).complete("hedge");
+    assertEquals("hedge", result.get());
+  }
+}
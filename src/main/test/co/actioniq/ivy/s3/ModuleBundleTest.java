@@ -0,0 +1,88 @@
+/*
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package co.actioniq.ivy.s3;
+
+import com.amazonaws.services.s3.model.S3Object;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ModuleBundleTest {
+  private static final String Dir = "s3://bucket/releases/co.actioniq/foo/1.0/";
+
+  private static ModuleBundle.Entry entry(String name, String content) {
+    return new ModuleBundle.Entry(name, "etag-" + name, 1500000000000L, Collections.singletonMap("sha1", "sha1-" + name),
+        content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static ModuleBundle bundle() throws Exception {
+    byte[] bytes = ModuleBundle.write(Arrays.asList(entry("ivy.xml", "<ivy-module/>"), entry("jars/foo-1.0.jar", "jar")));
+    return ModuleBundle.read(new ByteArrayInputStream(bytes));
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    ModuleBundle bundle = bundle();
+    assertEquals(2, bundle.entries().size());
+
+    S3Object object = bundle.entry("jars/foo-1.0.jar").get().toObject();
+    assertEquals("etag-jars/foo-1.0.jar", object.getObjectMetadata().getETag());
+    assertEquals(1500000000000L, object.getObjectMetadata().getLastModified().getTime());
+    assertEquals(3, object.getObjectMetadata().getContentLength());
+    assertEquals("sha1-jars/foo-1.0.jar", object.getObjectMetadata().getUserMetaDataOf("sha1"));
+
+    ByteArrayOutputStream content = new ByteArrayOutputStream();
+    try (InputStream in = object.getObjectContent()) {
+      BufferPool.Shared.copy(in, content);
+    }
+    assertArrayEquals("jar".getBytes(StandardCharsets.UTF_8), content.toByteArray());
+  }
+
+  @Test
+  public void testCacheFindsEntriesUnderTheRevisionDirectory() throws Exception {
+    ModuleBundle.Cache cache = new ModuleBundle.Cache();
+    cache.put(Dir, Optional.of(bundle()));
+    cache.put("s3://bucket/releases/co.actioniq/bar/1.0/", Optional.empty());
+
+    assertTrue(cache.entry(Dir + "ivy.xml").isPresent());
+    assertEquals("etag-jars/foo-1.0.jar", cache.entry(Dir + "jars/foo-1.0.jar").get().etag);
+    assertFalse(cache.entry(Dir + "jars/foo-1.0-sources.jar").isPresent());
+    assertFalse(cache.entry("s3://bucket/releases/co.actioniq/bar/1.0/ivy.xml").isPresent());
+
+    cache.invalidate(Dir);
+    assertFalse(cache.entry(Dir + "ivy.xml").isPresent());
+  }
+
+  @Test
+  public void testCachedBundlesExpire() throws Exception {
+    ModuleBundle.Cache cache = new ModuleBundle.Cache(-1);
+    cache.put(Dir, Optional.of(bundle()));
+    cache.put("s3://bucket/releases/co.actioniq/bar/1.0/", Optional.empty());
+
+    assertFalse(cache.entry(Dir + "ivy.xml").isPresent());
+    assertFalse(cache.contains(Dir));
+    assertFalse(cache.contains("s3://bucket/releases/co.actioniq/bar/1.0/"));
+  }
+}
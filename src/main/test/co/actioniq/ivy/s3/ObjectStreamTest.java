@@ -0,0 +1,84 @@
+/*
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package co.actioniq.ivy.s3;
+
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import org.apache.http.client.methods.HttpGet;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ObjectStreamTest {
+  private static class Response {
+    final AtomicBoolean aborted = new AtomicBoolean();
+    final ByteArrayInputStream content;
+    final S3Object object = new S3Object();
+
+    Response(int length) {
+      content = new ByteArrayInputStream(new byte[length]);
+      object.setObjectContent(new S3ObjectInputStream(content, new HttpGet() {
+        @Override
+        public void abort() {
+          aborted.set(true);
+        }
+      }));
+      object.getObjectMetadata().setContentLength(length);
+    }
+  }
+
+  private final URL url = new URL("http://bucket.example.com/key");
+
+  public ObjectStreamTest() throws Exception {}
+
+  @Test
+  public void testSmallRemainderIsDrained() throws Exception {
+    Response response = new Response(1000);
+    try (InputStream in = ObjectStream.open(url, response.object)) {
+      assertEquals(10, in.read(new byte[10]));
+    }
+    assertFalse(response.aborted.get());
+    assertEquals(0, response.content.available());
+  }
+
+  @Test
+  public void testLargeRemainderIsAborted() throws Exception {
+    Response response = new Response(1024 * 1024);
+    try (InputStream in = ObjectStream.open(url, response.object)) {
+      assertEquals(10, in.read(new byte[10]));
+    }
+    assertTrue(response.aborted.get());
+  }
+
+  @Test
+  public void testLeakedStreamIsAborted() throws Exception {
+    long leaked = ObjectStream.leakedStreams();
+    Response response = new Response(1000);
+    ObjectStream.open(url, response.object).read();
+
+    for (int i = 0; i < 100 && ObjectStream.leakedStreams() == leaked; i++) {
+      System.gc();
+      Thread.sleep(50);
+    }
+    assertEquals(leaked + 1, ObjectStream.leakedStreams());
+    assertTrue(response.aborted.get());
+  }
+}
@@ -0,0 +1,84 @@
+/*
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package co.actioniq.ivy.s3;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PresenceFilterTest {
+  private static final String Root = "s3://bucket/releases/";
+
+  private final Map<String,List<String>> listings = new HashMap<>();
+  private final List<String> listed = new ArrayList<>();
+
+  public PresenceFilterTest() {
+    listings.put(Root, Arrays.asList(Root + "co.actioniq/", Root + "com/", Root + "README"));
+    listings.put(Root + "co.actioniq/", Arrays.asList(Root + "co.actioniq/foo/", Root + "co.actioniq/maven-metadata.xml"));
+    listings.put(Root + "com/", Collections.singletonList(Root + "com/example/"));
+  }
+
+  private PresenceFilter build() throws Exception {
+    PresenceFilter filter = new PresenceFilter(Root, Long.MAX_VALUE, dir -> {
+      listed.add(dir);
+      return listings.getOrDefault(dir, Collections.emptyList());
+    });
+    filter.refresh();
+    return filter;
+  }
+
+  @Test
+  public void testAnswersFromTheFirstLevels() throws Exception {
+    PresenceFilter filter = build();
+    // Only the first PresenceFilter.Depth levels are listed
+    assertEquals(Arrays.asList(Root, Root + "co.actioniq/", Root + "com/"), listed);
+
+    assertTrue(filter.mightContain(Root + "co.actioniq/foo/1.0/ivy.xml"));
+    assertTrue(filter.mightContain(Root + "com/example/bar/2.0/bar-2.0.pom"));
+    assertTrue(filter.mightContain(Root + "co.actioniq/maven-metadata.xml"));
+    assertTrue(filter.mightContain(Root + "README"));
+    assertFalse(filter.mightContain(Root + "co.actioniq/bar/1.0/ivy.xml"));
+    assertFalse(filter.mightContain(Root + "org/apache/commons/commons-lang3/3.4/commons-lang3-3.4.pom"));
+    assertFalse(filter.mightContain(Root + "LICENSE"));
+
+    // Not under the root so nothing is known about it
+    assertTrue(filter.mightContain("s3://bucket/snapshots/org/apache/foo.pom"));
+  }
+
+  @Test
+  public void testPublishedURLsAreAdded() throws Exception {
+    PresenceFilter filter = build();
+    assertFalse(filter.mightContain(Root + "org/apache/foo/1.0/foo-1.0.pom"));
+    filter.add(Root + "org/apache/foo/1.0/foo-1.0.jar");
+    assertTrue(filter.mightContain(Root + "org/apache/foo/1.0/foo-1.0.pom"));
+  }
+
+  @Test
+  public void testEverythingMightBePresentBeforeTheFirstBuild() {
+    PresenceFilter filter = new PresenceFilter(Root, Long.MAX_VALUE, dir -> {
+      throw new IOException("Access Denied");
+    });
+    assertTrue(filter.mightContain(Root + "org/apache/foo/1.0/foo-1.0.pom"));
+  }
+}
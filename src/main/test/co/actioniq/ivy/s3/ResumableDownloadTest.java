@@ -0,0 +1,107 @@
+/*
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package co.actioniq.ivy.s3;
+
+import org.apache.ivy.util.DefaultMessageLogger;
+import org.apache.ivy.util.Message;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ResumableDownloadTest {
+  private final String bucket = "resume-" + System.nanoTime();
+  private FakeS3Server server;
+  private File dir;
+  private S3URLHandler handler;
+  private byte[] content;
+  private URL url;
+
+  @Before
+  public void setUp() throws IOException {
+    Message.setDefaultLogger(new DefaultMessageLogger(Message.MSG_WARN));
+    server = new FakeS3Server();
+    server.acceptOnly("resume-key");
+    System.setProperty(S3URLUtil.EndpointProperty, server.endpoint());
+    System.setProperty("aws.accessKeyId." + bucket, "resume-key");
+    System.setProperty("aws.secretKey." + bucket, "resume-secret");
+
+    dir = Files.createTempDirectory("ResumableDownloadTest").toFile();
+    handler = new S3URLHandler();
+
+    // Random bytes don't compress so the stored object is about as big
+    content = new byte[2 * 1024 * 1024];
+    new Random(48).nextBytes(content);
+    File source = new File(dir, "source.jar");
+    Files.write(source.toPath(), content);
+    url = new URL("s3://" + bucket + "/co.actioniq/foo/1.0/foo-1.0.jar");
+    handler.upload(source, url, null);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    server.close();
+    System.clearProperty(S3URLUtil.EndpointProperty);
+    System.clearProperty("aws.accessKeyId." + bucket);
+    System.clearProperty("aws.secretKey." + bucket);
+    try (Stream<Path> paths = Files.walk(dir.toPath())) {
+      paths.map(Path::toFile).sorted((a, b) -> b.compareTo(a)).forEach(File::delete);
+    }
+  }
+
+  @Test
+  public void testDroppedConnectionsAreResumed() throws IOException {
+    server.truncateNextGets(2, 700 * 1024);
+    File dest = new File(dir, "foo-1.0.jar");
+    handler.download(url, dest, null);
+
+    assertArrayEquals(content, Files.readAllBytes(dest.toPath()));
+    assertEquals(2, server.rangeRequests());
+    assertFalse(new File(dest.getPath() + PartialDownload.Suffix).exists());
+  }
+
+  @Test
+  public void testPartOfAnotherVersionStartsOver() throws IOException {
+    File dest = new File(dir, "foo-1.0.jar");
+    File part = new File(dest.getPath() + PartialDownload.Suffix);
+    Files.write(part.toPath(), new byte[1000]);
+    Properties record = new Properties();
+    record.setProperty("url", url.toExternalForm());
+    record.setProperty("etag", "0123456789abcdef0123456789abcdef");
+    record.setProperty("length", String.valueOf(content.length));
+    record.setProperty("lastModified", "0");
+    try (OutputStream out = Files.newOutputStream(new File(part.getPath() + ".properties").toPath())) {
+      record.store(out, null);
+    }
+
+    handler.download(url, dest, null);
+
+    assertArrayEquals(content, Files.readAllBytes(dest.toPath()));
+    assertEquals(1, server.rangeRequests());
+    assertFalse(part.exists());
+  }
+}
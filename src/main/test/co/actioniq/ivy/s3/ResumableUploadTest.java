@@ -0,0 +1,225 @@
+/*
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package co.actioniq.ivy.s3;
+
+import org.apache.ivy.util.DefaultMessageLogger;
+import org.apache.ivy.util.Message;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ResumableUploadTest {
+  private final String bucket = "upload-" + System.nanoTime();
+  private FakeS3Server server;
+  private File dir;
+  private File uploadsDir;
+  private S3URLHandler handler;
+  private byte[] content;
+  private File source;
+  private URL root;
+  private URL url;
+
+  @Before
+  public void setUp() throws IOException {
+    Message.setDefaultLogger(new DefaultMessageLogger(Message.MSG_WARN));
+    server = new FakeS3Server();
+    server.acceptOnly("upload-key");
+    System.setProperty(S3URLUtil.EndpointProperty, server.endpoint());
+    System.setProperty("aws.accessKeyId." + bucket, "upload-key");
+    System.setProperty("aws.secretKey." + bucket, "upload-secret");
+
+    dir = Files.createTempDirectory("ResumableUploadTest").toFile();
+    uploadsDir = new File(dir, "uploads");
+    System.setProperty(ResumableUpload.DirProperty, uploadsDir.getPath());
+    handler = new S3URLHandler();
+
+    // Random bytes don't compress, so this goes up in 3 parts
+    content = new byte[20 * 1024 * 1024];
+    new Random(49).nextBytes(content);
+    source = new File(dir, "foo-1.0.jar");
+    Files.write(source.toPath(), content);
+    root = new URL("s3://" + bucket + "/releases/");
+    url = new URL(root + "co.actioniq/foo/1.0/foo-1.0.jar");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    server.close();
+    System.clearProperty(S3URLUtil.EndpointProperty);
+    System.clearProperty(ResumableUpload.DirProperty);
+    System.clearProperty("aws.accessKeyId." + bucket);
+    System.clearProperty("aws.secretKey." + bucket);
+    try (Stream<Path> paths = Files.walk(dir.toPath())) {
+      paths.map(Path::toFile).sorted((a, b) -> b.compareTo(a)).forEach(File::delete);
+    }
+  }
+
+  @Test
+  public void testInterruptedUploadOnlySendsTheMissingParts() throws IOException {
+    uploadFailingAfterFirstPart();
+
+    server.rejectPartsAbove(Integer.MAX_VALUE);
+    handler.upload(source, url, null, Collections.singletonList("sha1"));
+
+    assertEquals(3, server.partUploads());
+    assertEquals(0, server.incompleteUploads());
+    assertEquals(0, recordCount());
+    assertDownloadable();
+  }
+
+  @Test
+  public void testStaleUploadsAreAborted() throws IOException {
+    uploadFailingAfterFirstPart();
+
+    assertEquals(Collections.emptyList(), handler.abortStaleUploads(root, 60 * 60 * 1000));
+    assertEquals(1, server.incompleteUploads());
+
+    assertEquals(Collections.singletonList("releases/co.actioniq/foo/1.0/foo-1.0.jar"), handler.abortStaleUploads(root, 0));
+    assertEquals(0, server.incompleteUploads());
+    assertEquals(0, recordCount());
+
+    // Starts over from scratch
+    server.rejectPartsAbove(Integer.MAX_VALUE);
+    handler.upload(source, url, null);
+    assertEquals(4, server.partUploads());
+    assertDownloadable();
+  }
+
+  @Test
+  public void testChangedSourceStartsOver() throws IOException {
+    uploadFailingAfterFirstPart();
+
+    content[0]++;
+    Files.write(source.toPath(), content);
+    assertTrue(source.setLastModified(source.lastModified() + 2000));
+    server.rejectPartsAbove(Integer.MAX_VALUE);
+    handler.upload(source, url, null);
+
+    assertEquals(4, server.partUploads());
+    assertEquals(0, server.incompleteUploads());
+    assertDownloadable();
+  }
+
+  @Test
+  public void testConcurrentUploadsInOneJVMTakeTurns() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      List<Future<?>> uploads = new ArrayList<>();
+      for (int i = 0; i < 2; i++) {
+        S3URLHandler other = new S3URLHandler();
+        uploads.add(executor.submit(() -> {
+          other.upload(source, url, null);
+          return null;
+        }));
+      }
+      for (Future<?> upload : uploads) {
+        upload.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    assertEquals(0, server.incompleteUploads());
+    assertEquals(0, recordCount());
+    assertDownloadable();
+  }
+
+  @Test
+  public void testIdenticalUploadWithMatchingSidecarsIsSkipped() throws IOException {
+    File pom = smallSource();
+    URL pomURL = new URL(root + "co.actioniq/foo/1.0/foo-1.0.pom");
+    handler.upload(pom, pomURL, null, Arrays.asList("sha1", "md5"));
+    int puts = server.putRequests();
+
+    handler.upload(pom, pomURL, null, Arrays.asList("sha1", "md5"));
+
+    assertEquals(puts, server.putRequests());
+  }
+
+  @Test
+  public void testChangedSidecarIsUploadedAgain() throws IOException {
+    File pom = smallSource();
+    URL pomURL = new URL(root + "co.actioniq/foo/1.0/foo-1.0.pom");
+    handler.upload(pom, pomURL, null, Arrays.asList("sha1", "md5"));
+    // A sidecar left over from another publish (or one from before sidecars carried checksums)
+    server.put(bucket, "releases/co.actioniq/foo/1.0/foo-1.0.pom.sha1", "0000".getBytes(StandardCharsets.UTF_8), new Date());
+    int puts = server.putRequests();
+
+    handler.upload(pom, pomURL, null, Arrays.asList("sha1", "md5"));
+
+    // The pom and both sidecars go up again in the same batch
+    assertEquals(puts + 3, server.putRequests());
+    File sha1 = new File(dir, "downloaded.sha1");
+    handler.download(new URL(pomURL + ".sha1"), sha1, null);
+    Digests expected = Digests.of(Collections.singletonList("sha1"));
+    expected.update(pom);
+    assertEquals(expected.hex("sha1"), new String(Files.readAllBytes(sha1.toPath()), StandardCharsets.UTF_8));
+  }
+
+  private File smallSource() throws IOException {
+    File pom = new File(dir, "foo-1.0.pom");
+    Files.write(pom.toPath(), "<project><version>1.0</version></project>".getBytes(StandardCharsets.UTF_8));
+    return pom;
+  }
+
+  private void uploadFailingAfterFirstPart() throws IOException {
+    server.rejectPartsAbove(1);
+    try {
+      handler.upload(source, url, null, Collections.singletonList("sha1"));
+      fail("The upload should have failed");
+    } catch (RuntimeException e) {
+      // Expected
+    }
+    assertEquals(1, server.partUploads());
+    assertEquals(1, server.incompleteUploads());
+    assertEquals(1, recordCount());
+  }
+
+  private void assertDownloadable() throws IOException {
+    File dest = new File(dir, "downloaded.jar");
+    handler.download(url, dest, null);
+    assertArrayEquals(content, Files.readAllBytes(dest.toPath()));
+  }
+
+  private int recordCount() throws IOException {
+    if (!uploadsDir.exists()) {
+      return 0;
+    }
+    try (Stream<Path> paths = Files.walk(uploadsDir.toPath())) {
+      return (int)paths.filter(path -> path.getFileName().toString().equals("upload.properties")).count();
+    }
+  }
+}
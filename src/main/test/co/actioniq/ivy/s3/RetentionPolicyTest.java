@@ -0,0 +1,78 @@
+/*
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package co.actioniq.ivy.s3;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class RetentionPolicyTest {
+  private static final long Now = 1000000;
+
+  @Test
+  public void testKeepLastKeepsExactlyThatMany() {
+    Map<String,Long> publishedAt = publishedAt("1.0", 100L, "1.1", 200L, "1.2", 300L, "1.3", 400L);
+
+    assertEquals(Arrays.asList("1.0", "1.1"), new RetentionPolicy(2, 0).expired(publishedAt, Now));
+    assertEquals(Collections.emptyList(), new RetentionPolicy(4, 0).expired(publishedAt, Now));
+    assertEquals(Collections.emptyList(), new RetentionPolicy(10, 0).expired(publishedAt, Now));
+  }
+
+  @Test
+  public void testMaxAgeKeepsRevisionsPublishedAtTheLimit() {
+    Map<String,Long> publishedAt = publishedAt("1.0", Now - 1001, "1.1", Now - 1000, "1.2", Now - 999);
+
+    assertEquals(Arrays.asList("1.0"), new RetentionPolicy(0, 1000).expired(publishedAt, Now));
+  }
+
+  @Test
+  public void testEitherRuleKeepsARevision() {
+    Map<String,Long> publishedAt = publishedAt("1.0", 100L, "1.1", 200L, "1.2", Now - 10, "1.3", Now - 5);
+
+    // 1.1 is only kept by keepLast = 3, 1.2 only by its age with keepLast = 1
+    assertEquals(Arrays.asList("1.0"), new RetentionPolicy(3, 1000).expired(publishedAt, Now));
+    assertEquals(Arrays.asList("1.0", "1.1"), new RetentionPolicy(1, 1000).expired(publishedAt, Now));
+  }
+
+  @Test
+  public void testTheNewestRevisionIsKeptEvenWhenExpired() {
+    Map<String,Long> publishedAt = publishedAt("1.0", 100L, "1.1", 300L, "1.2", 200L);
+
+    assertEquals(Arrays.asList("1.0", "1.2"), new RetentionPolicy(0, 1000).expired(publishedAt, Now));
+  }
+
+  @Test
+  public void testAPolicyNeedsARule() {
+    try {
+      new RetentionPolicy(0, 0);
+      fail("Expected an exception");
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+  }
+
+  private static Map<String,Long> publishedAt(Object... revisionsAndTimes) {
+    Map<String,Long> res = new HashMap<>();
+    for (int i = 0; i < revisionsAndTimes.length; i += 2) {
+      res.put((String)revisionsAndTimes[i], ((Number)revisionsAndTimes[i + 1]).longValue());
+    }
+    return res;
+  }
+}
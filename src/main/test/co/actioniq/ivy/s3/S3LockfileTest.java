@@ -0,0 +1,94 @@
+/*
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package co.actioniq.ivy.s3;
+
+import org.apache.ivy.util.url.URLHandler.URLInfo;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class S3LockfileTest {
+  private static final String Root = "s3://bucket/releases/co.actioniq/foo/1.0/";
+
+  private File dir;
+  private File lockfile;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("S3LockfileTest").toFile();
+    lockfile = new File(dir, "s3.lock");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(lockfile.toPath());
+    Files.delete(dir.toPath());
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    Map<String,URLInfo> infos = new HashMap<>();
+    infos.put(Root + "foo-1.0.pom", new S3URLInfo(true, 120, 1500000000000L, "\"etag-pom\""));
+    infos.put(Root + "foo-1.0.jar", new S3URLInfo(true, 4096, 1500000001000L, "\"etag-jar\""));
+
+    S3Lockfile.write(lockfile, infos);
+    Map<String,S3URLInfo> read = S3Lockfile.read(lockfile);
+
+    assertEquals(Arrays.asList(Root + "foo-1.0.jar", Root + "foo-1.0.pom"), Arrays.asList(read.keySet().toArray()));
+    S3URLInfo jar = read.get(Root + "foo-1.0.jar");
+    assertTrue(jar.isReachable());
+    assertEquals(4096, jar.getContentLength());
+    assertEquals(1500000001000L, jar.getLastModified());
+    assertEquals("\"etag-jar\"", jar.getETag());
+    assertEquals("\"etag-pom\"", read.get(Root + "foo-1.0.pom").getETag());
+  }
+
+  @Test
+  public void testOnlyInfosWithAnETagAreWritten() throws IOException {
+    Map<String,URLInfo> infos = new HashMap<>();
+    infos.put(Root + "foo-1.0.pom", new S3URLInfo(true, 120, 1500000000000L, "\"etag-pom\""));
+    // Not from S3: from a bundle or some other handler
+    infos.put(Root + "foo-1.0.jar", new S3URLInfo(true, 4096, 1500000001000L));
+    infos.put("https://repo1.maven.org/maven2/foo-1.0.pom", new URLInfo(true, 120, 1500000000000L) {});
+
+    S3Lockfile.write(lockfile, infos);
+
+    assertEquals(Arrays.asList(Root + "foo-1.0.pom"), Arrays.asList(S3Lockfile.read(lockfile).keySet().toArray()));
+  }
+
+  @Test
+  public void testMalformedLinesAreRejected() throws IOException {
+    for (String line : Arrays.asList(Root + "foo-1.0.pom\t\"etag\"\t120", Root + "foo-1.0.pom\t\"etag\"\tlong\t1500000000000")) {
+      Files.write(lockfile.toPath(), ("# comment\n\n" + line + "\n").getBytes(StandardCharsets.UTF_8));
+      try {
+        S3Lockfile.read(lockfile);
+        fail("Expected " + line + " to be rejected");
+      } catch (IOException e) {
+        assertTrue(e.getMessage(), e.getMessage().startsWith("Invalid line in lockfile"));
+      }
+    }
+  }
+}
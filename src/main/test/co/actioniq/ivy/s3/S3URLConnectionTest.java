@@ -0,0 +1,90 @@
+/*
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package co.actioniq.ivy.s3;
+
+import org.apache.ivy.util.DefaultMessageLogger;
+import org.apache.ivy.util.Message;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class S3URLConnectionTest {
+  private final String bucket = "connection-" + System.nanoTime();
+  private FakeS3Server server;
+  private File dir;
+
+  @Before
+  public void setUp() throws IOException {
+    Message.setDefaultLogger(new DefaultMessageLogger(Message.MSG_WARN));
+    server = new FakeS3Server();
+    server.acceptOnly("connection-key");
+    System.setProperty(S3URLUtil.EndpointProperty, server.endpoint());
+    System.setProperty("aws.accessKeyId." + bucket, "connection-key");
+    System.setProperty("aws.secretKey." + bucket, "connection-secret");
+    dir = Files.createTempDirectory("S3URLConnectionTest").toFile();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    server.close();
+    System.clearProperty(S3URLUtil.EndpointProperty);
+    System.clearProperty("aws.accessKeyId." + bucket);
+    System.clearProperty("aws.secretKey." + bucket);
+    for (File file : dir.listFiles()) {
+      Files.delete(file.toPath());
+    }
+    Files.delete(dir.toPath());
+  }
+
+  @Test
+  public void testChannelReadsThroughTheStoredJar() throws IOException {
+    byte[] jar = new byte[300 * 1024];
+    new Random(36).nextBytes(jar);
+    File src = new File(dir, "foo-1.0.jar");
+    Files.write(src.toPath(), jar);
+    // Installs the s3:// URL handler
+    S3URLHandler handler = new S3URLHandler();
+    URL url = new URL("s3://" + bucket + "/co.actioniq/foo/1.0/foo-1.0.jar");
+    handler.upload(src, url, null);
+
+    try (SeekableByteChannel channel = new S3URLConnection(url).getChannel()) {
+      assertEquals(jar.length, channel.size());
+      // The end of the jar (where its central directory would be), then somewhere in the middle
+      assertArrayEquals(Arrays.copyOfRange(jar, jar.length - 1000, jar.length), read(channel, jar.length - 1000, 1000));
+      assertArrayEquals(Arrays.copyOfRange(jar, 100000, 170000), read(channel, 100000, 70000));
+      assertEquals(-1, channel.position(jar.length).read(ByteBuffer.allocate(1)));
+    }
+  }
+
+  private static byte[] read(SeekableByteChannel channel, long position, int length) throws IOException {
+    channel.position(position);
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    while (buffer.hasRemaining() && channel.read(buffer) > 0) {
+      // Until full
+    }
+    return buffer.array();
+  }
+}
@@ -0,0 +1,224 @@
+/*
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package co.actioniq.ivy.s3;
+
+import com.amazonaws.services.s3.model.S3Object;
+import org.apache.ivy.util.DefaultMessageLogger;
+import org.apache.ivy.util.Message;
+import org.apache.ivy.util.url.URLHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Hammers a handler with parallel uploads, downloads and getURLInfo calls against a local fake S3 and
+ * checks that every result is correct, no file is corrupted and expired credentials are renewed once.
+ */
+public class S3URLHandlerStressTest {
+  private static final int Artifacts = 12;
+  private static final int Threads = 16;
+
+  private final String bucket = "stress-" + System.nanoTime();
+  private FakeS3Server server;
+  private ExecutorService executor;
+  private File dir;
+  private S3URLHandler handler;
+
+  @Before
+  public void setUp() throws IOException {
+    Message.setDefaultLogger(new DefaultMessageLogger(Message.MSG_WARN));
+    server = new FakeS3Server();
+    server.acceptOnly("stress-key-1");
+    System.setProperty(S3URLUtil.EndpointProperty, server.endpoint());
+    useCredentials("stress-key-1");
+
+    executor = Executors.newFixedThreadPool(Threads);
+    dir = Files.createTempDirectory("S3URLHandlerStressTest").toFile();
+    handler = new S3URLHandler();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    executor.shutdownNow();
+    server.close();
+    System.clearProperty(S3URLUtil.EndpointProperty);
+    System.clearProperty("aws.accessKeyId." + bucket);
+    System.clearProperty("aws.secretKey." + bucket);
+    try (Stream<Path> paths = Files.walk(dir.toPath())) {
+      paths.map(Path::toFile).sorted((a, b) -> b.compareTo(a)).forEach(File::delete);
+    }
+  }
+
+  @Test
+  public void testParallelUploadsDownloadsAndInfos() throws Exception {
+    List<File> sources = makeSources("a");
+
+    // Every artifact is uploaded twice at the same time
+    List<CompletableFuture<Void>> uploads = new ArrayList<>();
+    for (int i = 0; i < Artifacts * 2; i++) {
+      int n = i % Artifacts;
+      uploads.add(run(() -> handler.upload(sources.get(n), url("a", n), null)));
+    }
+    joinAll(uploads);
+
+    // Lots of readers, many of them downloading to the same destination
+    Random random = new Random(42);
+    List<CompletableFuture<Void>> operations = new ArrayList<>();
+    for (int i = 0; i < 300; i++) {
+      int n = random.nextInt(Artifacts);
+      switch (i % 3) {
+        case 0:
+          operations.add(run(() -> download(n, new File(dir, "shared-" + n + ".jar"), sources.get(n))));
+          break;
+        case 1:
+          File dest = new File(dir, "own-" + n + "-" + i + ".jar");
+          operations.add(run(() -> download(n, dest, sources.get(n))));
+          break;
+        default:
+          operations.add(run(() -> {
+            URLHandler.URLInfo info = handler.getURLInfo(url("a", n));
+            assertTrue(info.isReachable());
+            assertEquals(server.get(bucket, "a/" + n + ".jar").length, info.getContentLength());
+          }));
+      }
+    }
+    joinAll(operations);
+
+    String[] leftovers = dir.list((d, name) -> name.endsWith(".s3tmp"));
+    assertEquals(0, leftovers.length);
+  }
+
+  @Test
+  public void testExpiredCredentialsAreRenewedOnce() throws Exception {
+    List<File> sources = makeSources("b");
+    handler.upload(sources.get(0), url("b", 0), null);
+
+    server.acceptOnly("stress-key-2");
+    useCredentials("stress-key-2");
+    int renewals = S3URLHandler.client().credentialRenewals();
+
+    List<CompletableFuture<Void>> uploads = new ArrayList<>();
+    for (int i = 1; i < Artifacts; i++) {
+      int n = i;
+      uploads.add(run(() -> handler.upload(sources.get(n), url("b", n), null)));
+    }
+    joinAll(uploads);
+
+    assertEquals(renewals + 1, S3URLHandler.client().credentialRenewals());
+    assertTrue(server.rejectedRequests() > 0);
+    for (int n = 0; n < Artifacts; n++) {
+      download(n, new File(dir, "b-" + n + ".jar"), sources.get(n));
+    }
+  }
+
+  @Test
+  public void testThrottledRequestsBackOffWithTheSameCredentials() throws Exception {
+    List<File> sources = makeSources("c");
+    handler.upload(sources.get(0), url("c", 0), null);
+    int renewals = S3URLHandler.client().credentialRenewals();
+    long throttles = S3URLHandler.client().getThrottledRequests().getOrDefault(bucket, 0L);
+
+    // More than the SDK's own retries get past
+    server.throttleNext(6);
+    download(0, new File(dir, "c-0.jar"), sources.get(0));
+
+    assertEquals(renewals, S3URLHandler.client().credentialRenewals());
+    assertTrue(S3URLHandler.client().getThrottledRequests().get(bucket) > throttles);
+  }
+
+  @Test
+  public void testThrottledRequestsGiveUpTheirSlotWhileBackingOff() throws Exception {
+    List<File> sources = makeSources("d");
+    handler.upload(sources.get(0), url("d", 0), null);
+    AsyncS3Client client = S3URLHandler.client();
+    long throttles = client.getThrottledRequests().getOrDefault(bucket, 0L);
+
+    server.throttleNext(6);
+    CompletableFuture<S3Object> get = client.getObject(url("d", 0));
+    boolean released = false;
+    while (!get.isDone()) {
+      boolean throttled = client.getThrottledRequests().getOrDefault(bucket, 0L) > throttles;
+      if (throttled && client.getInFlightRequests().getOrDefault(bucket, 0) == 0) {
+        // Not just the moment between giving up the slot and completing
+        Thread.sleep(10);
+        released |= !get.isDone();
+      }
+    }
+
+    AsyncS3Client.join(get).close();
+    assertTrue(released);
+  }
+
+  private void useCredentials(String accessKey) {
+    System.setProperty("aws.accessKeyId." + bucket, accessKey);
+    System.setProperty("aws.secretKey." + bucket, "secret-" + accessKey);
+  }
+
+  private List<File> makeSources(String prefix) throws IOException {
+    Random random = new Random(prefix.hashCode());
+    List<File> sources = new ArrayList<>();
+    for (int n = 0; n < Artifacts; n++) {
+      byte[] bytes = new byte[random.nextInt(256 * 1024) + 1];
+      random.nextBytes(bytes);
+      File source = new File(dir, "source-" + prefix + "-" + n + ".jar");
+      Files.write(source.toPath(), bytes);
+      sources.add(source);
+    }
+    return sources;
+  }
+
+  private void download(int n, File dest, File source) {
+    try {
+      handler.download(url(source.getName().split("-")[1], n), dest, null);
+      assertNotNull(server.get(bucket, source.getName().split("-")[1] + "/" + n + ".jar"));
+      assertArrayEquals(Files.readAllBytes(source.toPath()), Files.readAllBytes(dest.toPath()));
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private URL url(String prefix, int n) {
+    try {
+      return new URL("s3://" + bucket + "/" + prefix + "/" + n + ".jar");
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private CompletableFuture<Void> run(Runnable operation) {
+    return CompletableFuture.runAsync(operation, executor);
+  }
+
+  private static void joinAll(List<CompletableFuture<Void>> futures) {
+    CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).join();
+  }
+}
@@ -0,0 +1,460 @@
+/*
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package co.actioniq.ivy.s3;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import org.apache.ivy.Ivy;
+import org.apache.ivy.core.module.descriptor.Artifact;
+import org.apache.ivy.core.module.descriptor.DefaultArtifact;
+import org.apache.ivy.core.module.id.ModuleRevisionId;
+import org.apache.ivy.core.report.ArtifactDownloadReport;
+import org.apache.ivy.core.report.DownloadReport;
+import org.apache.ivy.core.report.DownloadStatus;
+import org.apache.ivy.core.report.ResolveReport;
+import org.apache.ivy.core.resolve.DownloadOptions;
+import org.apache.ivy.core.resolve.ResolveOptions;
+import org.apache.ivy.core.resolve.ResolvedModuleRevision;
+import org.apache.ivy.core.settings.IvySettings;
+import org.apache.ivy.util.DefaultMessageLogger;
+import org.apache.ivy.util.Message;
+import org.apache.ivy.util.url.URLHandler.URLInfo;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class S3URLResolverTest {
+  private static final String Pattern = "[organisation]/[module]/[revision]/[artifact]-[revision](-[classifier]).[ext]";
+
+  private final String bucket = "resolver-" + System.nanoTime();
+  private final ModuleRevisionId mrid = ModuleRevisionId.newInstance("co.actioniq", "foo", "1.0");
+  private FakeS3Server server;
+  private File dir;
+  private String root;
+  private byte[] jar;
+
+  @Before
+  public void setUp() throws IOException {
+    Message.setDefaultLogger(new DefaultMessageLogger(Message.MSG_WARN));
+    server = new FakeS3Server();
+    server.acceptOnly("resolver-key");
+    System.setProperty(S3URLUtil.EndpointProperty, server.endpoint());
+    System.setProperty("aws.accessKeyId." + bucket, "resolver-key");
+    System.setProperty("aws.secretKey." + bucket, "resolver-secret");
+
+    dir = Files.createTempDirectory("S3URLResolverTest").toFile();
+    root = "s3://" + bucket + "/releases/";
+
+    String pom = "<project><modelVersion>4.0.0</modelVersion><groupId>co.actioniq</groupId>" +
+        "<artifactId>foo</artifactId><version>1.0</version></project>";
+    jar = new byte[256 * 1024];
+    new Random(26).nextBytes(jar);
+    publish("foo-1.0.pom", pom.getBytes(StandardCharsets.UTF_8));
+    publish("foo-1.0.jar", jar);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    server.close();
+    System.clearProperty(S3URLUtil.EndpointProperty);
+    System.clearProperty("aws.accessKeyId." + bucket);
+    System.clearProperty("aws.secretKey." + bucket);
+    try (Stream<Path> paths = Files.walk(dir.toPath())) {
+      paths.map(Path::toFile).sorted((a, b) -> b.compareTo(a)).forEach(File::delete);
+    }
+  }
+
+  @Test
+  public void testRevisionLookupsShareOneListing() throws IOException {
+    Ivy ivy = newIvy(new File(dir, "cache"));
+    int heads = server.headRequests();
+
+    ResolvedModuleRevision module = ivy.findModule(mrid);
+    assertNotNull(module);
+    DownloadReport report = ivy.getSettings().getResolver(mrid).download(new Artifact[] {jarArtifact()}, new DownloadOptions());
+
+    assertEquals(DownloadStatus.SUCCESSFUL, report.getArtifactsReports()[0].getDownloadStatus());
+    assertArrayEquals(jar, Files.readAllBytes(report.getArtifactsReports()[0].getLocalFile().toPath()));
+    // The pom and the jar are checked with a single listing of the revision directory
+    assertEquals(1, server.listRequests());
+    assertEquals(heads, server.headRequests());
+  }
+
+  @Test
+  public void testResolversSharingACacheDownloadTheSameArtifact() throws Exception {
+    // Two resolvers stand in for two processes, Ivy renames their part files into the shared cache
+    File cache = new File(dir, "shared-cache");
+    List<Ivy> ivys = Arrays.asList(newIvy(cache), newIvy(cache));
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      for (int round = 0; round < 5; round++) {
+        CyclicBarrier barrier = new CyclicBarrier(4);
+        List<Future<DownloadReport>> downloads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+          Ivy ivy = ivys.get(i % 2);
+          downloads.add(executor.submit(() -> {
+            barrier.await();
+            return ivy.getSettings().getResolver(mrid).download(new Artifact[] {jarArtifact()}, new DownloadOptions());
+          }));
+        }
+        for (Future<DownloadReport> download : downloads) {
+          ArtifactDownloadReport report = download.get().getArtifactsReports()[0];
+          assertTrue(report.getDownloadDetails(), report.getDownloadStatus() != DownloadStatus.FAILED);
+          assertArrayEquals(jar, Files.readAllBytes(report.getLocalFile().toPath()));
+        }
+        Files.delete(downloads.get(0).get().getArtifactsReports()[0].getLocalFile().toPath());
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    // One lock file for the jar (none for its part file) in the cache's lock directory, none next to the artifacts
+    File lockDir = new File(cache, DestinationLock.LockDirName);
+    try (Stream<Path> paths = Files.walk(cache.toPath())) {
+      paths.map(Path::toFile).filter(file -> file.getName().endsWith(".lck"))
+          .forEach(file -> assertEquals(file.toString(), lockDir, file.getParentFile()));
+    }
+    assertEquals(1, lockDir.list().length);
+  }
+
+  @Test
+  public void testRevisionIndexCreatedAfterExistingRevisions() throws IOException {
+    publish("1.1", "foo-1.1.pom", new byte[0]);
+    S3URLHandler handler = new S3URLHandler();
+    URL moduleDir = new URL(root + "co/actioniq/foo/");
+
+    handler.addToRevisionIndex(moduleDir, "co.actioniq", "foo", "1.2");
+
+    assertEquals(Arrays.asList("1.0", "1.1", "1.2"), handler.readRevisionIndex(moduleDir).get());
+    S3URLRepository repository = new S3URLRepository();
+    repository.setUseRevisionIndex(true);
+    int lists = server.listRequests();
+    assertEquals(Arrays.asList(root + "co/actioniq/foo/1.0/", root + "co/actioniq/foo/1.1/", root + "co/actioniq/foo/1.2/"),
+        repository.list(moduleDir.toExternalForm()));
+    assertEquals(lists, server.listRequests());
+  }
+
+  @Test
+  public void testUnseededRevisionIndexFallsBackToListing() throws IOException {
+    // An index written before indexes were seeded, missing the revision published before it
+    publish("1.1", "foo-1.1.pom", new byte[0]);
+    URL moduleDir = new URL(root + "co/actioniq/foo/");
+    byte[] index = new MavenMetadata("co.actioniq", "foo", Arrays.asList("1.1")).toBytes();
+    ObjectMetadata meta = new ObjectMetadata();
+    meta.setContentLength(index.length);
+    AsyncS3Client.join(S3URLHandler.client().putObject(new URL(moduleDir + MavenMetadata.FileName), cbk ->
+        new PutObjectRequest(cbk.bucket(), cbk.key(), new ByteArrayInputStream(index), meta)));
+    S3URLRepository repository = new S3URLRepository();
+    repository.setUseRevisionIndex(true);
+
+    List<?> revisions = repository.list(moduleDir.toExternalForm());
+
+    assertTrue(revisions.toString(), revisions.contains(root + "co/actioniq/foo/1.0/"));
+    assertTrue(revisions.toString(), revisions.contains(root + "co/actioniq/foo/1.1/"));
+    // The next publish repairs the index
+    new S3URLHandler().addToRevisionIndex(moduleDir, "co.actioniq", "foo", "1.2");
+    assertEquals(Arrays.asList("1.1", "1.0", "1.2"), new S3URLHandler().readRevisionIndex(moduleDir).get());
+  }
+
+  @Test
+  public void testConcurrentPublishesAllLandInTheRevisionIndex() throws Exception {
+    S3URLHandler handler = new S3URLHandler();
+    URL moduleDir = new URL(root + "co/actioniq/foo/");
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      CyclicBarrier barrier = new CyclicBarrier(4);
+      List<Future<?>> publishes = new ArrayList<>();
+      for (int i = 0; i < 4; i++) {
+        String revision = "2." + i;
+        publishes.add(executor.submit(() -> {
+          barrier.await();
+          handler.addToRevisionIndex(moduleDir, "co.actioniq", "foo", revision);
+          return null;
+        }));
+      }
+      for (Future<?> publish : publishes) {
+        publish.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    List<String> revisions = handler.readRevisionIndex(moduleDir).get();
+    assertEquals(revisions.toString(), 5, revisions.size());
+    for (String revision : Arrays.asList("1.0", "2.0", "2.1", "2.2", "2.3")) {
+      assertTrue(revisions.toString(), revisions.contains(revision));
+    }
+  }
+
+  @Test
+  public void testPruneDryRunDeletesNothing() throws IOException {
+    long daysAgo = System.currentTimeMillis() - 10 * 24 * 3600 * 1000L;
+    for (int i = 1; i <= 3; i++) {
+      seed("bar", "0." + i, daysAgo + i, 1);
+    }
+
+    List<ModuleRevisionId> expired = resolver().prune("co.actioniq", "ba*", 1, 0, true);
+
+    assertEquals(Arrays.asList(barRevision("0.1"), barRevision("0.2")), expired);
+    assertEquals(Collections.emptyList(), server.deleteBatches());
+    assertNotNull(server.get(bucket, "releases/co/actioniq/bar/0.1/bar-0.1.jar"));
+  }
+
+  @Test
+  public void testPruneDeletesDescriptorsBeforeArtifacts() throws IOException {
+    long daysAgo = System.currentTimeMillis() - 10 * 24 * 3600 * 1000L;
+    for (int i = 1; i <= 3; i++) {
+      seed("bar", "0." + i, daysAgo + i, 2);
+    }
+
+    List<ModuleRevisionId> expired = resolver().prune("co.actioniq", "bar", 1, 0, false);
+
+    assertEquals(Arrays.asList(barRevision("0.1"), barRevision("0.2")), expired);
+    List<String> deleted = server.deletedKeys();
+    assertEquals(deleted.toString(), 8, deleted.size());
+    for (String key : deleted.subList(0, 4)) {
+      assertTrue(deleted.toString(), key.endsWith(".pom") || key.endsWith(".pom.sha1"));
+    }
+    assertNull(server.get(bucket, "releases/co/actioniq/bar/0.2/bar-0.2-1.jar"));
+    assertNotNull(server.get(bucket, "releases/co/actioniq/bar/0.3/bar-0.3-1.jar"));
+  }
+
+  @Test
+  public void testPruneKeepsTheNewestRevisionEvenWhenExpired() throws IOException {
+    long daysAgo = System.currentTimeMillis() - 10 * 24 * 3600 * 1000L;
+    for (int i = 1; i <= 3; i++) {
+      seed("bar", "0." + i, daysAgo + i, 1);
+    }
+
+    List<ModuleRevisionId> expired = resolver().prune("co.actioniq", "bar", 0, 24 * 3600 * 1000L, false);
+
+    assertEquals(Arrays.asList(barRevision("0.1"), barRevision("0.2")), expired);
+    assertNotNull(server.get(bucket, "releases/co/actioniq/bar/0.3/bar-0.3.pom"));
+  }
+
+  @Test
+  public void testPruneDeletesInBatchesOf1000Keys() throws IOException {
+    long daysAgo = System.currentTimeMillis() - 10 * 24 * 3600 * 1000L;
+    seed("bar", "0.1", daysAgo, 1500);
+    seed("bar", "0.2", daysAgo + 1, 1);
+
+    resolver().prune("co.actioniq", "bar", 1, 0, false);
+
+    // The descriptors, then the artifacts in two concurrent batches
+    List<Integer> batches = server.deleteBatches();
+    assertEquals(batches.toString(), 3, batches.size());
+    assertEquals(2, (int)batches.get(0));
+    assertEquals(new HashSet<>(Arrays.asList(1000, 500)), new HashSet<>(batches.subList(1, 3)));
+    assertNull(server.get(bucket, "releases/co/actioniq/bar/0.1/bar-0.1-1499.jar"));
+  }
+
+  @Test
+  public void testPromoteCopiesTheWholeRevision() throws Exception {
+    File sources = new File(dir, "foo-1.0-sources.jar");
+    Files.write(sources.toPath(), jar);
+    new S3URLHandler().upload(sources, new URL(root + "co/actioniq/foo/1.0/foo-1.0-sources.jar"), null, Arrays.asList("sha1", "md5"));
+    String targetRoot = "s3://" + bucket + "/promoted/";
+    IvySettings settings = new IvySettings();
+    settings.setDefaultCache(new File(dir, "cache"));
+    S3URLResolver staging = newResolver("staging", root);
+    staging.setRevisionIndex(true);
+    S3URLResolver releases = newResolver("releases", targetRoot);
+    releases.setNegativeLookups(true);
+    settings.addResolver(staging);
+    settings.addResolver(releases);
+    Ivy.newInstance(settings);
+    S3URLRepository releasesRepository = (S3URLRepository)releases.getRepository();
+    String targetPom = targetRoot + "co/actioniq/foo/1.0/foo-1.0.pom";
+    // Until its first listing completes the filter rules nothing out
+    long deadline = System.currentTimeMillis() + 10000;
+    while (!releasesRepository.isDefinitelyAbsent(targetPom) && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertTrue(releasesRepository.isDefinitelyAbsent(targetPom));
+
+    staging.promote(mrid, targetRoot);
+
+    String[] names = {"foo-1.0.pom", "foo-1.0.jar", "foo-1.0-sources.jar", "foo-1.0-sources.jar.sha1", "foo-1.0-sources.jar.md5"};
+    for (String name : names) {
+      byte[] source = server.get(bucket, "releases/co/actioniq/foo/1.0/" + name);
+      assertNotNull(name, source);
+      assertArrayEquals(name, source, server.get(bucket, "promoted/co/actioniq/foo/1.0/" + name));
+    }
+    assertEquals(Arrays.asList("1.0"), new S3URLHandler().readRevisionIndex(new URL(targetRoot + "co/actioniq/foo/")).get());
+    assertFalse(releasesRepository.isDefinitelyAbsent(targetPom));
+  }
+
+  @Test
+  public void testPromoteRefusesAnExistingTargetRevision() throws IOException {
+    String targetRoot = "s3://" + bucket + "/promoted/";
+    byte[] promoted = "<project/>".getBytes(StandardCharsets.UTF_8);
+    server.put(bucket, "promoted/co/actioniq/foo/1.0/foo-1.0.pom", promoted, new Date());
+
+    try {
+      resolver().promote(mrid, targetRoot);
+      fail("Expected the promotion to be refused");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("already exists"));
+    }
+    assertArrayEquals(promoted, server.get(bucket, "promoted/co/actioniq/foo/1.0/foo-1.0.pom"));
+    assertNull(server.get(bucket, "promoted/co/actioniq/foo/1.0/foo-1.0.jar"));
+  }
+
+  @Test
+  public void testResolveWithALockfileAsksS3ForNothingPinned() throws Exception {
+    // Written by an earlier build, with a last modified time S3 wouldn't give us
+    URL pomURL = new URL(root + "co/actioniq/foo/1.0/foo-1.0.pom");
+    URL jarURL = new URL(root + "co/actioniq/foo/1.0/foo-1.0.jar");
+    Map<String,URLInfo> locked = new HashMap<>();
+    for (URL url : Arrays.asList(pomURL, jarURL)) {
+      ObjectMetadata meta = AsyncS3Client.join(S3URLHandler.client().getObjectMetadata(url));
+      locked.put(url.toExternalForm(), new S3URLInfo(true, meta.getContentLength(), 1234000L, meta.getETag()));
+    }
+    File lockfile = new File(dir, "s3.lock");
+    S3Lockfile.write(lockfile, locked);
+    Ivy ivy = newIvy(new File(dir, "cache"));
+    ((S3URLResolver)ivy.getSettings().getResolver("s3")).setLockfile(lockfile.getPath());
+    int heads = server.headRequests();
+
+    ResolveReport report = ivy.resolve(mrid, new ResolveOptions().setConfs(new String[] {"default"}), false);
+
+    assertTrue(report.getAllProblemMessages().toString(), !report.hasError());
+    assertEquals(heads, server.headRequests());
+    assertEquals(1234000L, new S3URLHandler().getURLInfo(pomURL).getLastModified());
+    assertEquals(1234000L, new S3URLHandler().getURLInfo(jarURL).getLastModified());
+    assertEquals(heads, server.headRequests());
+    assertEquals(locked.keySet(), S3Lockfile.read(lockfile).keySet());
+  }
+
+  @Test
+  public void testStrictLockfileReplacesChangedEntriesAndWarns() throws Exception {
+    List<String> warnings = Collections.synchronizedList(new ArrayList<>());
+    Message.setDefaultLogger(new DefaultMessageLogger(Message.MSG_WARN) {
+      public void warn(String msg) {
+        warnings.add(msg);
+        super.warn(msg);
+      }
+    });
+    // The jar was published again since the lockfile was written
+    URL pomURL = new URL(root + "co/actioniq/foo/1.0/foo-1.0.pom");
+    URL jarURL = new URL(root + "co/actioniq/foo/1.0/foo-1.0.jar");
+    ObjectMetadata pomMeta = AsyncS3Client.join(S3URLHandler.client().getObjectMetadata(pomURL));
+    ObjectMetadata jarMeta = AsyncS3Client.join(S3URLHandler.client().getObjectMetadata(jarURL));
+    Map<String,URLInfo> locked = new HashMap<>();
+    locked.put(pomURL.toExternalForm(), new S3URLInfo(true, pomMeta.getContentLength(), 1234000L, pomMeta.getETag()));
+    locked.put(jarURL.toExternalForm(), new S3URLInfo(true, 100, 1234000L, "\"stale\""));
+    File lockfile = new File(dir, "s3.lock");
+    S3Lockfile.write(lockfile, locked);
+    Ivy ivy = newIvy(new File(dir, "cache"));
+    S3URLResolver resolver = (S3URLResolver)ivy.getSettings().getResolver("s3");
+    resolver.setLockfile(lockfile.getPath());
+    resolver.setLockfileMode("strict");
+
+    ivy.resolve(mrid, new ResolveOptions().setConfs(new String[] {"default"}), false);
+
+    long deadline = System.currentTimeMillis() + 10000;
+    while (warnings.stream().noneMatch(w -> w.contains(jarURL + " changed")) && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertTrue(warnings.toString(), warnings.stream().anyMatch(w -> w.contains(jarURL + " changed")));
+    assertTrue(warnings.toString(), warnings.stream().noneMatch(w -> w.contains(pomURL + " changed")));
+    assertEquals(jarMeta.getETag(), ((S3URLInfo)new S3URLHandler().getURLInfo(jarURL)).getETag());
+    assertEquals(jarMeta.getContentLength(), new S3URLHandler().getURLInfo(jarURL).getContentLength());
+  }
+
+  // A pom, its sha1 and jars published at publishedAt
+  private void seed(String module, String revision, long publishedAt, int jars) {
+    String revisionKey = "releases/co/actioniq/" + module + "/" + revision + "/" + module + "-" + revision;
+    Date date = new Date(publishedAt);
+    server.put(bucket, revisionKey + ".pom", new byte[0], date);
+    server.put(bucket, revisionKey + ".pom.sha1", new byte[0], date);
+    if (jars == 1) {
+      server.put(bucket, revisionKey + ".jar", new byte[0], date);
+    } else {
+      for (int i = 0; i < jars; i++) {
+        server.put(bucket, revisionKey + "-" + i + ".jar", new byte[0], date);
+      }
+    }
+  }
+
+  private ModuleRevisionId barRevision(String revision) {
+    return ModuleRevisionId.newInstance("co.actioniq", "bar", revision);
+  }
+
+  private S3URLResolver resolver() {
+    return (S3URLResolver)newIvy(new File(dir, "cache")).getSettings().getResolver("s3");
+  }
+
+  private void publish(String name, byte[] content) throws IOException {
+    publish("1.0", name, content);
+  }
+
+  private void publish(String revision, String name, byte[] content) throws IOException {
+    File file = new File(dir, name);
+    Files.write(file.toPath(), content);
+    new S3URLHandler().upload(file, new URL(root + "co/actioniq/foo/" + revision + "/" + name), null);
+  }
+
+  private Artifact jarArtifact() {
+    return new DefaultArtifact(mrid, null, "foo", "jar", "jar");
+  }
+
+  private Ivy newIvy(File cache) {
+    IvySettings settings = new IvySettings();
+    settings.setDefaultCache(cache);
+    settings.addResolver(newResolver("s3", root));
+    settings.setDefaultResolver("s3");
+    return Ivy.newInstance(settings);
+  }
+
+  private static S3URLResolver newResolver(String name, String root) {
+    S3URLResolver resolver = new S3URLResolver();
+    resolver.setName(name);
+    resolver.setRoot(root);
+    resolver.addIvyPattern(root + Pattern);
+    resolver.addArtifactPattern(root + Pattern);
+    resolver.setChecksums("none");
+    return resolver;
+  }
+}
@@ -0,0 +1,166 @@
+/*
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package co.actioniq.ivy.s3;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SingleEntryZipTest {
+  private static final int[] sizes = {0, 1, 1000, 70000, 1000000};
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    for (int size : sizes) {
+      byte[] data = randomBytes(size);
+      File zipped = compress(data);
+      File dest = tempFile();
+      SingleEntryZip.uncompress(zipped, dest);
+      assertArrayEquals(data, Files.readAllBytes(dest.toPath()));
+    }
+  }
+
+  @Test
+  public void testReadableByZipFile() throws IOException {
+    for (int size : sizes) {
+      byte[] data = randomBytes(size);
+      try (ZipFile zipFile = new ZipFile(compress(data))) {
+        ZipEntry entry = zipFile.entries().nextElement();
+        assertArrayEquals(data, readAll(zipFile.getInputStream(entry)));
+      }
+    }
+  }
+
+  @Test
+  public void testReadsZipOutputStreamFiles() throws IOException {
+    for (int size : sizes) {
+      byte[] data = randomBytes(size);
+      File zipped = tempFile();
+      try (ZipOutputStream zipOut = new ZipOutputStream(new FileOutputStream(zipped))) {
+        zipOut.putNextEntry(new ZipEntry("foo.jar"));
+        zipOut.write(data);
+        zipOut.closeEntry();
+      }
+
+      File dest = tempFile();
+      SingleEntryZip.uncompress(zipped, dest);
+      assertArrayEquals(data, Files.readAllBytes(dest.toPath()));
+    }
+  }
+
+  @Test
+  public void testDeterministic() throws IOException {
+    File src = tempFile();
+    Files.write(src.toPath(), randomBytes(5000));
+
+    File first = tempFile();
+    File second = tempFile();
+    SingleEntryZip.compress(src, first);
+    SingleEntryZip.compress(src, second);
+    assertArrayEquals(Files.readAllBytes(first.toPath()), Files.readAllBytes(second.toPath()));
+  }
+
+  @Test
+  public void testArchivesAreStoredInPlace() throws IOException {
+    byte[] data = randomBytes(70000);
+    File src = new File(tempFile().getParentFile(), "SingleEntryZipTest-" + System.nanoTime() + ".jar");
+    src.deleteOnExit();
+    Files.write(src.toPath(), data);
+    File zipped = tempFile();
+    SingleEntryZip.compress(src, zipped);
+
+    try (ZipFile zipFile = new ZipFile(zipped)) {
+      ZipEntry entry = zipFile.entries().nextElement();
+      assertEquals(ZipEntry.STORED, entry.getMethod());
+      assertArrayEquals(data, readAll(zipFile.getInputStream(entry)));
+    }
+    File dest = tempFile();
+    SingleEntryZip.uncompress(zipped, dest);
+    assertArrayEquals(data, Files.readAllBytes(dest.toPath()));
+
+    byte[] bytes = Files.readAllBytes(zipped.toPath());
+    long[] entry = SingleEntryZip.storedEntry(bytes, bytes.length);
+    assertNotNull(entry);
+    assertArrayEquals(data, Arrays.copyOfRange(bytes, (int)entry[0], (int)(entry[0] + entry[1])));
+    // Deflated entries can't be read in place
+    byte[] deflated = Files.readAllBytes(compress(data).toPath());
+    assertNull(SingleEntryZip.storedEntry(deflated, deflated.length));
+  }
+
+  @Test
+  public void testZip64Boundary() {
+    // Deflating 0xFFFFFFFF bytes of incompressible data takes about 1.3MB more than that
+    long limit = 0xFFFFFFFFL - 30 - "foo.jar".length() - 16;
+    long largest = 0;
+    for (long step = 1L << 32; step > 0; step >>= 1) {
+      if (!SingleEntryZip.needsZip64(largest + step, "foo.jar".length())) {
+        largest += step;
+      }
+    }
+    long bound = largest + (largest >> 12) + (largest >> 14) + (largest >> 25) + 13;
+    assertTrue(bound < limit);
+    assertTrue(largest < 0xFFFFFFFFL - 1024 * 1024);
+    assertTrue(SingleEntryZip.needsZip64(largest + 1, "foo.jar".length()));
+    assertTrue(SingleEntryZip.needsZip64(0xFFFFFFFFL - 1, "foo.jar".length()));
+    assertTrue(SingleEntryZip.needsZip64(0xFFFFFFFFL, "foo.jar".length()));
+    assertFalse(SingleEntryZip.needsZip64(1000000, "foo.jar".length()));
+  }
+
+  private static File compress(byte[] data) throws IOException {
+    File src = tempFile();
+    Files.write(src.toPath(), data);
+    File zipped = tempFile();
+    SingleEntryZip.compress(src, zipped);
+    return zipped;
+  }
+
+  private static byte[] randomBytes(int size) {
+    // Small alphabet so the data actually compresses
+    Random random = new Random(size);
+    byte[] data = new byte[size];
+    for (int i = 0; i < size; i++) {
+      data[i] = (byte)random.nextInt(16);
+    }
+    return data;
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    BufferPool.Shared.copy(in, out);
+    return out.toByteArray();
+  }
+
+  private static File tempFile() throws IOException {
+    File file = File.createTempFile("SingleEntryZipTest-", ".tmp");
+    file.deleteOnExit();
+    return file;
+  }
+}
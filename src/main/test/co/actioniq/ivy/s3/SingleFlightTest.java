@@ -0,0 +1,91 @@
+/*
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package co.actioniq.ivy.s3;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SingleFlightTest {
+  @Test
+  public void testConcurrentCallsShareOneOperation() throws Exception {
+    SingleFlight<Integer> flights = new SingleFlight<>();
+    AtomicInteger calls = new AtomicInteger();
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+
+    ExecutorService executor = Executors.newFixedThreadPool(5);
+    List<CompletableFuture<Integer>> results = new ArrayList<>();
+    results.add(CompletableFuture.supplyAsync(() -> flights.call("key", () -> {
+      started.countDown();
+      await(release);
+      return calls.incrementAndGet();
+    }), executor));
+    started.await();
+    for (int i = 0; i < 4; i++) {
+      results.add(CompletableFuture.supplyAsync(() -> flights.call("key", calls::incrementAndGet), executor));
+    }
+    Thread.sleep(100);
+    release.countDown();
+
+    for (CompletableFuture<Integer> result : results) {
+      assertEquals(1, (int)result.get());
+    }
+    assertEquals(1, calls.get());
+    executor.shutdown();
+  }
+
+  @Test
+  public void testFailuresAreSharedButNotKept() {
+    SingleFlight<Integer> flights = new SingleFlight<>();
+    try {
+      flights.call("key", () -> { throw new IllegalStateException("boom"); });
+      fail("Expected an exception");
+    } catch (IllegalStateException e) {
+      assertEquals("boom", e.getMessage());
+    }
+    assertEquals(2, (int)flights.call("key", () -> 2));
+  }
+
+  @Test
+  public void testCancellingOneCallerDoesNotCancelTheOthers() throws Exception {
+    SingleFlight<Integer> flights = new SingleFlight<>();
+    CompletableFuture<Integer> operation = new CompletableFuture<>();
+    CompletableFuture<Integer> first = flights.submit("key", () -> operation);
+    CompletableFuture<Integer> second = flights.submit("key", () -> CompletableFuture.completedFuture(2));
+
+    first.cancel(true);
+    operation.complete(1);
+    assertTrue(first.isCancelled());
+    assertEquals(1, (int)second.get());
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
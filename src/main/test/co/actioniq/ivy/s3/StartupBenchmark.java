@@ -0,0 +1,46 @@
+/*
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package co.actioniq.ivy.s3;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures what a short lived Ivy invocation pays for the resolver: constructing it (which shouldn't
+ * load any of the S3 machinery), getting the handler ready, and the first request when given a URL.
+ * Run it in a fresh JVM each time since the numbers are dominated by class loading:
+ *
+ *   java -cp ... co.actioniq.ivy.s3.StartupBenchmark [s3://bucket/some/key]
+ */
+public class StartupBenchmark {
+  public static void main(String[] args) throws Exception {
+    long start = System.nanoTime();
+
+    S3URLResolver resolver = new S3URLResolver();
+    resolver.setName("benchmark");
+    report("construct resolver", start);
+
+    S3URLRepository repository = (S3URLRepository)resolver.getRepository();
+    repository.handler();
+    report("handler ready", start);
+
+    if (args.length > 0) {
+      boolean exists = repository.getResource(args[0]).exists();
+      report("first request (exists = " + exists + ")", start);
+    }
+  }
+
+  private static void report(String step, long start) {
+    System.out.println(String.format("%-40s %6d ms", step, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+  }
+}